@@ -0,0 +1,266 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log, one JSON object per line:
+ *
+ *   {"ts":1760830071123,"method":"GET","path":"/hello","status":200,"bytes":181,"ms":0.412,"writeMs":0.018,"worker":"pool-worker-3","waitMs":0.021}
+ *
+ * Request threads only copy references and numbers into a preallocated slot of a bounded
+ * multi-producer ring (sequence-numbered slots, claimed with one CAS, no lock). A single
+ * background thread formats whatever has been published and appends it to the file with one
+ * write per batch. When the ring is full the entry is dropped and counted; the request path
+ * never blocks on the log. The file is rotated by size to {@code name.1 .. name.N}.
+ */
+final class AccessLog {
+    static final long FLUSH_INTERVAL_MILLIS = 200;
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    /**
+     * One request/response as the log sees it. Wraps the response stream to count the bytes
+     * sent, time the writes, and pick the status code out of each response head as it goes by.
+     */
+    static final class Exchange extends OutputStream {
+        final long acceptedNanos;
+        String method = "-";
+        String path = "-";
+        int status;
+        long bytes;
+        long writeNanos;
+        private OutputStream out;
+
+        Exchange(long acceptedNanos) { this.acceptedNanos = acceptedNanos; }
+
+        OutputStream wrap(OutputStream out) {
+            this.out = out;
+            return this;
+        }
+
+        @Override public void write(int b) throws IOException {
+            long t = System.nanoTime();
+            out.write(b);
+            writeNanos += System.nanoTime() - t;
+            bytes++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            // Heads leave in one write; after a 1xx other than 101 the real head follows
+            if (status < 200 && status != 101 && len >= 12 && b[off] == 'H' && b[off + 8] == ' ') {
+                int code = (b[off + 9] - '0') * 100 + (b[off + 10] - '0') * 10 + (b[off + 11] - '0');
+                if (code >= 100 && code < 600) status = code;
+            }
+            long t = System.nanoTime();
+            out.write(b, off, len);
+            writeNanos += System.nanoTime() - t;
+            bytes += len;
+        }
+
+        @Override public void flush() throws IOException {
+            long t = System.nanoTime();
+            out.flush();
+            writeNanos += System.nanoTime() - t;
+        }
+
+        @Override public void close() throws IOException { out.close(); }
+    }
+
+    private static final class Entry {
+        long ts;
+        String method;
+        String path;
+        int status;
+        long bytes;
+        long latencyNanos;
+        long writeNanos;
+        String worker;
+        long queueWaitNanos;
+        Throwable error;
+    }
+
+    private final File file;
+    private final long maxFileBytes;
+    private final int keepFiles;
+    private final Clock clock;
+    private final Entry[] slots;
+    // slot i is free for position p when seq == p, published when seq == p + 1
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0; // writer thread only
+    private final AtomicLong logged = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong rotations = new AtomicLong(0);
+    private final AtomicLong writeErrors = new AtomicLong(0);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private FileOutputStream stream;
+    private long fileBytes;
+
+    /**
+     * @param capacity ring slots, rounded up to a power of two
+     * @param maxFileBytes rotate once the current file would grow past this
+     * @param keepFiles rotated files kept next to the live one
+     */
+    AccessLog(File file, int capacity, long maxFileBytes, int keepFiles, Clock clock) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.keepFiles = keepFiles;
+        this.clock = clock;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Entry[size];
+        this.sequence = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Entry();
+            sequence.set(i, i);
+        }
+        this.writer = new Thread(this::drainLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Records a finished exchange; false if the ring was full and the entry was dropped. */
+    boolean log(Exchange x, long startNanos, long endNanos, Throwable error) {
+        long pos = tail.get();
+        Entry e;
+        while (true) {
+            int idx = (int)pos & mask;
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) { e = slots[idx]; break; }
+                pos = tail.get();
+            } else if (dif < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        e.ts = clock.millis();
+        e.method = x.method;
+        e.path = x.path;
+        e.status = x.status;
+        e.bytes = x.bytes;
+        e.latencyNanos = endNanos - startNanos;
+        e.writeNanos = x.writeNanos;
+        e.worker = Thread.currentThread().getName();
+        e.queueWaitNanos = Math.max(0, startNanos - x.acceptedNanos);
+        e.error = error;
+        sequence.lazySet((int)pos & mask, pos + 1);
+        logged.incrementAndGet();
+        return true;
+    }
+
+    long logged() { return logged.get(); }
+    long dropped() { return dropped.get(); }
+    long written() { return written.get(); }
+    long rotations() { return rotations.get(); }
+    long writeErrors() { return writeErrors.get(); }
+
+    /** Writes out what is in the ring and stops the writer. */
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try { writer.join(2000); } catch (InterruptedException ignore) {}
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_BYTES);
+        while (true) {
+            boolean stopping = !running;
+            int n = 0;
+            while (batch.length() < BATCH_BYTES && take(batch)) n++;
+            if (n > 0) {
+                writeBatch(batch);
+                batch.setLength(0);
+                continue; // more may be waiting
+            }
+            if (stopping) break;
+            LockSupport.parkNanos(FLUSH_INTERVAL_MILLIS * 1_000_000L);
+        }
+        if (stream != null) {
+            try { stream.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    private boolean take(StringBuilder sb) {
+        int idx = (int)head & mask;
+        if (sequence.get(idx) != head + 1) return false;
+        Entry e = slots[idx];
+        format(sb, e);
+        e.method = null;
+        e.path = null;
+        e.worker = null;
+        e.error = null;
+        sequence.lazySet(idx, head + slots.length);
+        head++;
+        written.incrementAndGet();
+        return true;
+    }
+
+    private static void format(StringBuilder sb, Entry e) {
+        sb.append("{\"ts\":").append(e.ts);
+        sb.append(",\"method\":"); quote(sb, e.method);
+        sb.append(",\"path\":"); quote(sb, e.path);
+        sb.append(",\"status\":").append(e.status);
+        sb.append(",\"bytes\":").append(e.bytes);
+        sb.append(",\"ms\":").append(e.latencyNanos / 1000 / 1000.0);
+        sb.append(",\"writeMs\":").append(e.writeNanos / 1000 / 1000.0);
+        sb.append(",\"worker\":"); quote(sb, e.worker);
+        sb.append(",\"waitMs\":").append(e.queueWaitNanos / 1000 / 1000.0);
+        if (e.error != null) { sb.append(",\"error\":"); quote(sb, e.error.toString()); }
+        sb.append("}\n");
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private void writeBatch(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (stream != null && fileBytes + bytes.length > maxFileBytes) rotate();
+            if (stream == null) open();
+            stream.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException ex) {
+            // Lines in a failed batch are lost; retry the file on the next batch
+            if (writeErrors.getAndIncrement() == 0) System.err.println("[AccessLog] write to " + file + " failed: " + ex);
+            if (stream != null) { try { stream.close(); } catch (IOException ignore) {} }
+            stream = null;
+        }
+    }
+
+    private void open() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        stream = new FileOutputStream(file, true);
+        fileBytes = file.length();
+    }
+
+    private void rotate() throws IOException {
+        stream.close();
+        stream = null;
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists()) from.renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (keepFiles > 0) file.renameTo(new File(file.getPath() + ".1"));
+        else file.delete();
+        rotations.incrementAndGet();
+    }
+}
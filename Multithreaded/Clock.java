@@ -0,0 +1,60 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coarse process-wide clock, advanced by one daemon thread every {@link #TICK_MILLIS}.
+ *
+ * Reading it is a volatile load, so deadlines and timestamps on the request path cost no
+ * clock call, and the {@code Date} header is formatted once per second instead of per response.
+ * Readings lag real time by up to one tick; anything that measures sub-tick durations (request
+ * latency, /compute) keeps using System.nanoTime().
+ */
+final class Clock {
+    static final long TICK_MILLIS = 10;
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final Clock SHARED = new Clock();
+
+    private volatile long millis;
+    private volatile long nanos;
+    private volatile byte[] dateHeader;
+    private long dateSecond = Long.MIN_VALUE;
+
+    private Clock() {
+        tick();
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TICK_MILLIS * 1_000_000L);
+                tick();
+            }
+        }, "clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    static Clock shared() { return SHARED; }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long second = Math.floorDiv(now, 1000);
+        if (second != dateSecond) {
+            dateSecond = second;
+            dateHeader = ("Date: " + HTTP_DATE.format(Instant.ofEpochSecond(second)) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        nanos = System.nanoTime();
+        millis = now;
+    }
+
+    /** Wall-clock milliseconds as of the last tick. */
+    long millis() { return millis; }
+
+    /** System.nanoTime() as of the last tick; for deadlines, not for measuring. */
+    long nanos() { return nanos; }
+
+    /** "Date: Sun, 18 Oct 2026 09:30:00 GMT\r\n" for the current second; never modify it. */
+    byte[] dateHeader() { return dateHeader; }
+}
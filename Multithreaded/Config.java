@@ -0,0 +1,351 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Named, range-checked settings layered from defaults, a properties file, environment variables
+ * and command-line flags, later layers winning:
+ *
+ *   server.properties     queueCapacity=256
+ *   environment           THREADMASTER_QUEUE_CAPACITY=256
+ *   command line          --queueCapacity=256   (or --queueCapacity 256)
+ *
+ * The file is {@code --config=path}, else {@code $THREADMASTER_CONFIG}, else an optional
+ * {@code server.properties} in the working directory. Unknown keys and out-of-range values are
+ * errors, reported together, so a typo fails at startup instead of silently keeping a default.
+ *
+ * Settings marked live may be changed while running, by {@link #update} (the /admin/config
+ * endpoint) or by editing the file ({@link #reload}, polled by {@link #watch}); the others are
+ * read once at startup. Hot paths keep the {@link Setting} and read its volatile value.
+ */
+final class Config {
+    static final String ENV_PREFIX = "THREADMASTER_";
+    static final String DEFAULT_FILE = "server.properties";
+    private static final int MAX_CHANGES = 32;
+
+    enum Source {
+        DEFAULT, FILE, ENV, CLI, ADMIN;
+        String label() { return name().toLowerCase(); }
+    }
+
+    static final class Setting {
+        final String key;
+        final String description;
+        final boolean live;
+        final boolean decimal;
+        final double min;
+        final double max;
+        // Integers are stored exactly; every range here is far below 2^53
+        private volatile double value;
+        private Source source = Source.DEFAULT;
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+        private Setting(String key, double value, double min, double max, boolean live, boolean decimal, String description) {
+            this.key = key;
+            this.value = value;
+            this.min = min;
+            this.max = max;
+            this.live = live;
+            this.decimal = decimal;
+            this.description = description;
+        }
+
+        int asInt() { return (int)value; }
+        long asLong() { return (long)value; }
+        double asDouble() { return value; }
+
+        /** Runs after every change of this setting, on the thread that made it. */
+        Setting onChange(Runnable listener) {
+            listeners.add(listener);
+            return this;
+        }
+
+        String format() { return format(value); }
+
+        private String format(double v) { return decimal ? Double.toString(v) : Long.toString((long)v); }
+
+        /** Parsed value, or throws with a message naming the key and the allowed range. */
+        private double parse(String text) {
+            double v;
+            try {
+                v = decimal ? Double.parseDouble(text.trim()) : Long.parseLong(text.trim().replace("_", ""));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(key + ": not " + (decimal ? "a number" : "an integer") + ": '" + text + "'");
+            }
+            if (!(v >= min && v <= max)) {
+                throw new IllegalArgumentException(key + ": " + text.trim() + " is outside " + format(min) + ".." + format(max));
+            }
+            return v;
+        }
+    }
+
+    private static final class Change {
+        final long ts;
+        final String key;
+        final String from;
+        final String to;
+        final Source source;
+
+        Change(long ts, String key, String from, String to, Source source) {
+            this.ts = ts;
+            this.key = key;
+            this.from = from;
+            this.to = to;
+            this.source = source;
+        }
+    }
+
+    private final String serverName;
+    private final Map<String, Setting> settings = new LinkedHashMap<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    // File values for restart-only keys that differ from what is running
+    private final Map<String, String> pendingRestart = new LinkedHashMap<>();
+    private final Map<String, String> cliValues = new LinkedHashMap<>();
+    private File file;
+    private volatile long fileModified;
+    private long version;
+
+    Config(String serverName) {
+        this.serverName = serverName;
+    }
+
+    Setting integer(String key, long def, long min, long max, boolean live, String description) {
+        return define(new Setting(key, def, min, max, live, false, description));
+    }
+
+    Setting decimal(String key, double def, double min, double max, boolean live, String description) {
+        return define(new Setting(key, def, min, max, live, true, description));
+    }
+
+    private Setting define(Setting s) {
+        if (settings.putIfAbsent(s.key, s) != null) throw new IllegalStateException("duplicate setting " + s.key);
+        return s;
+    }
+
+    Setting setting(String key) {
+        Setting s = settings.get(key);
+        if (s == null) throw new IllegalArgumentException("unknown setting " + key);
+        return s;
+    }
+
+    /**
+     * Applies the file, the environment and {@code args} over the defaults. Throws with every
+     * problem found, one per line, when any layer has an unknown key or a bad value.
+     */
+    synchronized void load(String[] args, Map<String, String> env) {
+        List<String> errors = new ArrayList<>();
+        String explicitFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (!a.startsWith("--") || a.length() == 2) { errors.add("unexpected argument '" + a + "'"); continue; }
+            int eq = a.indexOf('=');
+            String key = eq > 0 ? a.substring(2, eq) : a.substring(2);
+            String value;
+            if (eq > 0) value = a.substring(eq + 1);
+            else if (i + 1 < args.length) value = args[++i];
+            else { errors.add(a + ": missing value"); continue; }
+            if ("config".equals(key)) explicitFile = value;
+            else cliValues.put(key, value);
+        }
+        if (explicitFile == null) explicitFile = env.get(ENV_PREFIX + "CONFIG");
+        file = new File(explicitFile != null ? explicitFile : DEFAULT_FILE);
+        if (file.isFile()) {
+            fileModified = file.lastModified();
+            apply(readFile(errors), Source.FILE, errors);
+        } else if (explicitFile != null) {
+            errors.add("config file " + file + " not found");
+        }
+        apply(fromEnv(env), Source.ENV, errors);
+        apply(cliValues, Source.CLI, errors);
+        if (!errors.isEmpty()) throw new IllegalArgumentException(String.join("\n", errors));
+    }
+
+    /**
+     * Validates every entry first and applies them only if all are valid, so a request either
+     * changes everything it names or nothing. Restart-only keys are refused. Returns the errors.
+     */
+    synchronized List<String> update(Map<String, String> values, Source source) {
+        List<String> errors = new ArrayList<>();
+        Map<Setting, Double> parsed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            Setting s = settings.get(e.getKey());
+            if (s == null) { errors.add(e.getKey() + ": unknown setting"); continue; }
+            if (!s.live) { errors.add(e.getKey() + ": takes effect only at startup"); continue; }
+            try { parsed.put(s, s.parse(e.getValue())); } catch (IllegalArgumentException ex) { errors.add(ex.getMessage()); }
+        }
+        if (errors.isEmpty()) {
+            for (Map.Entry<Setting, Double> e : parsed.entrySet()) change(e.getKey(), e.getValue(), source);
+        }
+        return errors;
+    }
+
+    /**
+     * Re-reads the file and environment. Live keys take the new values (keys given on the
+     * command line keep theirs); restart-only keys that differ are listed as pending. A file
+     * with any invalid entry is not applied at all. Returns the errors.
+     */
+    synchronized List<String> reload() {
+        List<String> errors = new ArrayList<>();
+        Map<String, String> values = new LinkedHashMap<>();
+        if (file.isFile()) {
+            fileModified = file.lastModified();
+            values.putAll(readFile(errors));
+        }
+        values.putAll(fromEnv(System.getenv()));
+        values.keySet().removeAll(cliValues.keySet());
+        pendingRestart.clear();
+        Map<String, String> live = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            Setting s = settings.get(e.getKey());
+            if (s == null) { errors.add(e.getKey() + ": unknown setting"); continue; }
+            if (s.live) { live.put(e.getKey(), e.getValue()); continue; }
+            try {
+                if (s.parse(e.getValue()) != s.value) pendingRestart.put(s.key, e.getValue().trim());
+            } catch (IllegalArgumentException ex) {
+                errors.add(ex.getMessage());
+            }
+        }
+        if (!errors.isEmpty()) return errors;
+        return update(live, Source.FILE);
+    }
+
+    /** Polls the file's modification time and reloads it when it changes; daemon thread. */
+    void watch(long intervalMillis) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(intervalMillis); } catch (InterruptedException ex) { return; }
+                long modified;
+                synchronized (this) { modified = file.isFile() ? file.lastModified() : 0; }
+                if (modified == 0 || modified == fileModified) continue;
+                List<String> errors = reload();
+                if (!errors.isEmpty()) System.out.println("[" + serverName + "] config reload from " + file + " rejected: " + String.join("; ", errors));
+            }
+        }, "config-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void change(Setting s, double value, Source source) {
+        if (value == s.value) return;
+        String from = s.format();
+        s.value = value;
+        s.source = source;
+        changes.addLast(new Change(System.currentTimeMillis(), s.key, from, s.format(), source));
+        if (changes.size() > MAX_CHANGES) changes.removeFirst();
+        version++;
+        System.out.println("[" + serverName + "] config " + s.key + " " + from + " -> " + s.format() + " (" + source.label() + ")");
+        for (Runnable r : s.listeners) r.run();
+    }
+
+    private void apply(Map<String, String> values, Source source, List<String> errors) {
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            Setting s = settings.get(e.getKey());
+            if (s == null) { errors.add(e.getKey() + " (" + source.label() + "): unknown setting"); continue; }
+            try {
+                s.value = s.parse(e.getValue());
+                s.source = source;
+            } catch (IllegalArgumentException ex) {
+                errors.add(ex.getMessage() + " (" + source.label() + ")");
+            }
+        }
+    }
+
+    private Map<String, String> readFile(List<String> errors) {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException ex) {
+            errors.add("cannot read " + file + ": " + ex.getMessage());
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String key : props.stringPropertyNames()) values.put(key.trim(), props.getProperty(key));
+        return values;
+    }
+
+    /**
+     * THREADMASTER_QUEUE_CAPACITY and the like. Names this server does not define are skipped:
+     * the three servers share one environment when started together, and not every key exists
+     * in every server.
+     */
+    private Map<String, String> fromEnv(Map<String, String> env) {
+        Map<String, String> byEnvName = new LinkedHashMap<>();
+        for (String key : settings.keySet()) byEnvName.put(envName(key), key);
+        Map<String, String> values = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            String name = e.getKey();
+            if (!name.startsWith(ENV_PREFIX) || name.equals(ENV_PREFIX + "CONFIG")) continue;
+            String key = byEnvName.get(name);
+            if (key != null) values.put(key, e.getValue());
+        }
+        return values;
+    }
+
+    static String envName(String key) {
+        StringBuilder sb = new StringBuilder(ENV_PREFIX);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (Character.isUpperCase(c) && i > 0) sb.append('_');
+            sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Current values with their source, restart-only file edits not yet in effect, and the most
+     * recent changes. {@code detailed} adds each setting's range, liveness and description.
+     */
+    synchronized String toJson(boolean detailed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"version\": ").append(version);
+        if (detailed) sb.append(", \"file\": ").append(quote(file == null ? "" : file.getPath())).append(", \"fileLoaded\": ").append(fileModified != 0);
+        sb.append(", \"settings\": {");
+        boolean first = true;
+        for (Setting s : settings.values()) {
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append(quote(s.key)).append(": {\"value\": ").append(s.format()).append(", \"source\": \"").append(s.source.label()).append('"');
+            if (detailed) {
+                sb.append(", \"live\": ").append(s.live)
+                        .append(", \"min\": ").append(s.format(s.min)).append(", \"max\": ").append(s.format(s.max))
+                        .append(", \"env\": \"").append(envName(s.key)).append("\", \"description\": ").append(quote(s.description));
+            }
+            sb.append('}');
+        }
+        sb.append("}, \"pendingRestart\": {");
+        first = true;
+        for (Map.Entry<String, String> e : pendingRestart.entrySet()) {
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append(quote(e.getKey())).append(": ").append(quote(e.getValue()));
+        }
+        sb.append("}, \"changes\": [");
+        first = true;
+        for (Change c : changes) {
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append("{\"ts\": ").append(c.ts).append(", \"key\": ").append(quote(c.key))
+                    .append(", \"from\": ").append(c.from).append(", \"to\": ").append(c.to)
+                    .append(", \"source\": \"").append(c.source.label()).append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Byte-level HTTP/1.1 framing: request-head lines, request bodies and chunked responses.
+ *
+ * Heads are read straight from the connection's buffered stream instead of through a Reader,
+ * so no body bytes are swallowed by a charset decoder and the body can be streamed from the
+ * same stream in fixed-size reads.
+ */
+final class HttpStreams {
+    static final int MAX_LINE_BYTES = 8192;
+    static final int MAX_HEADERS = 100;
+
+    private HttpStreams() {}
+
+    /** A framing or size violation, carrying the status to answer with. */
+    static final class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final String reason;
+        HttpException(int status, String reason, String message) {
+            super(message);
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Reads one CRLF (or bare LF) terminated line as ISO-8859-1.
+     * Returns null at EOF before any byte; fails with 431 past {@code maxBytes}.
+     */
+    static String readLine(InputStream in, int maxBytes) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                return sb.toString();
+            }
+            if (sb.length() >= maxBytes) throw new HttpException(431, "Request Header Fields Too Large", "line exceeds " + maxBytes + " bytes");
+            sb.append((char)b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /** Reads header lines up to the blank line into a map keyed by lower-cased name. */
+    static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in, MAX_LINE_BYTES)) != null && !line.isEmpty()) {
+            int idx = line.indexOf(':');
+            if (idx > 0) {
+                if (headers.size() >= MAX_HEADERS) throw new HttpException(431, "Request Header Fields Too Large", "more than " + MAX_HEADERS + " headers");
+                headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Body stream for a request with lower-cased {@code headers}, capped at {@code maxBytes}.
+     * Returns null when the request declares no body.
+     */
+    static InputStream bodyStream(InputStream in, Map<String, String> headers, long maxBytes) throws HttpException {
+        String te = headers.get("transfer-encoding");
+        if (te != null) {
+            if (!"chunked".equalsIgnoreCase(te.trim())) throw new HttpException(501, "Not Implemented", "transfer-encoding " + te);
+            return new LimitedInputStream(new ChunkedInputStream(in), maxBytes);
+        }
+        String cl = headers.get("content-length");
+        if (cl == null) return null;
+        long length;
+        try {
+            length = Long.parseLong(cl.trim());
+        } catch (NumberFormatException ex) {
+            throw new HttpException(400, "Bad Request", "invalid content-length");
+        }
+        if (length < 0) throw new HttpException(400, "Bad Request", "negative content-length");
+        if (length > maxBytes) throw new HttpException(413, "Payload Too Large", "content-length " + length + " exceeds " + maxBytes);
+        return new FixedLengthInputStream(in, length);
+    }
+
+    /** Content-Length body: reports EOF after exactly {@code length} bytes, never reads past them. */
+    static final class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b == -1) throw new HttpException(400, "Bad Request", "body ended " + remaining + " bytes early");
+            remaining--;
+            return b;
+        }
+
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(buf, off, (int)Math.min(len, remaining));
+            if (n == -1) throw new HttpException(400, "Bad Request", "body ended " + remaining + " bytes early");
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /** Transfer-Encoding: chunked decoder; chunk extensions and trailers are read and ignored. */
+    static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean started = false;
+        private boolean done = false;
+
+        ChunkedInputStream(InputStream in) { this.in = in; }
+
+        @Override public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            int b = in.read();
+            if (b == -1) throw new HttpException(400, "Bad Request", "truncated chunk");
+            chunkRemaining--;
+            return b;
+        }
+
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextChunk()) return -1;
+            int n = in.read(buf, off, (int)Math.min(len, chunkRemaining));
+            if (n == -1) throw new HttpException(400, "Bad Request", "truncated chunk");
+            chunkRemaining -= n;
+            return n;
+        }
+
+        /** Positions at the next chunk's data; false once the last chunk and trailers are consumed. */
+        private boolean nextChunk() throws IOException {
+            if (done) return false;
+            if (chunkRemaining > 0) return true;
+            if (started) {
+                String crlf = readLine(in, MAX_LINE_BYTES);
+                if (crlf == null || !crlf.isEmpty()) throw new HttpException(400, "Bad Request", "missing CRLF after chunk");
+            }
+            started = true;
+            String sizeLine = readLine(in, MAX_LINE_BYTES);
+            if (sizeLine == null) throw new HttpException(400, "Bad Request", "missing chunk size");
+            int semi = sizeLine.indexOf(';');
+            String hex = (semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim();
+            try {
+                chunkRemaining = Long.parseLong(hex, 16);
+            } catch (NumberFormatException ex) {
+                throw new HttpException(400, "Bad Request", "invalid chunk size '" + hex + "'");
+            }
+            if (chunkRemaining < 0) throw new HttpException(400, "Bad Request", "invalid chunk size");
+            if (chunkRemaining == 0) {
+                String trailer;
+                while ((trailer = readLine(in, MAX_LINE_BYTES)) != null && !trailer.isEmpty()) {
+                    // trailers ignored
+                }
+                done = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Fails with 413 as soon as more than {@code maxBytes} have been read. */
+    static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long count = 0;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) check(1);
+            return b;
+        }
+
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) check(n);
+            return n;
+        }
+
+        private void check(int n) throws HttpException {
+            count += n;
+            if (count > maxBytes) throw new HttpException(413, "Payload Too Large", "body exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Keeps the first {@code threshold} bytes in memory and spools everything beyond that to a
+     * temp file, so a large body never lives on the heap. close() deletes the spool file.
+     */
+    static final class SpoolingSink extends OutputStream {
+        private final int threshold;
+        private final File dir;
+        private byte[] memory = new byte[0];
+        private int memoryUsed = 0;
+        private long total = 0;
+        private File file;
+        private OutputStream fileOut;
+
+        SpoolingSink(int threshold, File dir) {
+            this.threshold = threshold;
+            this.dir = dir;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override public void write(byte[] buf, int off, int len) throws IOException {
+            total += len;
+            int toMemory = fileOut == null ? Math.min(len, threshold - memoryUsed) : 0;
+            if (toMemory > 0) {
+                if (memoryUsed + toMemory > memory.length) {
+                    memory = java.util.Arrays.copyOf(memory, Math.min(threshold, Math.max(8192, Math.max(memory.length * 2, memoryUsed + toMemory))));
+                }
+                System.arraycopy(buf, off, memory, memoryUsed, toMemory);
+                memoryUsed += toMemory;
+                off += toMemory;
+                len -= toMemory;
+            }
+            if (len == 0) return;
+            if (fileOut == null) {
+                file = Files.createTempFile(dir.toPath(), "upload-", ".part").toFile();
+                fileOut = new FileOutputStream(file);
+                fileOut.write(memory, 0, memoryUsed);
+            }
+            fileOut.write(buf, off, len);
+        }
+
+        long size() { return total; }
+
+        boolean isSpooled() { return file != null; }
+
+        @Override public void close() throws IOException {
+            try {
+                if (fileOut != null) fileOut.close();
+            } finally {
+                if (file != null && !file.delete()) file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Transfer-Encoding: chunked writer that coalesces small writes into chunks of up to
+     * {@code coalesceBytes}. Nothing more than one chunk is ever buffered: once the buffer is
+     * full it is written to the (blocking) socket stream, so a slow reader throttles the producer
+     * instead of growing the heap. flush() pushes a partial chunk out immediately, for
+     * progress/event streams; close() writes the terminating zero-length chunk.
+     */
+    static final class ChunkedOutputStream extends OutputStream {
+        private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count = 0;
+        private long bytesWritten = 0;
+        private long chunks = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(OutputStream out, int coalesceBytes) {
+            this.out = out;
+            // Room for the size line in front of the data and the CRLF after it
+            this.buf = new byte[Math.max(64, coalesceBytes) + 12];
+            this.count = 10;
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (closed) throw new IOException("stream closed");
+            if (count == buf.length - 2) emit();
+            buf[count++] = (byte)b;
+        }
+
+        @Override public void write(byte[] src, int off, int len) throws IOException {
+            if (closed) throw new IOException("stream closed");
+            while (len > 0) {
+                int room = buf.length - 2 - count;
+                if (room == 0) { emit(); continue; }
+                int n = Math.min(room, len);
+                System.arraycopy(src, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Writes the buffered data as one chunk with a single write on the underlying stream. */
+        private void emit() throws IOException {
+            int size = count - 10;
+            if (size == 0) return;
+            String hex = Integer.toHexString(size);
+            int start = 10 - hex.length() - 2;
+            for (int i = 0; i < hex.length(); i++) buf[start + i] = (byte)hex.charAt(i);
+            buf[8] = '\r';
+            buf[9] = '\n';
+            buf[count++] = '\r';
+            buf[count++] = '\n';
+            out.write(buf, start, count - start);
+            bytesWritten += size;
+            chunks++;
+            count = 10;
+        }
+
+        @Override public void flush() throws IOException {
+            emit();
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            if (closed) return;
+            emit();
+            out.write(LAST_CHUNK);
+            out.flush();
+            closed = true;
+        }
+
+        long bytesWritten() { return bytesWritten + (count - 10); }
+
+        long chunks() { return chunks; }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
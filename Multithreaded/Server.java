@@ -1,12 +1,12 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Base64;
@@ -14,22 +14,92 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
     private volatile long totalRequests = 0;
     private volatile long totalLatencyNanos = 0;
-    private volatile int activeConnections = 0;
-    private final long[] lastLatenciesNanos = new long[1024];
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+    private final long[] lastLatenciesNanos;
     private volatile int latencyWriteIndex = 0;
+    private final AtomicLong uploads = new AtomicLong(0);
+    private final AtomicLong uploadBytes = new AtomicLong(0);
+    private final AtomicInteger sseStreams = new AtomicInteger(0);
+    private final AtomicLong rejectedConnections = new AtomicLong(0);
+    private final BufferPool buffers;
+    private final Clock clock = Clock.shared();
+    private final ResponseWriter responses;
+    private final AccessLog accessLog;
+    // Live settings, read on every use so /admin/config and file edits apply without a restart
+    private final Config config;
+    private final Config.Setting streamBufferBytes;
+    private final Config.Setting requestTimeoutMillis;
+    private final Config.Setting drainMillis;
+    private final Config.Setting maxConnections;
+
+    static final long DEFAULT_DRAIN_MILLIS = 10_000;
+
+    // Request bodies are streamed in fixed-size reads; above the threshold /upload spools to disk
+    static final long MAX_UPLOAD_BYTES = 256L * 1024 * 1024;
+    static final int SPOOL_THRESHOLD_BYTES = 1024 * 1024;
+    static final int UPLOAD_BUFFER_BYTES = 8192;
+    static final File SPOOL_DIR = new File(System.getProperty("java.io.tmpdir"));
+    static final int DEFAULT_CHUNK_BYTES = 16 * 1024;
+    private static final byte[] CONTINUE_100 = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // /io payload; only ever read, so one shared array serves every request
+    private static final byte[] IO_FILL = new byte[8192];
+    static { java.util.Arrays.fill(IO_FILL, (byte)'a'); }
+    private static final byte[] SSE_HEADERS = ResponseWriter.ascii("Cache-Control: no-cache\r\n");
+    private static final byte[] SERVICE_UNAVAILABLE = ResponseWriter.ascii(
+            "HTTP/1.1 503 Service Unavailable\r\nContent-Type: text/plain\r\nContent-Length: 12\r\nConnection: close\r\n\r\nServer busy\n");
+
+    // Graceful shutdown: stop accepting, wait for in-flight requests, close WebSocket sessions
+    private volatile boolean draining = false;
+    private volatile ServerSocket listener;
+    private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+    private final CountDownLatch shutdownComplete = new CountDownLatch(1);
 
     // Simple signaling hub: roomId -> set of clients
     private final ConcurrentHashMap<String, CopyOnWriteArraySet<Client>> rooms = new ConcurrentHashMap<>();
 
     private static class Client {
         final Socket socket;
+        final InputStream in;
         final OutputStream out;
         volatile boolean open = true;
-        Client(Socket s) throws IOException { this.socket = s; this.out = s.getOutputStream(); }
+        Client(Socket s, InputStream in) throws IOException { this.socket = s; this.in = in; this.out = s.getOutputStream(); }
+    }
+
+    /**
+     * Every tunable of the multithreaded server. Restart-only ones are read once at startup;
+     * live ones are held as {@link Config.Setting} and read where they are used.
+     */
+    static Config settings() {
+        Config c = new Config("Multithreaded");
+        c.integer("port", 8012, 1, 65535, false, "listen port");
+        c.integer("maxConnections", 0, 0, 100_000, true, "connection threads running at once before 503; 0 is unlimited");
+        c.integer("latencyWindow", 1024, 16, 1 << 20, false, "recent requests kept for p95LatencyMs, rounded up to a power of two");
+        c.integer("streamBufferBytes", 8192, 512, 64 * 1024, true, "read buffer for new connections");
+        c.integer("requestTimeoutMillis", 0, 0, 3_600_000, true, "read timeout for request heads and bodies on new connections; 0 waits forever");
+        c.integer("drainMillis", DEFAULT_DRAIN_MILLIS, 0, 600_000, true, "graceful shutdown deadline");
+        return c;
+    }
+
+    Server(Config config, BufferPool buffers, AccessLog accessLog) {
+        this.config = config;
+        this.streamBufferBytes = config.setting("streamBufferBytes");
+        this.requestTimeoutMillis = config.setting("requestTimeoutMillis");
+        this.drainMillis = config.setting("drainMillis");
+        int window = config.setting("latencyWindow").asInt();
+        this.lastLatenciesNanos = new long[Integer.bitCount(window) == 1 ? window : Integer.highestOneBit(window) << 1];
+        this.maxConnections = config.setting("maxConnections");
+        this.buffers = buffers;
+        this.responses = new ResponseWriter(buffers, clock);
+        this.accessLog = accessLog;
     }
 
     private void recordLatency(long nanos) {
@@ -55,14 +125,14 @@ public class Server {
         return params;
     }
 
-    private void respond(BufferedWriter writer, int status, String statusText, String contentType, String body) throws IOException {
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        writer.write("HTTP/1.1 " + status + " " + statusText + "\r\n");
-        writer.write("Content-Type: " + contentType + "\r\n");
-        writer.write("Content-Length: " + bytes.length + "\r\n");
-        writer.write("Connection: close\r\n\r\n");
-        writer.write(body);
-        writer.flush();
+    private void respond(OutputStream out, int status, String statusText, String contentType, String body) throws IOException {
+        responses.respond(out, status, statusText, contentType, body);
+    }
+
+    /** Writes a response head without Content-Length and returns the chunked body stream. */
+    private HttpStreams.ChunkedOutputStream respondChunked(OutputStream rawOut, int status, String statusText, String contentType, byte[] extraHeaders, int coalesceBytes) throws IOException {
+        responses.writeChunkedHead(rawOut, status, statusText, contentType, extraHeaders);
+        return new HttpStreams.ChunkedOutputStream(rawOut, coalesceBytes);
     }
 
     private void busyWork(long ms) {
@@ -73,12 +143,10 @@ public class Server {
     }
 
     private void streamBytes(OutputStream out, long bytes) throws IOException {
-        byte[] buf = new byte[8192];
-        for (int i = 0; i < buf.length; i++) buf[i] = 'a';
         long remaining = bytes;
         while (remaining > 0) {
-            int toWrite = (int)Math.min(remaining, buf.length);
-            out.write(buf, 0, toWrite);
+            int toWrite = (int)Math.min(remaining, IO_FILL.length);
+            out.write(IO_FILL, 0, toWrite);
             remaining -= toWrite;
         }
     }
@@ -91,10 +159,23 @@ public class Server {
         long p95 = snapshot[(int)(snapshot.length * 0.95) - 1];
         return "{\n" +
                 "  \"model\": \"" + modelName + "\",\n" +
-                "  \"activeConnections\": " + activeConnections + ",\n" +
+                "  \"activeConnections\": " + activeConnections.get() + ",\n" +
                 "  \"totalRequests\": " + totalReq + ",\n" +
                 "  \"avgLatencyMs\": " + (avgNs / 1_000_000.0) + ",\n" +
-                "  \"p95LatencyMs\": " + (p95 / 1_000_000.0) + "\n" +
+                "  \"p95LatencyMs\": " + (p95 / 1_000_000.0) + ",\n" +
+                "  \"uploads\": " + uploads.get() + ",\n" +
+                "  \"uploadBytes\": " + uploadBytes.get() + ",\n" +
+                "  \"metricStreams\": " + sseStreams.get() + ",\n" +
+                "  \"rejectedConnections\": " + rejectedConnections.get() + ",\n" +
+                "  \"bufferPool\": {\"acquires\": " + buffers.acquires() + ", \"hitRate\": " + buffers.hitRate()
+                        + ", \"allocations\": " + buffers.allocations() + ", \"unpooled\": " + buffers.unpooled()
+                        + ", \"outstanding\": " + buffers.outstanding() + ", \"pooled\": " + buffers.pooled()
+                        + ", \"leaks\": " + buffers.leaks() + "},\n" +
+                "  \"accessLog\": {\"logged\": " + accessLog.logged() + ", \"dropped\": " + accessLog.dropped()
+                        + ", \"written\": " + accessLog.written() + ", \"rotations\": " + accessLog.rotations()
+                        + ", \"writeErrors\": " + accessLog.writeErrors() + "},\n" +
+                "  \"config\": " + config.toJson(false) + ",\n" +
+                "  \"draining\": " + draining + "\n" +
                 "}\n";
     }
 
@@ -138,25 +219,18 @@ public class Server {
                 "</body></html>";
     }
 
-    private void handleHttpOrWebSocket(Socket clientSocket) {
+    private void handleHttpOrWebSocket(Socket clientSocket, AccessLog.Exchange exchange) {
         long start = System.nanoTime();
-        activeConnections++;
+        BufferPool.PooledInputStream in = null;
+        IOException error = null;
         try {
-            InputStream in = clientSocket.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-            OutputStream rawOut = clientSocket.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8));
+            clientSocket.setSoTimeout(requestTimeoutMillis.asInt());
+            OutputStream rawOut = exchange.wrap(clientSocket.getOutputStream());
+            in = buffers.inputStream(clientSocket.getInputStream(), streamBufferBytes.asInt());
 
-            String requestLine = reader.readLine();
+            String requestLine = HttpStreams.readLine(in, HttpStreams.MAX_LINE_BYTES);
             if (requestLine == null || requestLine.isEmpty()) return;
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                int idx = line.indexOf(':');
-                if (idx > 0) {
-                    headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
-                }
-            }
+            Map<String, String> headers = HttpStreams.readHeaders(in);
 
             String[] parts = requestLine.split(" ", 3);
             String method = parts.length > 0 ? parts[0] : "";
@@ -165,67 +239,320 @@ public class Server {
             String query = "";
             int qIdx = target.indexOf('?');
             if (qIdx >= 0) { path = target.substring(0, qIdx); query = target.substring(qIdx + 1); }
+            exchange.method = method;
+            exchange.path = path;
             Map<String, String> queryParams = parseQuery(query);
 
+            if (path.startsWith("/admin/config")) {
+                handleConfigAdmin(clientSocket, rawOut, method, path, queryParams);
+                return;
+            }
+
+            if ("/admin/shutdown".equals(path)) {
+                handleShutdownAdmin(clientSocket, rawOut, method, queryParams);
+                return;
+            }
+
             boolean isWebSocket = "websocket".equalsIgnoreCase(headers.getOrDefault("upgrade", ""));
             if (isWebSocket && "/ws".equals(path)) {
-                doWebSocketHandshakeAndServe(clientSocket, headers, queryParams);
+                doWebSocketHandshakeAndServe(clientSocket, in, headers, queryParams);
+                return;
+            }
+
+            if ("/upload".equals(path)) {
+                if ("POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method)) {
+                    handleUpload(in, rawOut, headers);
+                } else {
+                    respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+                }
                 return;
             }
 
             if (!"GET".equalsIgnoreCase(method)) {
-                respond(writer, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+                respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
                 return;
             }
 
             switch (path) {
                 case "/":
-                    respond(writer, 200, "OK", "text/html; charset=utf-8", getPlaceholderIndexHtml());
+                    respond(rawOut, 200, "OK", "text/html; charset=utf-8", getPlaceholderIndexHtml());
                     break;
                 case "/hello":
-                    respond(writer, 200, "OK", "text/plain; charset=utf-8", "Hello from multithreaded server\n");
+                    respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "Hello from multithreaded server\n");
                     break;
                 case "/compute": {
                     long ms = parseLongOrDefault(queryParams.get("ms"), 50);
                     busyWork(ms);
-                    respond(writer, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
+                    respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
                     break;
                 }
                 case "/io": {
                     long bytes = parseLongOrDefault(queryParams.get("bytes"), 1024 * 1024);
-                    String headersOut = "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: application/octet-stream\r\n" +
-                            "Content-Length: " + bytes + "\r\n" +
-                            "Connection: close\r\n\r\n";
-                    writer.write(headersOut);
-                    writer.flush();
-                    streamBytes(rawOut, bytes);
+                    if (Boolean.parseBoolean(queryParams.get("chunked")) || "1".equals(queryParams.get("chunked"))) {
+                        long chunk = Math.max(64, Math.min(1 << 20, parseLongOrDefault(queryParams.get("chunk"), DEFAULT_CHUNK_BYTES)));
+                        try (HttpStreams.ChunkedOutputStream body = respondChunked(rawOut, 200, "OK", "application/octet-stream", ResponseWriter.NO_HEADERS, (int)chunk)) {
+                            streamBytes(body, bytes);
+                        }
+                        break;
+                    }
+                    // The head and the first block of the body leave in one write
+                    int first = (int)Math.max(0, Math.min(bytes, IO_FILL.length));
+                    responses.writeHead(rawOut, 200, "OK", "application/octet-stream", bytes, IO_FILL, first);
+                    streamBytes(rawOut, bytes - first);
                     rawOut.flush();
                     break;
                 }
                 case "/metrics":
-                    respond(writer, 200, "OK", "application/json; charset=utf-8", getMetricsJson("multithreaded"));
+                    respond(rawOut, 200, "OK", "application/json; charset=utf-8", getMetricsJson("multithreaded"));
+                    break;
+                case "/metrics/stream":
+                    sseStreams.incrementAndGet();
+                    try {
+                        streamMetrics(rawOut, queryParams);
+                    } finally {
+                        sseStreams.decrementAndGet();
+                    }
                     break;
                 default:
-                    respond(writer, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+                    respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
             }
+        } catch (HttpStreams.HttpException ex) {
+            respondError(exchange, ex);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            error = ex;
         } finally {
             try { clientSocket.close(); } catch (IOException ignore) {}
-            long elapsed = System.nanoTime() - start;
-            recordLatency(elapsed);
-            activeConnections--;
+            if (in != null) in.release();
+            long end = System.nanoTime();
+            recordLatency(end - start);
+            accessLog.log(exchange, start, end, error);
+            activeConnections.decrementAndGet(); // taken by reserveConnection on the accept thread
             totalRequests++;
         }
     }
 
+    /**
+     * Server-Sent Events: pushes a /metrics snapshot every intervalMs over one chunked response
+     * until the client goes away, {@code count} events were sent, or the server drains.
+     */
+    private void streamMetrics(OutputStream rawOut, Map<String, String> queryParams) throws IOException {
+        long interval = Math.max(100, Math.min(60_000, parseLongOrDefault(queryParams.get("intervalMs"), 1000)));
+        long count = parseLongOrDefault(queryParams.get("count"), 0);
+        try (HttpStreams.ChunkedOutputStream body = respondChunked(rawOut, 200, "OK", "text/event-stream; charset=utf-8", SSE_HEADERS, DEFAULT_CHUNK_BYTES)) {
+            body.write(("retry: " + interval + "\n\n").getBytes(StandardCharsets.UTF_8));
+            for (long i = 0; (count <= 0 || i < count) && !draining; i++) {
+                if (i > 0 && !sleepUnlessDraining(interval)) break;
+                String json = getMetricsJson("multithreaded").replace("\n", "");
+                body.write(("id: " + i + "\nevent: metrics\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+                body.flush();
+            }
+        } catch (IOException clientGone) {
+            // the subscriber closed the stream
+        }
+    }
+
+    private boolean sleepUnlessDraining(long millis) {
+        long end = clock.nanos() + millis * 1_000_000L;
+        try {
+            while (!draining) {
+                long left = end - clock.nanos();
+                if (left <= 0) return true;
+                Thread.sleep(Math.min(100, Math.max(1, left / 1_000_000L)));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void respondError(OutputStream out, HttpStreams.HttpException ex) {
+        try {
+            respond(out, ex.status, ex.reason, "text/plain; charset=utf-8", ex.getMessage() + "\n");
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * Streams the request body through SHA-256 in fixed-size reads. Nothing beyond
+     * SPOOL_THRESHOLD_BYTES is held on the heap; the rest is spooled to a temp file.
+     */
+    private void handleUpload(InputStream in, OutputStream rawOut, Map<String, String> headers) throws IOException {
+        InputStream body = HttpStreams.bodyStream(in, headers, MAX_UPLOAD_BYTES);
+        if (body == null) {
+            respond(rawOut, 411, "Length Required", "text/plain; charset=utf-8", "Content-Length or chunked body required\n");
+            return;
+        }
+        if ("100-continue".equalsIgnoreCase(headers.getOrDefault("expect", ""))) {
+            rawOut.write(CONTINUE_100);
+            rawOut.flush();
+        }
+        long start = System.nanoTime();
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (BufferPool.Buffer buffer = buffers.acquire(UPLOAD_BUFFER_BYTES);
+                HttpStreams.SpoolingSink sink = new HttpStreams.SpoolingSink(SPOOL_THRESHOLD_BYTES, SPOOL_DIR)) {
+            byte[] buf = buffer.array;
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                sha256.update(buf, 0, n);
+                sink.write(buf, 0, n);
+            }
+            uploads.incrementAndGet();
+            uploadBytes.addAndGet(sink.size());
+            respond(rawOut, 200, "OK", "application/json; charset=utf-8", "{\"bytes\": " + sink.size()
+                    + ", \"sha256\": \"" + HttpStreams.hex(sha256.digest()) + "\", \"spooled\": " + sink.isSpooled()
+                    + ", \"elapsedMs\": " + ((System.nanoTime() - start) / 1_000_000.0) + "}\n");
+        }
+    }
+
+    private static boolean isLoopback(Socket s) {
+        return s.getInetAddress() != null && s.getInetAddress().isLoopbackAddress();
+    }
+
+    /**
+     * Binds the listening socket with SO_REUSEPORT where the platform supports it, so a
+     * replacement process can bind the same port and take traffic before this one exits.
+     */
+    static ServerSocket bindListener(int port) throws IOException {
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        if (ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        ss.bind(new InetSocketAddress(port));
+        return ss;
+    }
+
+    /**
+     * Stops accepting, waits for in-flight connection threads until the deadline and asks
+     * every WebSocket peer to close (1001 Going Away). Idempotent.
+     */
+    void shutdown(long drainMillis) {
+        if (!shutdownStarted.compareAndSet(false, true)) {
+            try { shutdownComplete.await(drainMillis + 1000, TimeUnit.MILLISECONDS); } catch (InterruptedException ignore) {}
+            return;
+        }
+        long deadline = clock.nanos() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        System.out.println("[Multithreaded] Draining (deadline " + drainMillis + " ms)");
+        draining = true;
+        ServerSocket ss = listener;
+        if (ss != null) { try { ss.close(); } catch (IOException ignore) {} }
+
+        byte[] goingAway = closePayload(1001, "server shutting down");
+        for (CopyOnWriteArraySet<Client> set : rooms.values()) {
+            for (Client c : set) if (c.open) sendControl(c, 0x8, goingAway);
+        }
+        while (clock.nanos() - deadline < 0 && activeConnections.get() > 0) {
+            try { Thread.sleep(20); } catch (InterruptedException ignore) { break; }
+        }
+        for (CopyOnWriteArraySet<Client> set : rooms.values()) {
+            for (Client c : set) {
+                c.open = false;
+                try { c.socket.close(); } catch (IOException ignore) {}
+            }
+        }
+        accessLog.close();
+        System.out.println("[Multithreaded] Shutdown complete (active=" + activeConnections.get() + ")");
+        shutdownComplete.countDown();
+    }
+
+    /**
+     * POST /admin/shutdown?drainMs=N drains and exits. Loopback only, and POST only, so a page
+     * in a local browser cannot stop the server with an image or a link.
+     */
+    private void handleShutdownAdmin(Socket clientSocket, OutputStream rawOut, String method, Map<String, String> queryParams) throws IOException {
+        if (!isLoopback(clientSocket)) {
+            respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+            return;
+        }
+        if (!"POST".equalsIgnoreCase(method)) {
+            respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            return;
+        }
+        long drainMs = parseLongOrDefault(queryParams.get("drainMs"), drainMillis());
+        respond(rawOut, 202, "Accepted", "text/plain; charset=utf-8", "draining:" + drainMs + "ms\n");
+        Thread t = new Thread(() -> { shutdown(drainMs); System.exit(0); }, "admin-shutdown");
+        t.start();
+    }
+
+    /**
+     * GET /admin/config lists every setting; POST /admin/config?key=value&... changes live ones,
+     * all or nothing; POST /admin/config/reload re-reads the config file. Loopback only.
+     */
+    private void handleConfigAdmin(Socket clientSocket, OutputStream rawOut, String method, String path, Map<String, String> queryParams) throws IOException {
+        if (clientSocket.getInetAddress() == null || !clientSocket.getInetAddress().isLoopbackAddress()) {
+            respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+            return;
+        }
+        boolean post = "POST".equalsIgnoreCase(method);
+        java.util.List<String> errors;
+        if ("/admin/config".equals(path) && "GET".equalsIgnoreCase(method)) {
+            errors = java.util.Collections.emptyList();
+        } else if ("/admin/config".equals(path) && post) {
+            errors = config.update(queryParams, Config.Source.ADMIN);
+        } else if ("/admin/config/reload".equals(path) && post) {
+            errors = config.reload();
+        } else if ("/admin/config".equals(path) || "/admin/config/reload".equals(path)) {
+            respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            return;
+        } else {
+            respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+            return;
+        }
+        if (!errors.isEmpty()) {
+            respond(rawOut, 400, "Bad Request", "text/plain; charset=utf-8", String.join("\n", errors) + "\n");
+            return;
+        }
+        respond(rawOut, 200, "OK", "application/json; charset=utf-8", config.toJson(true) + "\n");
+    }
+
+    /** Plaintext 503 written by the accept loop when maxConnections threads are already running. */
+    private void reject(Socket clientSocket) {
+        rejectedConnections.incrementAndGet();
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(SERVICE_UNAVAILABLE);
+            out.flush();
+        } catch (IOException ignore) {
+        } finally {
+            try { clientSocket.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Counts a connection in before its thread starts, so a burst of accepts cannot start more
+     * than maxConnections threads before any of them has run. False at the limit; otherwise
+     * handleHttpOrWebSocket gives the slot back when the connection ends.
+     */
+    private boolean reserveConnection() {
+        while (true) {
+            int limit = maxConnections.asInt();
+            int n = activeConnections.get();
+            if (limit > 0 && n >= limit) return false;
+            if (activeConnections.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    long drainMillis() { return drainMillis.asLong(); }
+
+    private static byte[] closePayload(int code, String reason) {
+        byte[] r = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + r.length];
+        payload[0] = (byte)(code >>> 8);
+        payload[1] = (byte)code;
+        System.arraycopy(r, 0, payload, 2, r.length);
+        return payload;
+    }
+
     private long parseLongOrDefault(String s, long def) {
         if (s == null) return def;
         try { return Long.parseLong(s); } catch (NumberFormatException ex) { return def; }
     }
 
-    private void doWebSocketHandshakeAndServe(Socket clientSocket, Map<String,String> headers, Map<String,String> queryParams) throws IOException {
+    private void doWebSocketHandshakeAndServe(Socket clientSocket, InputStream in, Map<String,String> headers, Map<String,String> queryParams) throws IOException {
         String key = headers.get("sec-websocket-key");
         if (key == null) return;
         String accept = computeWebSocketAccept(key);
@@ -236,11 +563,13 @@ public class Server {
                 "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
         rawOut.write(response.getBytes(StandardCharsets.UTF_8));
         rawOut.flush();
+        // Sessions idle between messages; requestTimeoutMillis only bounds the HTTP exchange
+        clientSocket.setSoTimeout(0);
 
         String room = queryParams.getOrDefault("room", "default");
         Client client = null;
         try {
-            client = new Client(clientSocket);
+            client = new Client(clientSocket, in);
             rooms.computeIfAbsent(room, r -> new CopyOnWriteArraySet<>()).add(client);
             // Notify join to the new client
             sendText(client, "{\"type\":\"join\",\"room\":\""+room+"\"}");
@@ -270,47 +599,47 @@ public class Server {
     }
 
     private void readWebSocketLoop(Client client, String room) throws IOException {
-        InputStream in = client.socket.getInputStream();
-        byte[] header = new byte[2];
-        while (client.open) {
-            int r = readFully(in, header, 0, 2);
-            if (r < 2) break;
-            int b0 = header[0] & 0xFF;
-            int b1 = header[1] & 0xFF;
-            boolean fin = (b0 & 0x80) != 0;
-            int opcode = b0 & 0x0F;
-            boolean masked = (b1 & 0x80) != 0;
-            long payloadLen = b1 & 0x7F;
-            if (payloadLen == 126) {
-                byte[] ext = new byte[2];
-                readFully(in, ext, 0, 2);
-                payloadLen = ((ext[0] & 0xFF) << 8) | (ext[1] & 0xFF);
-            } else if (payloadLen == 127) {
-                byte[] ext = new byte[8];
-                readFully(in, ext, 0, 8);
-                payloadLen = 0;
-                for (int i = 0; i < 8; i++) payloadLen = (payloadLen << 8) | (ext[i] & 0xFF);
-            }
-            byte[] mask = null;
-            if (masked) {
-                mask = new byte[4];
-                readFully(in, mask, 0, 4);
-            }
-            byte[] payload = new byte[(int)payloadLen];
-            if (payloadLen > 0) readFully(in, payload, 0, (int)payloadLen);
-            if (masked && payloadLen > 0) {
-                for (int i = 0; i < payload.length; i++) payload[i] = (byte)(payload[i] ^ mask[i % 4]);
-            }
-            if (opcode == 0x8) { // close
-                break;
-            } else if (opcode == 0x1) { // text
-                String text = new String(payload, StandardCharsets.UTF_8);
-                broadcast(room, client, text);
-            } else if (opcode == 0x9) { // ping
-                sendControl(client, 0xA, payload);
-            }
-            if (!fin) {
-                // ignore continuation for simplicity
+        InputStream in = client.in;
+        // header[0..1] fixed header, [2..9] extended length, [10..13] masking key
+        try (BufferPool.Buffer scratch = buffers.acquire(16)) {
+            byte[] header = scratch.array;
+            while (client.open) {
+                int r = readFully(in, header, 0, 2);
+                if (r < 2) break;
+                int b0 = header[0] & 0xFF;
+                int b1 = header[1] & 0xFF;
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+                boolean masked = (b1 & 0x80) != 0;
+                long payloadLen = b1 & 0x7F;
+                if (payloadLen == 126) {
+                    readFully(in, header, 2, 2);
+                    payloadLen = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                } else if (payloadLen == 127) {
+                    readFully(in, header, 2, 8);
+                    payloadLen = 0;
+                    for (int i = 0; i < 8; i++) payloadLen = (payloadLen << 8) | (header[2 + i] & 0xFF);
+                }
+                if (masked) readFully(in, header, 10, 4);
+                int len = (int)payloadLen;
+                try (BufferPool.Buffer frame = buffers.acquire(len)) {
+                    byte[] payload = frame.array;
+                    if (len > 0) readFully(in, payload, 0, len);
+                    if (masked) {
+                        for (int i = 0; i < len; i++) payload[i] = (byte)(payload[i] ^ header[10 + (i & 3)]);
+                    }
+                    if (opcode == 0x8) { // close: echo unless we started the handshake
+                        if (!draining) sendFrame(client, 0x8, payload, len);
+                        break;
+                    } else if (opcode == 0x1) { // text: relayed as-is, no decode/re-encode per peer
+                        broadcast(room, client, payload, len);
+                    } else if (opcode == 0x9) { // ping
+                        sendFrame(client, 0xA, payload, len);
+                    }
+                }
+                if (!fin) {
+                    // ignore continuation for simplicity
+                }
             }
         }
     }
@@ -326,59 +655,104 @@ public class Server {
     }
 
     private void broadcast(String room, Client sender, String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        broadcast(room, sender, payload, payload.length);
+    }
+
+    /** Encodes the text frame once into a pooled buffer and writes it to every other peer. */
+    private void broadcast(String room, Client sender, byte[] payload, int len) {
         CopyOnWriteArraySet<Client> set = rooms.get(room);
         if (set == null) return;
-        for (Client c : set) {
-            if (c != sender && c.open) {
-                sendText(c, message);
+        try (BufferPool.Buffer frame = buffers.acquire(len + 10)) {
+            int frameLen = encodeFrame(frame.array, 0x1, payload, len);
+            for (Client c : set) {
+                if (c != sender && c.open) {
+                    writeFrame(c, frame.array, frameLen);
+                }
             }
         }
     }
 
-    private synchronized void sendText(Client client, String text) {
-        try {
-            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
-            OutputStream out = client.out;
-            int b0 = 0x80 | 0x1; // FIN + text
-            out.write(b0);
-            if (payload.length <= 125) {
-                out.write(payload.length);
-            } else if (payload.length <= 0xFFFF) {
-                out.write(126);
-                out.write((payload.length >>> 8) & 0xFF);
-                out.write(payload.length & 0xFF);
-            } else {
-                out.write(127);
-                long len = payload.length;
-                for (int i = 7; i >= 0; i--) out.write((int)(len >>> (8 * i)) & 0xFF);
-            }
-            out.write(payload);
-            out.flush();
-        } catch (IOException ignore) {}
+    /** Unmasked, unfragmented server frame: FIN + opcode, length, payload. Returns the frame size. */
+    private static int encodeFrame(byte[] frame, int opcode, byte[] payload, int len) {
+        int pos = 0;
+        frame[pos++] = (byte)(0x80 | opcode);
+        if (len <= 125) {
+            frame[pos++] = (byte)len;
+        } else if (len <= 0xFFFF) {
+            frame[pos++] = (byte)126;
+            frame[pos++] = (byte)(len >>> 8);
+            frame[pos++] = (byte)len;
+        } else {
+            frame[pos++] = (byte)127;
+            for (int i = 7; i >= 0; i--) frame[pos++] = (byte)((long)len >>> (8 * i));
+        }
+        System.arraycopy(payload, 0, frame, pos, len);
+        return pos + len;
     }
 
-    private synchronized void sendControl(Client client, int opcode, byte[] payload) {
+    private synchronized void writeFrame(Client client, byte[] frame, int len) {
         try {
-            OutputStream out = client.out;
-            out.write(0x80 | opcode);
-            int len = payload == null ? 0 : payload.length;
-            out.write(len);
-            if (len > 0) out.write(payload);
-            out.flush();
+            client.out.write(frame, 0, len);
+            client.out.flush();
         } catch (IOException ignore) {}
     }
 
+    private void sendFrame(Client client, int opcode, byte[] payload, int len) {
+        try (BufferPool.Buffer frame = buffers.acquire(len + 10)) {
+            writeFrame(client, frame.array, encodeFrame(frame.array, opcode, payload, len));
+        }
+    }
+
+    private void sendText(Client client, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        sendFrame(client, 0x1, payload, payload.length);
+    }
+
+    private void sendControl(Client client, int opcode, byte[] payload) {
+        sendFrame(client, opcode, payload, payload == null ? 0 : payload.length);
+    }
+
     public static void main(String[] args) {
-        int port = 8012;
-        Server server = new Server();
+        Config config = settings();
+        try {
+            config.load(args, System.getenv());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("[Multithreaded] invalid configuration:\n" + ex.getMessage());
+            System.exit(2);
+        }
+        config.watch(2000);
+        int port = config.setting("port").asInt();
+        // Connection threads are short-lived, so no per-thread cache: everything goes through the shared free lists
+        Server server = new Server(config, new BufferPool(0, 4 * 1024 * 1024, false),
+                new AccessLog(new java.io.File("../.run_logs/Multithreaded_access.log"), 64 * 1024, 64L * 1024 * 1024, 5, Clock.shared()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(server.drainMillis()), "shutdown-hook"));
 
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            ServerSocket serverSocket = bindListener(port);
+            server.listener = serverSocket;
             System.out.println("[Multithreaded] Server is listening on port " + port);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                Thread thread = new Thread(() -> server.handleHttpOrWebSocket(clientSocket));
-                thread.start();
+            while (!server.draining) {
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (SocketException closed) {
+                    if (server.draining) break;
+                    throw closed;
+                }
+                if (!server.reserveConnection()) {
+                    server.reject(clientSocket);
+                    continue;
+                }
+                AccessLog.Exchange exchange = new AccessLog.Exchange(System.nanoTime());
+                Thread thread = new Thread(() -> server.handleHttpOrWebSocket(clientSocket, exchange));
+                try {
+                    thread.start();
+                } catch (OutOfMemoryError noThread) {
+                    // No native thread to be had: give the slot back and turn the client away
+                    server.activeConnections.decrementAndGet();
+                    server.reject(clientSocket);
+                }
             }
         } catch (IOException ex) {
             ex.printStackTrace();
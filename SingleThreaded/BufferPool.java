@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of heap byte arrays for socket reads, writes and WebSocket frames.
+ *
+ * acquire() is served from a small per-thread cache first, then from a shared free list per
+ * size class, and only allocates on a miss. Requests above the largest class are allocated
+ * unpooled and dropped on release. Arrays are heap rather than direct: every I/O path here is
+ * a blocking java.io stream that takes a byte[], so a direct buffer would only add a copy.
+ *
+ * Leak detection: every buffer registers a Cleaner once, when it is created. If it becomes
+ * unreachable while checked out, the leak is counted and logged, with the acquiring stack
+ * when {@code traceLeaks} is on (that costs a stack walk per acquire, so it is off by default).
+ */
+final class BufferPool {
+    static final int[] SIZE_CLASSES = { 512, 2 * 1024, 8 * 1024, 16 * 1024, 32 * 1024, 64 * 1024 };
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** A checked-out array. close() returns it; using it afterwards is a bug. */
+    static final class Buffer implements AutoCloseable {
+        final byte[] array;
+        private final int sizeClass;
+        private final State state;
+
+        private Buffer(BufferPool pool, byte[] array, int sizeClass) {
+            this.array = array;
+            this.sizeClass = sizeClass;
+            this.state = new State(pool, array.length);
+            CLEANER.register(this, state);
+        }
+
+        @Override public void close() { state.pool.release(this); }
+    }
+
+    /** Cleaner action of one Buffer; must not reference the Buffer itself. */
+    private static final class State implements Runnable {
+        final BufferPool pool;
+        final int capacity;
+        volatile boolean out;
+        volatile Throwable site;
+
+        State(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.capacity = capacity;
+        }
+
+        @Override public void run() {
+            if (out) pool.leaked(capacity, site);
+        }
+    }
+
+    /** Free list of one size class, shared by all threads. */
+    private static final class Depot {
+        private final Buffer[] free;
+        private int count = 0;
+
+        Depot(int capacity) { this.free = new Buffer[capacity]; }
+
+        synchronized Buffer pop() {
+            if (count == 0) return null;
+            Buffer b = free[--count];
+            free[count] = null;
+            return b;
+        }
+
+        synchronized boolean push(Buffer b) {
+            if (count == free.length) return false;
+            free[count++] = b;
+            return true;
+        }
+
+        synchronized int size() { return count; }
+    }
+
+    private static final class ThreadCache {
+        final Buffer[][] slots;
+        final int[] counts;
+
+        ThreadCache(int perClass) {
+            slots = new Buffer[SIZE_CLASSES.length][perClass];
+            counts = new int[SIZE_CLASSES.length];
+        }
+    }
+
+    private final Depot[] depots = new Depot[SIZE_CLASSES.length];
+    private final int threadCacheSlots;
+    private final boolean traceLeaks;
+    private final ThreadLocal<ThreadCache> threadCache;
+    private final AtomicLong acquires = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong unpooled = new AtomicLong(0);
+    private final AtomicLong outstanding = new AtomicLong(0);
+    private final AtomicLong leaks = new AtomicLong(0);
+
+    /**
+     * @param threadCacheSlots buffers kept per size class per thread; 0 for short-lived threads
+     * @param maxBytesPerClass upper bound on the bytes a shared free list retains per size class
+     */
+    BufferPool(int threadCacheSlots, int maxBytesPerClass, boolean traceLeaks) {
+        this.threadCacheSlots = threadCacheSlots;
+        this.traceLeaks = traceLeaks;
+        this.threadCache = ThreadLocal.withInitial(() -> new ThreadCache(threadCacheSlots));
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            depots[i] = new Depot(Math.max(16, maxBytesPerClass / SIZE_CLASSES[i]));
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    /** A buffer of at least {@code minCapacity} bytes; its contents are whatever the last user left. */
+    Buffer acquire(int minCapacity) {
+        acquires.incrementAndGet();
+        int sc = sizeClass(minCapacity);
+        Buffer b = null;
+        if (sc >= 0) {
+            if (threadCacheSlots > 0) {
+                ThreadCache tc = threadCache.get();
+                int n = tc.counts[sc];
+                if (n > 0) {
+                    b = tc.slots[sc][--n];
+                    tc.slots[sc][n] = null;
+                    tc.counts[sc] = n;
+                }
+            }
+            if (b == null) b = depots[sc].pop();
+            if (b != null) {
+                hits.incrementAndGet();
+            } else {
+                allocations.incrementAndGet();
+                b = new Buffer(this, new byte[SIZE_CLASSES[sc]], sc);
+            }
+        } else {
+            unpooled.incrementAndGet();
+            b = new Buffer(this, new byte[minCapacity], -1);
+        }
+        b.state.out = true;
+        if (traceLeaks) b.state.site = new Throwable("buffer acquired by " + Thread.currentThread().getName());
+        outstanding.incrementAndGet();
+        return b;
+    }
+
+    private void release(Buffer b) {
+        State s = b.state;
+        if (!s.out) throw new IllegalStateException("buffer released twice");
+        s.out = false;
+        s.site = null;
+        outstanding.decrementAndGet();
+        int sc = b.sizeClass;
+        if (sc < 0) return;
+        if (threadCacheSlots > 0) {
+            ThreadCache tc = threadCache.get();
+            int n = tc.counts[sc];
+            if (n < threadCacheSlots) {
+                tc.slots[sc][n] = b;
+                tc.counts[sc] = n + 1;
+                return;
+            }
+        }
+        depots[sc].push(b); // a full free list drops the buffer for the GC
+    }
+
+    private void leaked(int capacity, Throwable site) {
+        leaks.incrementAndGet();
+        outstanding.decrementAndGet();
+        System.err.println("[BufferPool] LEAK: " + capacity + "-byte buffer was garbage-collected without release()"
+                + (site == null ? " (enable leak tracing to record where it was acquired)" : ""));
+        if (site != null) site.printStackTrace();
+    }
+
+    long acquires() { return acquires.get(); }
+    long allocations() { return allocations.get(); }
+    long unpooled() { return unpooled.get(); }
+    long outstanding() { return outstanding.get(); }
+    long leaks() { return leaks.get(); }
+
+    double hitRate() {
+        long a = acquires.get();
+        return a == 0 ? 0 : Math.round(hits.get() * 10_000.0 / a) / 10_000.0;
+    }
+
+    /** Buffers waiting in the shared free lists (per-thread caches not included). */
+    int pooled() {
+        int n = 0;
+        for (Depot d : depots) n += d.size();
+        return n;
+    }
+
+    PooledInputStream inputStream(InputStream in, int size) { return new PooledInputStream(in, acquire(size)); }
+
+    PooledOutputStream outputStream(OutputStream out, int size) { return new PooledOutputStream(out, acquire(size)); }
+
+    /** Read buffer over a pooled array; single reader. release() hands the array back. */
+    static final class PooledInputStream extends InputStream {
+        private final InputStream in;
+        private Buffer buffer;
+        private byte[] buf;
+        private int pos = 0;
+        private int limit = 0;
+
+        PooledInputStream(InputStream in, Buffer buffer) {
+            this.in = in;
+            this.buffer = buffer;
+            this.buf = buffer.array;
+        }
+
+        @Override public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit) {
+                ensureOpen();
+                // Large reads bypass the buffer instead of copying through it
+                if (len >= buf.length) return in.read(b, off, len);
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override public int available() throws IOException {
+            ensureOpen();
+            return (limit - pos) + in.available();
+        }
+
+        private boolean fill() throws IOException {
+            ensureOpen();
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (buf == null) throw new IOException("stream closed");
+        }
+
+        void release() {
+            if (buffer == null) return;
+            Buffer b = buffer;
+            buffer = null;
+            buf = null;
+            b.close();
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Write buffer over a pooled array. Synchronized, since WebSocket relays write from other
+     * workers: release() waits for an in-flight write and later writes fail instead of touching
+     * an array that already belongs to someone else.
+     */
+    static final class PooledOutputStream extends OutputStream {
+        private final OutputStream out;
+        private Buffer buffer;
+        private byte[] buf;
+        private int count = 0;
+
+        PooledOutputStream(OutputStream out, Buffer buffer) {
+            this.out = out;
+            this.buffer = buffer;
+            this.buf = buffer.array;
+        }
+
+        @Override public synchronized void write(int b) throws IOException {
+            ensureOpen();
+            if (count == buf.length) flushBuffer();
+            buf[count++] = (byte)b;
+        }
+
+        @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len >= buf.length) {
+                flushBuffer();
+                out.write(b, off, len);
+                return;
+            }
+            if (len > buf.length - count) flushBuffer();
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override public synchronized void flush() throws IOException {
+            ensureOpen();
+            flushBuffer();
+            out.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (buf == null) throw new IOException("stream closed");
+        }
+
+        /** Returns the array; unflushed bytes are dropped. */
+        synchronized void release() {
+            if (buffer == null) return;
+            Buffer b = buffer;
+            buffer = null;
+            buf = null;
+            count = 0;
+            b.close();
+        }
+
+        @Override public synchronized void close() throws IOException {
+            if (buffer == null) return;
+            try {
+                flushBuffer();
+                out.close();
+            } finally {
+                release();
+            }
+        }
+    }
+}
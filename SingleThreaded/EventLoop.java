@@ -0,0 +1,493 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The single-threaded model without head-of-line blocking on the network: one thread
+ * multiplexes every connection on a {@link Selector}.
+ *
+ * Reads are non-blocking and a request head is parsed once its blank line has arrived, so a
+ * client that trickles its request in holds up nobody. Responses go into a per-connection
+ * pooled buffer and are written as far as the socket takes them; the rest waits for OP_WRITE.
+ * /io bodies are generated a batch at a time as that buffer drains, so a slow reader of a large
+ * response costs one buffer, not the loop. /upload bodies are decoded as they arrive, straight
+ * into SHA-256 and the spooling sink.
+ *
+ * Handlers still run on this thread: /compute stalls every connection for its duration, as in
+ * the blocking loop. One process uses one core; to use more, start one per core on the same
+ * port, which SO_REUSEPORT allows.
+ */
+final class EventLoop {
+    // A request head must fit in this; a larger one is answered with 431
+    static final int MAX_HEAD_BYTES = 64 * 1024;
+    // Streamed /io bodies are generated this much at a time, whenever the previous batch is sent
+    private static final int IO_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_ACCEPTS_PER_WAKEUP = 64;
+    private static final long TICK_MILLIS = 250;
+    private static final InputStream NO_BODY = InputStream.nullInputStream();
+
+    private final Server server;
+    private final ServerSocketChannel channel;
+    private final Selector selector;
+    private final Set<Connection> open = new HashSet<>();
+    // Only touched on the loop thread; /metrics is served from it too
+    private long selects;
+    private long accepted;
+    private long partialWrites;
+    private long timeouts;
+
+    EventLoop(Server server, ServerSocketChannel channel) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.selector = Selector.open();
+    }
+
+    /** Non-blocking listener, bound like {@link Server#bindListener} with SO_REUSEPORT where supported. */
+    static ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        ch.bind(new InetSocketAddress(port));
+        ch.configureBlocking(false);
+        return ch;
+    }
+
+    /** The listener as a ServerSocket; closing it (as draining does) closes the channel. */
+    ServerSocket listener() { return channel.socket(); }
+
+    void wakeup() { selector.wakeup(); }
+
+    /**
+     * Runs until draining has finished every open connection or the drain deadline has
+     * passed; connections still open then are closed.
+     */
+    void run() throws IOException {
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+        long tickNanos = TICK_MILLIS * 1_000_000L;
+        long nextTick = System.nanoTime() + tickNanos;
+        long drainDeadline = 0;
+        try {
+            while (true) {
+                if (server.isDraining()) {
+                    long now = System.nanoTime();
+                    if (drainDeadline == 0) drainDeadline = now + server.drainMillis() * 1_000_000L;
+                    if (open.isEmpty() || now - drainDeadline >= 0) break;
+                }
+                selector.select(TICK_MILLIS);
+                selects++;
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.channel() == channel) {
+                        accept();
+                    } else {
+                        ((Connection)key.attachment()).ready(key.readyOps());
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - nextTick >= 0) {
+                    nextTick = now + tickNanos;
+                    expireStalled(now);
+                }
+            }
+        } finally {
+            for (Connection c : new ArrayList<>(open)) c.close(new IOException("closed at drain deadline"));
+            selector.close();
+            channel.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP; i++) {
+            SocketChannel ch;
+            try {
+                ch = channel.accept();
+            } catch (ClosedChannelException closed) {
+                if (server.isDraining()) return;
+                throw closed;
+            }
+            if (ch == null) return;
+            ch.configureBlocking(false);
+            Connection c = new Connection(ch, System.nanoTime());
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            open.add(c);
+            accepted++;
+            server.connectionOpened();
+        }
+    }
+
+    /** Closes connections whose request has not arrived within requestTimeoutMillis of the last byte. */
+    private void expireStalled(long now) {
+        long timeoutMillis = server.requestTimeoutMillis.asLong();
+        if (timeoutMillis == 0 || open.isEmpty()) return;
+        for (Connection c : new ArrayList<>(open)) {
+            if (!c.responding && now - c.lastReadNanos > timeoutMillis * 1_000_000L) {
+                timeouts++;
+                c.close(new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+
+    String toJson() {
+        return "{\"open\": " + open.size() + ", \"accepted\": " + accepted + ", \"selects\": " + selects
+                + ", \"partialWrites\": " + partialWrites + ", \"timeouts\": " + timeouts + "}";
+    }
+
+    /** One connection: request head, optional upload body, then one response and close. */
+    private final class Connection {
+        final SocketChannel ch;
+        final long start;
+        final InetAddress remote;
+        final AccessLog.Exchange exchange;
+        final Output out;
+        // out, through the exchange's byte, timing and status accounting
+        final OutputStream sink;
+        SelectionKey key;
+        BufferPool.Buffer in;
+        ByteBuffer inView;
+        int inLen;
+        // Head bytes before this have been searched for the blank line
+        int scanned;
+        long lastReadNanos;
+        boolean responding;
+        boolean closed;
+        // /upload in progress
+        HttpStreams.BodyDecoder body;
+        HttpStreams.SpoolingSink spool;
+        MessageDigest sha256;
+        OutputStream uploadSink;
+        long uploadStart;
+        // /io body still to generate
+        long ioRemaining;
+        HttpStreams.ChunkedOutputStream ioChunked;
+
+        Connection(SocketChannel ch, long start) {
+            this.ch = ch;
+            this.start = start;
+            this.lastReadNanos = start;
+            this.remote = ch.socket().getInetAddress();
+            this.exchange = new AccessLog.Exchange(start);
+            this.out = new Output(server.buffers);
+            this.sink = exchange.wrap(out);
+            this.in = server.buffers.acquire(server.streamBufferBytes.asInt());
+            this.inView = ByteBuffer.wrap(in.array);
+        }
+
+        void ready(int ops) {
+            try {
+                if ((ops & SelectionKey.OP_READ) != 0 && !responding) readable();
+                if (!closed && (ops & SelectionKey.OP_WRITE) != 0) flush();
+            } catch (HttpStreams.HttpException ex) {
+                fail(ex);
+            } catch (IOException ex) {
+                close(ex);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                close(ex);
+            }
+        }
+
+        private void readable() throws IOException {
+            if (inLen == in.array.length) grow();
+            inView.limit(in.array.length).position(inLen);
+            int n = ch.read(inView);
+            if (n == -1) {
+                endOfInput();
+                return;
+            }
+            if (n == 0) return;
+            lastReadNanos = System.nanoTime();
+            inLen += n;
+            if (body != null) {
+                consumeBody(0);
+                return;
+            }
+            int headEnd = headEnd();
+            if (headEnd >= 0) {
+                dispatch(headEnd);
+            } else if (inLen >= MAX_HEAD_BYTES) {
+                throw new HttpStreams.HttpException(431, "Request Header Fields Too Large", "request head exceeds " + MAX_HEAD_BYTES + " bytes");
+            }
+        }
+
+        /** Doubles the head buffer, up to MAX_HEAD_BYTES. */
+        private void grow() {
+            BufferPool.Buffer bigger = server.buffers.acquire(Math.min(in.array.length * 2, MAX_HEAD_BYTES));
+            System.arraycopy(in.array, 0, bigger.array, 0, inLen);
+            in.close();
+            in = bigger;
+            inView = ByteBuffer.wrap(in.array);
+        }
+
+        /** Offset just past the blank line ending the head (CRLF or bare LF), or -1 if not yet here. */
+        private int headEnd() {
+            byte[] b = in.array;
+            for (int i = scanned; i < inLen; i++) {
+                if (b[i] != '\n') continue;
+                if (i + 1 >= inLen || (b[i + 1] == '\r' && i + 2 >= inLen)) {
+                    scanned = i;
+                    return -1;
+                }
+                if (b[i + 1] == '\n') return i + 2;
+                if (b[i + 1] == '\r' && b[i + 2] == '\n') return i + 3;
+            }
+            scanned = inLen;
+            return -1;
+        }
+
+        /** The peer stopped sending. A partial head is served as it stands, like the blocking loop does. */
+        private void endOfInput() throws IOException {
+            if (body != null) {
+                body.endOfInput();
+            } else if (inLen > 0) {
+                dispatch(inLen);
+            } else {
+                close(null);
+            }
+        }
+
+        private void dispatch(int headEnd) throws IOException {
+            InputStream head = new ByteArrayInputStream(in.array, 0, headEnd);
+            String requestLine = HttpStreams.readLine(head, HttpStreams.MAX_LINE_BYTES);
+            if (requestLine == null || requestLine.isEmpty()) {
+                close(null);
+                return;
+            }
+            Map<String, String> headers = HttpStreams.readHeaders(head);
+
+            String[] parts = requestLine.split(" ", 3);
+            String method = parts.length > 0 ? parts[0] : "";
+            String target = parts.length > 1 ? parts[1] : "/";
+            String path = target;
+            String query = "";
+            int qIdx = target.indexOf('?');
+            if (qIdx >= 0) {
+                path = target.substring(0, qIdx);
+                query = target.substring(qIdx + 1);
+            }
+            exchange.method = method;
+            exchange.path = path;
+            Map<String, String> queryParams = server.parseQuery(query);
+
+            if ("/upload".equals(path) && ("POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method))) {
+                startUpload(headers, headEnd);
+            } else if ("/io".equals(path) && "GET".equalsIgnoreCase(method)) {
+                startIo(queryParams);
+                respond();
+            } else {
+                server.route(remote, NO_BODY, sink, method, path, headers, queryParams);
+                respond();
+            }
+        }
+
+        private void startUpload(Map<String, String> headers, int headEnd) throws IOException {
+            body = HttpStreams.BodyDecoder.forRequest(headers, Server.MAX_UPLOAD_BYTES);
+            if (body == null) {
+                server.responses.respond(sink, 411, "Length Required", "text/plain; charset=utf-8", "Content-Length or chunked body required\n");
+                respond();
+                return;
+            }
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            spool = new HttpStreams.SpoolingSink(Server.SPOOL_THRESHOLD_BYTES, Server.SPOOL_DIR);
+            uploadSink = new OutputStream() {
+                @Override public void write(int b) throws IOException { write(new byte[] { (byte)b }, 0, 1); }
+
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    sha256.update(b, off, len);
+                    spool.write(b, off, len);
+                }
+            };
+            uploadStart = System.nanoTime();
+            if ("100-continue".equalsIgnoreCase(headers.getOrDefault("expect", ""))) {
+                sink.write(Server.CONTINUE_100);
+                flush();
+            }
+            consumeBody(headEnd);
+        }
+
+        /** Feeds the buffered bytes from {@code from} to the upload; anything after the body is dropped. */
+        private void consumeBody(int from) throws IOException {
+            body.feed(in.array, from, inLen - from, uploadSink);
+            inLen = 0;
+            if (!body.done()) return;
+            server.uploaded(sink, spool, sha256, uploadStart);
+            closeUpload();
+            respond();
+        }
+
+        private void startIo(Map<String, String> queryParams) throws IOException {
+            long bytes = server.ioBytes(queryParams);
+            int chunk = server.ioChunkBytes(queryParams);
+            if (chunk > 0) {
+                ioChunked = server.respondChunked(sink, 200, "OK", "application/octet-stream", ResponseWriter.NO_HEADERS, chunk);
+                ioRemaining = Math.max(0, bytes);
+                if (ioRemaining == 0) endIo();
+                return;
+            }
+            int first = (int)Math.max(0, Math.min(bytes, Server.IO_FILL.length));
+            server.responses.writeHead(sink, 200, "OK", "application/octet-stream", bytes, Server.IO_FILL, first);
+            ioRemaining = Math.max(0, bytes - first);
+        }
+
+        private void endIo() throws IOException {
+            if (ioChunked != null) ioChunked.close();
+            ioChunked = null;
+        }
+
+        /** The response is complete or being generated; the request side is done with. */
+        private void respond() throws IOException {
+            responding = true;
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+            flush();
+        }
+
+        private void fail(HttpStreams.HttpException ex) {
+            if (closed) return;
+            closeUpload();
+            ioRemaining = 0;
+            ioChunked = null;
+            server.respondError(sink, ex);
+            try {
+                respond();
+            } catch (IOException io) {
+                close(io);
+            }
+        }
+
+        /**
+         * Writes what the socket takes. Before the response this only sends an interim 100;
+         * while responding it tops up generated bodies and closes once everything is sent.
+         */
+        private void flush() throws IOException {
+            while (true) {
+                if (out.pending() > 0) {
+                    out.writeTo(ch);
+                    if (out.pending() > 0) {
+                        partialWrites++;
+                        key.interestOps(responding ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (!responding) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (ioRemaining == 0) {
+                    close(null);
+                    return;
+                }
+                long n = Math.min(ioRemaining, IO_BATCH_BYTES);
+                server.streamBytes(ioChunked != null ? ioChunked : sink, n);
+                ioRemaining -= n;
+                if (ioRemaining == 0) endIo();
+            }
+        }
+
+        private void closeUpload() {
+            body = null;
+            if (spool != null) {
+                try { spool.close(); } catch (IOException ignore) {}
+                spool = null;
+            }
+        }
+
+        void close(Exception error) {
+            if (closed) return;
+            closed = true;
+            open.remove(this);
+            key.cancel();
+            try { ch.close(); } catch (IOException ignore) {}
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+            out.release();
+            closeUpload();
+            server.connectionClosed(exchange, start, error);
+        }
+    }
+
+    /**
+     * Response bytes not yet taken by the socket, in a pooled array acquired on the first
+     * write and grown through the pool when a response outruns it.
+     */
+    private static final class Output extends OutputStream {
+        private static final int INITIAL_BYTES = 8 * 1024;
+        private final BufferPool pool;
+        private BufferPool.Buffer buffer;
+        // position..limit is unsent
+        private ByteBuffer view;
+
+        Output(BufferPool pool) { this.pool = pool; }
+
+        int pending() { return view == null ? 0 : view.remaining(); }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            if (buffer == null) {
+                buffer = pool.acquire(Math.max(len, INITIAL_BYTES));
+                view = ByteBuffer.wrap(buffer.array);
+                view.limit(0);
+            }
+            int unsent = view.remaining();
+            if (view.limit() + len > buffer.array.length) {
+                if (unsent + len <= buffer.array.length) {
+                    view.compact().flip();
+                } else {
+                    BufferPool.Buffer bigger = pool.acquire(Math.max(buffer.array.length * 2, unsent + len));
+                    System.arraycopy(buffer.array, view.position(), bigger.array, 0, unsent);
+                    buffer.close();
+                    buffer = bigger;
+                    view = ByteBuffer.wrap(buffer.array);
+                    view.limit(unsent);
+                }
+            }
+            int end = view.limit();
+            System.arraycopy(b, off, buffer.array, end, len);
+            view.limit(end + len);
+        }
+
+        void writeTo(SocketChannel ch) throws IOException {
+            ch.write(view);
+            if (!view.hasRemaining()) view.position(0).limit(0);
+        }
+
+        void release() {
+            if (buffer != null) buffer.close();
+            buffer = null;
+            view = null;
+        }
+    }
+}
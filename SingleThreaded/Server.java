@@ -1,68 +1,226 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
     private volatile long totalRequests = 0;
     private volatile long totalLatencyNanos = 0;
     private volatile int activeConnections = 0;
-    private final long[] lastLatenciesNanos = new long[1024];
+    private final long[] lastLatenciesNanos;
     private volatile int latencyWriteIndex = 0;
+    private final AtomicLong uploads = new AtomicLong(0);
+    private final AtomicLong uploadBytes = new AtomicLong(0);
+    final BufferPool buffers;
+    private final Clock clock = Clock.shared();
+    final ResponseWriter responses;
+    private final AccessLog accessLog;
+    // Live settings, read on every use so /admin/config and file edits apply without a restart
+    private final Config config;
+    final Config.Setting streamBufferBytes;
+    final Config.Setting requestTimeoutMillis;
+    private final Config.Setting drainMillis;
+    // Set once at startup when --eventLoop=1; null for the blocking accept loop
+    private volatile EventLoop eventLoop;
+
+    static final long DEFAULT_DRAIN_MILLIS = 10_000;
+
+    // Request bodies are streamed in fixed-size reads; above the threshold /upload spools to disk
+    static final long MAX_UPLOAD_BYTES = 256L * 1024 * 1024;
+    static final int SPOOL_THRESHOLD_BYTES = 1024 * 1024;
+    static final int UPLOAD_BUFFER_BYTES = 8192;
+    static final File SPOOL_DIR = new File(System.getProperty("java.io.tmpdir"));
+    static final int DEFAULT_CHUNK_BYTES = 16 * 1024;
+    static final byte[] CONTINUE_100 = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // /io payload; only ever read, so one shared array serves every request
+    static final byte[] IO_FILL = new byte[8192];
+    static { java.util.Arrays.fill(IO_FILL, (byte)'a'); }
+
+    // Graceful shutdown: the accept loop finishes its current request and exits
+    private volatile boolean draining = false;
+    private volatile ServerSocket listener;
+    private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+    private final CountDownLatch loopExited = new CountDownLatch(1);
+    // drainMs of /admin/shutdown, in place of drainMillis for that drain; -1 when not given
+    private volatile long requestedDrainMillis = -1;
+
+    /**
+     * Every tunable of the single-threaded server. Restart-only ones are read once at startup;
+     * live ones are held as {@link Config.Setting} and read where they are used.
+     */
+    static Config settings() {
+        Config c = new Config("SingleThreaded");
+        c.integer("port", 8011, 1, 65535, false, "listen port");
+        c.integer("latencyWindow", 1024, 16, 1 << 20, false, "recent requests kept for p95LatencyMs, rounded up to a power of two");
+        c.integer("streamBufferBytes", 8192, 512, 64 * 1024, true, "read buffer for new connections");
+        c.integer("requestTimeoutMillis", 0, 0, 3_600_000, true, "read timeout for request heads and bodies on new connections; 0 waits forever");
+        c.integer("drainMillis", DEFAULT_DRAIN_MILLIS, 0, 600_000, true, "graceful shutdown deadline");
+        c.integer("eventLoop", 0, 0, 1, false, "1 multiplexes every connection on one thread with a Selector; 0 serves one connection at a time");
+        return c;
+    }
+
+    Server(Config config, BufferPool buffers, AccessLog accessLog) {
+        this.config = config;
+        this.streamBufferBytes = config.setting("streamBufferBytes");
+        this.requestTimeoutMillis = config.setting("requestTimeoutMillis");
+        this.drainMillis = config.setting("drainMillis");
+        int window = config.setting("latencyWindow").asInt();
+        this.lastLatenciesNanos = new long[Integer.bitCount(window) == 1 ? window : Integer.highestOneBit(window) << 1];
+        this.buffers = buffers;
+        this.responses = new ResponseWriter(buffers, clock);
+        this.accessLog = accessLog;
+    }
 
     public void run() throws IOException, UnknownHostException{
-        int port = 8011;
-        ServerSocket socket = new ServerSocket(port);
+        int port = config.setting("port").asInt();
+        if (config.setting("eventLoop").asInt() == 1) {
+            EventLoop loop = new EventLoop(this, EventLoop.bind(port));
+            listener = loop.listener();
+            eventLoop = loop;
+            System.out.println("[SingleThreaded] Server is listening on port: "+port+" (event loop)");
+            try {
+                loop.run();
+            } finally {
+                loopExited.countDown();
+            }
+            return;
+        }
+        ServerSocket socket = bindListener(port);
+        listener = socket;
         System.out.println("[SingleThreaded] Server is listening on port: "+port);
-        while(true){
-            Socket acceptedConnection = socket.accept();
+        try {
+            acceptLoop(socket);
+        } finally {
+            loopExited.countDown();
+        }
+    }
+
+    private void acceptLoop(ServerSocket socket) throws IOException {
+        while(!draining){
+            Socket acceptedConnection;
+            try {
+                acceptedConnection = socket.accept();
+            } catch (SocketException closed) {
+                if (draining) break;
+                throw closed;
+            }
             long start = System.nanoTime();
-            activeConnections++;
+            AccessLog.Exchange exchange = new AccessLog.Exchange(start);
+            Exception error = null;
+            connectionOpened();
             try {
-                handleHttpConnection(acceptedConnection);
+                // One slow client holds up everyone here, so this timeout matters most in this model
+                acceptedConnection.setSoTimeout(requestTimeoutMillis.asInt());
+                handleHttpConnection(acceptedConnection, exchange);
+            } catch (HttpStreams.HttpException ex) {
+                respondError(exchange, ex);
+            } catch (IOException ex) {
+                error = ex;
             } catch (Exception ex) {
                 ex.printStackTrace();
+                error = ex;
             } finally {
                 try { acceptedConnection.close(); } catch (IOException ignore) {}
-                long elapsed = System.nanoTime() - start;
-                recordLatency(elapsed);
-                activeConnections--;
-                totalRequests++;
+                connectionClosed(exchange, start, error);
             }
         }
     }
 
+    void connectionOpened() {
+        activeConnections++;
+    }
+
+    /** Latency, access log and counters for a finished connection; either loop calls it after close. */
+    void connectionClosed(AccessLog.Exchange exchange, long start, Exception error) {
+        long end = System.nanoTime();
+        recordLatency(end - start);
+        accessLog.log(exchange, start, end, error);
+        activeConnections--;
+        totalRequests++;
+    }
+
+    /**
+     * Binds the listening socket with SO_REUSEPORT where the platform supports it, so a
+     * replacement process can bind the same port and take traffic before this one exits.
+     */
+    static ServerSocket bindListener(int port) throws IOException {
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        if (ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        ss.bind(new InetSocketAddress(port));
+        return ss;
+    }
+
+    /**
+     * Stops accepting; the request in progress (if any) still completes. The event loop also
+     * finishes every connection it has open, until the drain deadline.
+     */
+    void beginDrain() {
+        if (!shutdownStarted.compareAndSet(false, true)) return;
+        System.out.println("[SingleThreaded] Draining");
+        draining = true;
+        ServerSocket ss = listener;
+        if (ss != null) { try { ss.close(); } catch (IOException ignore) {} }
+        EventLoop loop = eventLoop;
+        if (loop != null) loop.wakeup();
+    }
+
+    boolean isDraining() { return draining; }
+
+    long drainMillis() {
+        long requested = requestedDrainMillis;
+        return requested >= 0 ? requested : drainMillis.asLong();
+    }
+
+    /** Begins draining and waits up to the deadline for the in-flight request to finish. */
+    void shutdown(long drainMillis) {
+        beginDrain();
+        try { loopExited.await(drainMillis, TimeUnit.MILLISECONDS); } catch (InterruptedException ignore) {}
+        accessLog.close();
+    }
+
     private void recordLatency(long nanos) {
         totalLatencyNanos += nanos;
         int idx = latencyWriteIndex++ & (lastLatenciesNanos.length - 1);
         lastLatenciesNanos[idx] = nanos;
     }
 
-    private void handleHttpConnection(Socket socket) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        OutputStream rawOut = socket.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8));
+    private void handleHttpConnection(Socket socket, AccessLog.Exchange exchange) throws IOException {
+        OutputStream rawOut = exchange.wrap(socket.getOutputStream());
+        BufferPool.PooledInputStream in = buffers.inputStream(socket.getInputStream(), streamBufferBytes.asInt());
+        try {
+            serveRequest(socket, in, rawOut, exchange);
+        } finally {
+            in.release();
+        }
+    }
+
+    private void serveRequest(Socket socket, InputStream in, OutputStream rawOut, AccessLog.Exchange exchange) throws IOException {
 
-        String requestLine = reader.readLine();
+        String requestLine = HttpStreams.readLine(in, HttpStreams.MAX_LINE_BYTES);
         if (requestLine == null || requestLine.isEmpty()) {
             return;
         }
-
-        // Read headers (ignored for now)
-        String line;
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            // ignore
-        }
+        Map<String, String> headers = HttpStreams.readHeaders(in);
 
         String[] parts = requestLine.split(" ", 3);
         String method = parts.length > 0 ? parts[0] : "";
@@ -75,60 +233,196 @@ public class Server {
             path = target.substring(0, qIdx);
             query = target.substring(qIdx + 1);
         }
-        Map<String, String> queryParams = parseQuery(query);
+        exchange.method = method;
+        exchange.path = path;
+        route(socket.getInetAddress(), in, rawOut, method, path, headers, parseQuery(query));
+    }
+
+    /**
+     * Serves one parsed request. The event loop calls this too, for everything except /upload
+     * and /io, whose bodies it streams itself; {@code in} is then an empty stream.
+     */
+    void route(InetAddress remote, InputStream in, OutputStream rawOut, String method, String path,
+            Map<String, String> headers, Map<String, String> queryParams) throws IOException {
+        if (path.startsWith("/admin/config")) {
+            handleConfigAdmin(remote, rawOut, method, path, queryParams);
+            return;
+        }
+
+        if ("/admin/shutdown".equals(path)) {
+            handleShutdownAdmin(remote, rawOut, method, queryParams);
+            return;
+        }
+
+        if ("/upload".equals(path)) {
+            if ("POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method)) {
+                handleUpload(in, rawOut, headers);
+            } else {
+                respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            }
+            return;
+        }
 
         if (!"GET".equalsIgnoreCase(method)) {
-            respond(writer, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
             return;
         }
 
         switch (path) {
             case "/":
                 String html = getPlaceholderIndexHtml();
-                respond(writer, 200, "OK", "text/html; charset=utf-8", html);
+                respond(rawOut, 200, "OK", "text/html; charset=utf-8", html);
                 break;
             case "/hello":
-                respond(writer, 200, "OK", "text/plain; charset=utf-8", "Hello from single-threaded server\n");
+                respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "Hello from single-threaded server\n");
                 break;
             case "/compute": {
                 long ms = parseLongOrDefault(queryParams.get("ms"), 50);
                 busyWork(ms);
-                respond(writer, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
+                respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
                 break;
             }
             case "/io": {
-                long bytes = parseLongOrDefault(queryParams.get("bytes"), 1024 * 1024);
-                String headers = "HTTP/1.1 200 OK\r\n" +
-                        "Content-Type: application/octet-stream\r\n" +
-                        "Content-Length: " + bytes + "\r\n" +
-                        "Connection: close\r\n\r\n";
-                writer.write(headers);
-                writer.flush();
-                streamBytes(rawOut, bytes);
+                long bytes = ioBytes(queryParams);
+                int chunk = ioChunkBytes(queryParams);
+                if (chunk > 0) {
+                    try (HttpStreams.ChunkedOutputStream body = respondChunked(rawOut, 200, "OK", "application/octet-stream", ResponseWriter.NO_HEADERS, chunk)) {
+                        streamBytes(body, bytes);
+                    }
+                    break;
+                }
+                // The head and the first block of the body leave in one write
+                int first = (int)Math.max(0, Math.min(bytes, IO_FILL.length));
+                responses.writeHead(rawOut, 200, "OK", "application/octet-stream", bytes, IO_FILL, first);
+                streamBytes(rawOut, bytes - first);
                 rawOut.flush();
                 break;
             }
             case "/metrics": {
                 String body = getMetricsJson();
-                respond(writer, 200, "OK", "application/json; charset=utf-8", body);
+                respond(rawOut, 200, "OK", "application/json; charset=utf-8", body);
                 break;
             }
             default:
-                respond(writer, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+                respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
         }
     }
 
-    private void respond(BufferedWriter writer, int status, String statusText, String contentType, String body) throws IOException {
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        writer.write("HTTP/1.1 " + status + " " + statusText + "\r\n");
-        writer.write("Content-Type: " + contentType + "\r\n");
-        writer.write("Content-Length: " + bytes.length + "\r\n");
-        writer.write("Connection: close\r\n\r\n");
-        writer.write(body);
-        writer.flush();
+    private void respond(OutputStream out, int status, String statusText, String contentType, String body) throws IOException {
+        responses.respond(out, status, statusText, contentType, body);
     }
 
-    private Map<String, String> parseQuery(String query) {
+    /** /io?bytes=N, 1 MiB by default. */
+    long ioBytes(Map<String, String> queryParams) {
+        return parseLongOrDefault(queryParams.get("bytes"), 1024 * 1024);
+    }
+
+    /** Chunk size for /io?chunked=1, clamped to 64 B..1 MiB; 0 when the response is not chunked. */
+    int ioChunkBytes(Map<String, String> queryParams) {
+        if (!Boolean.parseBoolean(queryParams.get("chunked")) && !"1".equals(queryParams.get("chunked"))) return 0;
+        return (int)Math.max(64, Math.min(1 << 20, parseLongOrDefault(queryParams.get("chunk"), DEFAULT_CHUNK_BYTES)));
+    }
+
+    /**
+     * POST /admin/shutdown?drainMs=N begins draining, with N in place of drainMillis as the
+     * deadline. Loopback only, and POST only, so a page in a local browser cannot stop the
+     * server with an image or a link.
+     */
+    private void handleShutdownAdmin(InetAddress remote, OutputStream rawOut, String method, Map<String, String> queryParams) throws IOException {
+        if (remote == null || !remote.isLoopbackAddress()) {
+            respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+            return;
+        }
+        if (!"POST".equalsIgnoreCase(method)) {
+            respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            return;
+        }
+        long drainMs = Math.max(0, parseLongOrDefault(queryParams.get("drainMs"), drainMillis()));
+        respond(rawOut, 202, "Accepted", "text/plain; charset=utf-8", "draining:" + drainMs + "ms\n");
+        requestedDrainMillis = drainMs;
+        beginDrain();
+    }
+
+    /**
+     * GET /admin/config lists every setting; POST /admin/config?key=value&... changes live ones,
+     * all or nothing; POST /admin/config/reload re-reads the config file. Loopback only.
+     */
+    private void handleConfigAdmin(InetAddress remote, OutputStream rawOut, String method, String path, Map<String, String> queryParams) throws IOException {
+        if (remote == null || !remote.isLoopbackAddress()) {
+            respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+            return;
+        }
+        boolean post = "POST".equalsIgnoreCase(method);
+        java.util.List<String> errors;
+        if ("/admin/config".equals(path) && "GET".equalsIgnoreCase(method)) {
+            errors = java.util.Collections.emptyList();
+        } else if ("/admin/config".equals(path) && post) {
+            errors = config.update(queryParams, Config.Source.ADMIN);
+        } else if ("/admin/config/reload".equals(path) && post) {
+            errors = config.reload();
+        } else if ("/admin/config".equals(path) || "/admin/config/reload".equals(path)) {
+            respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+            return;
+        } else {
+            respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+            return;
+        }
+        if (!errors.isEmpty()) {
+            respond(rawOut, 400, "Bad Request", "text/plain; charset=utf-8", String.join("\n", errors) + "\n");
+            return;
+        }
+        respond(rawOut, 200, "OK", "application/json; charset=utf-8", config.toJson(true) + "\n");
+    }
+
+    void respondError(OutputStream out, HttpStreams.HttpException ex) {
+        try {
+            respond(out, ex.status, ex.reason, "text/plain; charset=utf-8", ex.getMessage() + "\n");
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * Streams the request body through SHA-256 in fixed-size reads. Nothing beyond
+     * SPOOL_THRESHOLD_BYTES is held on the heap; the rest is spooled to a temp file.
+     */
+    private void handleUpload(InputStream in, OutputStream rawOut, Map<String, String> headers) throws IOException {
+        InputStream body = HttpStreams.bodyStream(in, headers, MAX_UPLOAD_BYTES);
+        if (body == null) {
+            respond(rawOut, 411, "Length Required", "text/plain; charset=utf-8", "Content-Length or chunked body required\n");
+            return;
+        }
+        if ("100-continue".equalsIgnoreCase(headers.getOrDefault("expect", ""))) {
+            rawOut.write(CONTINUE_100);
+            rawOut.flush();
+        }
+        long start = System.nanoTime();
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (BufferPool.Buffer buffer = buffers.acquire(UPLOAD_BUFFER_BYTES);
+                HttpStreams.SpoolingSink sink = new HttpStreams.SpoolingSink(SPOOL_THRESHOLD_BYTES, SPOOL_DIR)) {
+            byte[] buf = buffer.array;
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                sha256.update(buf, 0, n);
+                sink.write(buf, 0, n);
+            }
+            uploaded(rawOut, sink, sha256, start);
+        }
+    }
+
+    /** Counts a received upload and answers with its size and digest. */
+    void uploaded(OutputStream rawOut, HttpStreams.SpoolingSink sink, MessageDigest sha256, long start) throws IOException {
+        uploads.incrementAndGet();
+        uploadBytes.addAndGet(sink.size());
+        respond(rawOut, 200, "OK", "application/json; charset=utf-8", "{\"bytes\": " + sink.size()
+                + ", \"sha256\": \"" + HttpStreams.hex(sha256.digest()) + "\", \"spooled\": " + sink.isSpooled()
+                + ", \"elapsedMs\": " + ((System.nanoTime() - start) / 1_000_000.0) + "}\n");
+    }
+
+    Map<String, String> parseQuery(String query) {
         Map<String, String> params = new HashMap<>();
         if (query == null || query.isEmpty()) return params;
         String[] pairs = query.split("&");
@@ -150,6 +444,12 @@ public class Server {
         try { return Long.parseLong(s); } catch (NumberFormatException ex) { return def; }
     }
 
+    /** Writes a response head without Content-Length and returns the chunked body stream. */
+    HttpStreams.ChunkedOutputStream respondChunked(OutputStream rawOut, int status, String statusText, String contentType, byte[] extraHeaders, int coalesceBytes) throws IOException {
+        responses.writeChunkedHead(rawOut, status, statusText, contentType, extraHeaders);
+        return new HttpStreams.ChunkedOutputStream(rawOut, coalesceBytes);
+    }
+
     private void busyWork(long ms) {
         long duration = ms * 1_000_000L;
         long start = System.nanoTime();
@@ -158,13 +458,11 @@ public class Server {
         }
     }
 
-    private void streamBytes(OutputStream out, long bytes) throws IOException {
-        byte[] buf = new byte[8192];
-        for (int i = 0; i < buf.length; i++) buf[i] = 'a';
+    void streamBytes(OutputStream out, long bytes) throws IOException {
         long remaining = bytes;
         while (remaining > 0) {
-            int toWrite = (int)Math.min(remaining, buf.length);
-            out.write(buf, 0, toWrite);
+            int toWrite = (int)Math.min(remaining, IO_FILL.length);
+            out.write(IO_FILL, 0, toWrite);
             remaining -= toWrite;
         }
     }
@@ -181,7 +479,19 @@ public class Server {
                 "  \"activeConnections\": " + activeConnections + ",\n" +
                 "  \"totalRequests\": " + totalReq + ",\n" +
                 "  \"avgLatencyMs\": " + (avgNs / 1_000_000.0) + ",\n" +
-                "  \"p95LatencyMs\": " + (p95 / 1_000_000.0) + "\n" +
+                "  \"p95LatencyMs\": " + (p95 / 1_000_000.0) + ",\n" +
+                "  \"uploads\": " + uploads.get() + ",\n" +
+                "  \"uploadBytes\": " + uploadBytes.get() + ",\n" +
+                "  \"bufferPool\": {\"acquires\": " + buffers.acquires() + ", \"hitRate\": " + buffers.hitRate()
+                        + ", \"allocations\": " + buffers.allocations() + ", \"unpooled\": " + buffers.unpooled()
+                        + ", \"outstanding\": " + buffers.outstanding() + ", \"pooled\": " + buffers.pooled()
+                        + ", \"leaks\": " + buffers.leaks() + "},\n" +
+                "  \"accessLog\": {\"logged\": " + accessLog.logged() + ", \"dropped\": " + accessLog.dropped()
+                        + ", \"written\": " + accessLog.written() + ", \"rotations\": " + accessLog.rotations()
+                        + ", \"writeErrors\": " + accessLog.writeErrors() + "},\n" +
+                (eventLoop != null ? "  \"eventLoop\": " + eventLoop.toJson() + ",\n" : "") +
+                "  \"config\": " + config.toJson(false) + ",\n" +
+                "  \"draining\": " + draining + "\n" +
                 "}\n";
     }
 
@@ -200,7 +510,18 @@ public class Server {
     }
 
     public static void main(String[] args){
-        Server server = new Server();
+        Config config = settings();
+        try {
+            config.load(args, System.getenv());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("[SingleThreaded] invalid configuration:\n" + ex.getMessage());
+            System.exit(2);
+        }
+        config.watch(2000);
+        // One thread does all the work, so its per-thread cache serves nearly every acquire
+        Server server = new Server(config, new BufferPool(4, 4 * 1024 * 1024, false),
+                new AccessLog(new java.io.File("../.run_logs/SingleThreaded_access.log"), 64 * 1024, 64L * 1024 * 1024, 5, Clock.shared()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(server.drainMillis()), "shutdown-hook"));
         try{
             server.run();
         }catch(Exception ex){
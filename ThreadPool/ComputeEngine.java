@@ -0,0 +1,346 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Real CPU-bound workloads for /compute, run on a ForkJoinPool that is separate from the
+ * I/O workers. One request runs as exactly min(splits, units of work) leaf tasks over
+ * contiguous index ranges; the pool's own work stealing spreads them across cores, bounded by
+ * its parallelism.
+ *
+ * Inputs are generated deterministically from the request size, so every split count yields
+ * the same checksum and results are comparable across runs.
+ */
+final class ComputeEngine {
+	enum Kind { HASH, SORT, JSON }
+
+	static final class Result {
+		final Kind kind;
+		final int size;
+		final int splits;
+		final String checksum;
+		final long elapsedNanos;
+		Result(Kind kind, int size, int splits, String checksum, long elapsedNanos) {
+			this.kind = kind;
+			this.size = size;
+			this.splits = splits;
+			this.checksum = checksum;
+			this.elapsedNanos = elapsedNanos;
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int maxSplits;
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong leafTasks = new AtomicLong(0);
+
+	ComputeEngine(int parallelism, int maxSplits) {
+		this.pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("compute-" + t.getPoolIndex());
+			return t;
+		}, null, false);
+		this.maxSplits = maxSplits;
+	}
+
+	static Kind parseKind(String s) {
+		if (s == null) return null;
+		switch (s.toLowerCase()) {
+			case "hash": return Kind.HASH;
+			case "sort": return Kind.SORT;
+			case "json": return Kind.JSON;
+			default: return null;
+		}
+	}
+
+	/** Largest accepted size as a multiple of the default; bounds the CPU time of one request. */
+	static final int MAX_SIZE_FACTOR = 64;
+	/**
+	 * Heap one request may hold. Every I/O worker can be inside {@link #run} at once, so with the
+	 * default 8 workers that is 256 MiB at worst, within a default heap on any machine with 2 GiB.
+	 */
+	static final long MAX_WORKING_BYTES = 32L * 1024 * 1024;
+
+	/** Approximate heap held per unit of size while a request runs. */
+	private static long bytesPerUnit(Kind kind) {
+		switch (kind) {
+			// one 32-byte digest per 64 KiB chunk
+			case HASH: return 1;
+			// the array and the merge buffer
+			case SORT: return 16;
+			// encoded bytes, the String decoded from them and the builder, about 100 bytes each
+			default: return 512;
+		}
+	}
+
+	/** Largest accepted size for {@code kind}: whichever of the CPU and heap caps is lower. */
+	static int maxSize(Kind kind) {
+		return (int)Math.min((long)defaultSize(kind) * MAX_SIZE_FACTOR, MAX_WORKING_BYTES / bytesPerUnit(kind));
+	}
+
+	/** Default size per kind: KiB hashed, longs sorted, records encoded/decoded. */
+	static int defaultSize(Kind kind) {
+		switch (kind) {
+			case HASH: return 4096;
+			case SORT: return 1_000_000;
+			default: return 20_000;
+		}
+	}
+
+	Result run(Kind kind, int size, int requestedSplits) {
+		size = Math.max(1, Math.min(size, maxSize(kind)));
+		int units = kind == Kind.HASH ? hashChunks(size) : size;
+		int splits = Math.max(1, Math.min(Math.min(requestedSplits, maxSplits), units));
+		requests.incrementAndGet();
+		long start = System.nanoTime();
+		String checksum;
+		switch (kind) {
+			case HASH: checksum = hash(size, splits); break;
+			case SORT: checksum = sort(size, splits); break;
+			default: checksum = json(size, splits); break;
+		}
+		return new Result(kind, size, splits, checksum, System.nanoTime() - start);
+	}
+
+	int parallelism() { return pool.getParallelism(); }
+	int maxSplits() { return maxSplits; }
+	long requests() { return requests.get(); }
+	long leafTasks() { return leafTasks.get(); }
+	long stealCount() { return pool.getStealCount(); }
+	int activeThreads() { return pool.getActiveThreadCount(); }
+	long queuedTasks() { return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount(); }
+
+	void shutdown() { pool.shutdownNow(); }
+
+	// --- hashing: SHA-256 per 64 KiB chunk, then SHA-256 over the chunk digests in order ---
+
+	private static final int HASH_CHUNK = 64 * 1024;
+
+	private static int hashChunks(int kib) {
+		return (int)((kib * 1024L + HASH_CHUNK - 1) / HASH_CHUNK);
+	}
+
+	/**
+	 * Where a range of {@code parts} leaves splits in two: the first parts/2 leaves take their
+	 * share of [lo, hi), the rest the remainder. With parts no larger than hi - lo every leaf
+	 * gets at least one unit, so exactly {@code parts} leaves run.
+	 */
+	private static int splitPoint(int lo, int hi, int parts) {
+		return lo + (int)((long)(hi - lo) * (parts / 2) / parts);
+	}
+
+	private String hash(int kib, int splits) {
+		long totalBytes = kib * 1024L;
+		int chunks = hashChunks(kib);
+		byte[][] digests = new byte[chunks][];
+		pool.invoke(new HashTask(digests, 0, chunks, splits, totalBytes));
+		MessageDigest root = sha256();
+		for (byte[] d : digests) root.update(d);
+		return hex(root.digest(), 16);
+	}
+
+	private final class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final byte[][] out; final int lo; final int hi; final int parts; final long totalBytes;
+		HashTask(byte[][] out, int lo, int hi, int parts, long totalBytes) { this.out = out; this.lo = lo; this.hi = hi; this.parts = parts; this.totalBytes = totalBytes; }
+		@Override protected void compute() {
+			if (parts == 1) {
+				leafTasks.incrementAndGet();
+				MessageDigest md = sha256();
+				byte[] buf = new byte[HASH_CHUNK];
+				for (int chunk = lo; chunk < hi; chunk++) {
+					int n = (int)Math.min(HASH_CHUNK, totalBytes - (long)chunk * HASH_CHUNK);
+					long seed = 0x9E3779B97F4A7C15L ^ chunk;
+					for (int i = 0; i < n; i++) { seed ^= seed << 13; seed ^= seed >>> 7; seed ^= seed << 17; buf[i] = (byte)seed; }
+					md.update(buf, 0, n);
+					out[chunk] = md.digest();
+				}
+				return;
+			}
+			int mid = splitPoint(lo, hi, parts);
+			invokeAll(new HashTask(out, lo, mid, parts / 2, totalBytes), new HashTask(out, mid, hi, parts - parts / 2, totalBytes));
+		}
+	}
+
+	// --- sorting: parallel merge sort, leaves use Arrays.sort ---
+
+	private String sort(int n, int splits) {
+		long[] a = new long[n];
+		long seed = 42;
+		for (int i = 0; i < n; i++) { seed ^= seed << 13; seed ^= seed >>> 7; seed ^= seed << 17; a[i] = seed; }
+		long[] tmp = new long[n];
+		pool.invoke(new SortTask(a, tmp, 0, n, splits));
+		long check = 0;
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && a[i - 1] > a[i]) throw new IllegalStateException("sort produced unordered output");
+			check = check * 31 + a[i];
+		}
+		return Long.toHexString(check);
+	}
+
+	private final class SortTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final long[] a; final long[] tmp; final int lo; final int hi; final int parts;
+		SortTask(long[] a, long[] tmp, int lo, int hi, int parts) { this.a = a; this.tmp = tmp; this.lo = lo; this.hi = hi; this.parts = parts; }
+		@Override protected void compute() {
+			if (parts == 1) {
+				leafTasks.incrementAndGet();
+				Arrays.sort(a, lo, hi);
+				return;
+			}
+			int mid = splitPoint(lo, hi, parts);
+			invokeAll(new SortTask(a, tmp, lo, mid, parts / 2), new SortTask(a, tmp, mid, hi, parts - parts / 2));
+			System.arraycopy(a, lo, tmp, lo, hi - lo);
+			int i = lo, j = mid, k = lo;
+			while (i < mid && j < hi) a[k++] = tmp[i] <= tmp[j] ? tmp[i++] : tmp[j++];
+			while (i < mid) a[k++] = tmp[i++];
+			while (j < hi) a[k++] = tmp[j++];
+		}
+	}
+
+	// --- JSON: encode a slice of records to UTF-8 JSON, decode it back and fold the values ---
+
+	private String json(int records, int splits) {
+		long sum = pool.invoke(new JsonTask(0, records, splits));
+		return Long.toHexString(sum);
+	}
+
+	private final class JsonTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+		final int lo; final int hi; final int parts;
+		JsonTask(int lo, int hi, int parts) { this.lo = lo; this.hi = hi; this.parts = parts; }
+		@Override protected Long compute() {
+			if (parts == 1) {
+				leafTasks.incrementAndGet();
+				byte[] encoded = encodeRecords(lo, hi);
+				return new JsonReader(new String(encoded, StandardCharsets.UTF_8)).foldRecords();
+			}
+			int mid = splitPoint(lo, hi, parts);
+			JsonTask left = new JsonTask(lo, mid, parts / 2);
+			left.fork();
+			long right = new JsonTask(mid, hi, parts - parts / 2).compute();
+			return left.join() + right;
+		}
+	}
+
+	private static byte[] encodeRecords(int lo, int hi) {
+		StringBuilder sb = new StringBuilder((hi - lo) * 96);
+		sb.append('[');
+		for (int i = lo; i < hi; i++) {
+			if (i > lo) sb.append(',');
+			sb.append("{\"id\":").append(i)
+					.append(",\"name\":\"user-").append(i).append("\\u00e9\"")
+					.append(",\"score\":").append(i % 1000).append('.').append(i % 7)
+					.append(",\"active\":").append((i & 1) == 0)
+					.append(",\"tags\":[\"t").append(i % 5).append("\",\"t").append(i % 3).append("\"]}");
+		}
+		sb.append(']');
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Minimal recursive-descent JSON reader; folds every number and string length into a sum. */
+	private static final class JsonReader {
+		private final String s;
+		private int pos = 0;
+		private long fold = 0;
+		JsonReader(String s) { this.s = s; }
+
+		long foldRecords() { value(); return fold; }
+
+		private void value() {
+			skipWs();
+			char c = s.charAt(pos);
+			if (c == '{') object();
+			else if (c == '[') array();
+			else if (c == '"') fold += string().length();
+			else if (c == 't') { pos += 4; fold += 1; }
+			else if (c == 'f') { pos += 5; }
+			else if (c == 'n') { pos += 4; }
+			else number();
+		}
+
+		private void object() {
+			pos++;
+			skipWs();
+			if (s.charAt(pos) == '}') { pos++; return; }
+			while (true) {
+				skipWs();
+				fold += string().hashCode() & 0xFF;
+				skipWs();
+				expect(':');
+				value();
+				skipWs();
+				if (s.charAt(pos) == ',') { pos++; continue; }
+				expect('}');
+				return;
+			}
+		}
+
+		private void array() {
+			pos++;
+			skipWs();
+			if (s.charAt(pos) == ']') { pos++; return; }
+			while (true) {
+				value();
+				skipWs();
+				if (s.charAt(pos) == ',') { pos++; continue; }
+				expect(']');
+				return;
+			}
+		}
+
+		private String string() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = s.charAt(pos++);
+				if (c == '"') return sb.toString();
+				if (c == '\\') {
+					char e = s.charAt(pos++);
+					if (e == 'u') { sb.append((char)Integer.parseInt(s.substring(pos, pos + 4), 16)); pos += 4; }
+					else sb.append(e == 'n' ? '\n' : e == 't' ? '\t' : e);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+
+		private void number() {
+			int start = pos;
+			while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+			double d = Double.parseDouble(s.substring(start, pos));
+			fold += (long)(d * 10);
+		}
+
+		private void expect(char c) {
+			if (s.charAt(pos) != c) throw new IllegalStateException("expected '" + c + "' at " + pos);
+			pos++;
+		}
+
+		private void skipWs() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes, int limit) {
+		StringBuilder sb = new StringBuilder(limit * 2);
+		for (int i = 0; i < Math.min(limit, bytes.length); i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Linux-only thread pinning for shards. The JDK has no affinity API, so a thread pins itself
+ * by finding its kernel thread id through /proc/thread-self and running
+ * {@code taskset -p -c <cpus> <tid>} on it, which calls sched_setaffinity for that one thread.
+ * It costs a process spawn per thread, once, when the thread starts. Anywhere else, or without
+ * taskset, {@link #supported} is false and shards run unpinned.
+ *
+ * {@link #plan} reads the NUMA layout from sysfs and gives each shard CPUs of one node.
+ */
+final class CpuAffinity {
+	private static final Path THREAD_SELF = Paths.get("/proc/thread-self");
+	private static final Path NODES = Paths.get("/sys/devices/system/node");
+	private static final Path ONLINE = Paths.get("/sys/devices/system/cpu/online");
+
+	private CpuAffinity() {}
+
+	static boolean supported() {
+		return System.getProperty("os.name", "").startsWith("Linux") && Files.exists(THREAD_SELF) && taskset() != null;
+	}
+
+	/** Restricts the calling thread to {@code cpus} ("0-3,8"); false if the kernel or taskset refused. */
+	static boolean pinCurrentThread(String cpus) {
+		String taskset = taskset();
+		if (taskset == null) return false;
+		try {
+			String tid = Files.readSymbolicLink(THREAD_SELF).getFileName().toString();
+			Process p = new ProcessBuilder(taskset, "-p", "-c", cpus, tid).redirectErrorStream(true).start();
+			p.getInputStream().readAllBytes();
+			return p.waitFor(5, TimeUnit.SECONDS) && p.exitValue() == 0;
+		} catch (IOException | UnsupportedOperationException ex) {
+			return false;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** The calling thread's allowed CPUs as the kernel reports them, or null off Linux. */
+	static String currentThreadCpus() {
+		return allowedList(THREAD_SELF.resolve("status"));
+	}
+
+	/**
+	 * One CPU list per shard. With at least as many shards as NUMA nodes, shards are spread
+	 * over the nodes in contiguous blocks and each node's CPUs are split evenly between its
+	 * shards; a shard never spans two nodes, so its threads and the memory they touch first stay
+	 * local. Siblings of one core go to the same shard. With fewer shards than nodes each shard
+	 * takes whole nodes. Only CPUs this process may run on are used; shards outnumbering a node's
+	 * CPUs get one each, shared.
+	 */
+	static String[] plan(int shards) {
+		return plan(shards, nodes());
+	}
+
+	/** {@link #plan(int)} over {@code nodes}, each a node's CPUs with hyperthread siblings adjacent. */
+	static String[] plan(int shards, List<int[]> nodes) {
+		int n = nodes.size();
+		String[] sets = new String[shards];
+		for (int i = 0; i < shards; i++) {
+			if (shards <= n) {
+				TreeSet<Integer> union = new TreeSet<>();
+				for (int node = i * n / shards; node < (i + 1) * n / shards; node++) {
+					for (int cpu : nodes.get(node)) union.add(cpu);
+				}
+				sets[i] = format(union.stream().mapToInt(Integer::intValue).toArray());
+				continue;
+			}
+			int node = i * n / shards;
+			// Shards j with j * n / shards == node
+			int first = (node * shards + n - 1) / n;
+			int count = ((node + 1) * shards + n - 1) / n - first;
+			int[] cpus = nodes.get(node);
+			int k = i - first;
+			if (count >= cpus.length) {
+				sets[i] = String.valueOf(cpus[k * cpus.length / count]);
+				continue;
+			}
+			int[] slice = Arrays.copyOfRange(cpus, k * cpus.length / count, (k + 1) * cpus.length / count);
+			Arrays.sort(slice);
+			sets[i] = format(slice);
+		}
+		return sets;
+	}
+
+	/** NUMA node of the first CPU in {@code cpus}, or -1 when sysfs has no node layout. */
+	static int nodeOf(String cpus) {
+		int cpu = parse(cpus)[0];
+		TreeMap<Integer, int[]> layout = nodeLayout();
+		for (java.util.Map.Entry<Integer, int[]> e : layout.entrySet()) {
+			if (Arrays.binarySearch(e.getValue(), cpu) >= 0) return e.getKey();
+		}
+		return -1;
+	}
+
+	/** CPUs of each node with any this process may use, in node order; one pseudo-node without sysfs. */
+	private static List<int[]> nodes() {
+		int[] allowed = parse(allowedList(Paths.get("/proc/self/status")));
+		List<int[]> nodes = new ArrayList<>();
+		for (int[] cpus : nodeLayout().values()) {
+			int[] usable = allowed.length == 0 ? cpus : Arrays.stream(cpus).filter(c -> Arrays.binarySearch(allowed, c) >= 0).toArray();
+			if (usable.length > 0) nodes.add(byCore(usable));
+		}
+		if (nodes.isEmpty()) {
+			int[] cpus = allowed.length > 0 ? allowed : parse(read(ONLINE));
+			if (cpus.length == 0) {
+				cpus = new int[Runtime.getRuntime().availableProcessors()];
+				for (int i = 0; i < cpus.length; i++) cpus[i] = i;
+			}
+			nodes.add(byCore(cpus));
+		}
+		return nodes;
+	}
+
+	/**
+	 * {@code cpus} ordered by physical core, the lowest sibling in cpuN/topology/thread_siblings_list,
+	 * so a contiguous slice holds whole cores: 0,16,1,17 rather than 0,1 and 16,17 apart.
+	 */
+	private static int[] byCore(int[] cpus) {
+		long[] keyed = new long[cpus.length];
+		for (int i = 0; i < cpus.length; i++) {
+			int[] siblings = parse(read(Paths.get("/sys/devices/system/cpu/cpu" + cpus[i] + "/topology/thread_siblings_list")));
+			long core = siblings.length > 0 ? siblings[0] : cpus[i];
+			keyed[i] = core << 32 | cpus[i];
+		}
+		Arrays.sort(keyed);
+		int[] ordered = new int[cpus.length];
+		for (int i = 0; i < keyed.length; i++) ordered[i] = (int)keyed[i];
+		return ordered;
+	}
+
+	/** node number to its sorted CPUs, from /sys/devices/system/node/nodeN/cpulist; memory-only nodes left out. */
+	private static TreeMap<Integer, int[]> nodeLayout() {
+		TreeMap<Integer, int[]> layout = new TreeMap<>();
+		File[] dirs = NODES.toFile().listFiles((dir, name) -> name.matches("node\\d+"));
+		if (dirs == null) return layout;
+		for (File dir : dirs) {
+			int[] cpus = parse(read(dir.toPath().resolve("cpulist")));
+			if (cpus.length > 0) layout.put(Integer.parseInt(dir.getName().substring(4)), cpus);
+		}
+		return layout;
+	}
+
+	private static String allowedList(Path status) {
+		String text = read(status);
+		if (text == null) return null;
+		for (String line : text.split("\n")) {
+			if (line.startsWith("Cpus_allowed_list:")) return line.substring(line.indexOf(':') + 1).trim();
+		}
+		return null;
+	}
+
+	/** "0-3,8,10-11" to sorted CPU numbers; empty for null or malformed input. */
+	static int[] parse(String list) {
+		if (list == null || list.trim().isEmpty()) return new int[0];
+		TreeSet<Integer> cpus = new TreeSet<>();
+		try {
+			for (String part : list.trim().split(",")) {
+				int dash = part.indexOf('-');
+				int from = Integer.parseInt(part.substring(0, dash < 0 ? part.length() : dash).trim());
+				int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+				for (int c = from; c <= to; c++) cpus.add(c);
+			}
+		} catch (NumberFormatException ex) {
+			return new int[0];
+		}
+		return cpus.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/** Sorted CPU numbers back to the compact "0-3,8" form taskset takes. */
+	static String format(int[] cpus) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cpus.length; ) {
+			int j = i;
+			while (j + 1 < cpus.length && cpus[j + 1] == cpus[j] + 1) j++;
+			if (sb.length() > 0) sb.append(',');
+			sb.append(cpus[i]);
+			if (j > i) sb.append('-').append(cpus[j]);
+			i = j + 1;
+		}
+		return sb.toString();
+	}
+
+	private static String read(Path path) {
+		try {
+			return new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim();
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private static String taskset() {
+		for (String dir : new String[] { "/usr/bin", "/bin", "/usr/sbin", "/sbin" }) {
+			File f = new File(dir, "taskset");
+			if (f.canExecute()) return f.getPath();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ *
+ * Header lists travel as flat name/value lists ({@code [name0, value0, name1, value1, ...]}),
+ * in wire order, with strings as ISO-8859-1 so a string's length is its octet count. Both
+ * directions keep a dynamic table bounded by the HEADER_TABLE_SIZE setting, at most
+ * {@link #DEFAULT_TABLE_SIZE}; entries are evicted oldest first as new ones are added.
+ *
+ * The decoder takes what clients send, Huffman-coded strings included. The encoder only
+ * writes responses, whose fields repeat from one response to the next: a field already in
+ * the static or dynamic table goes out as a one- or two-byte index, and new fields are added
+ * to the dynamic table unless their value changes per response (content-length). Strings are
+ * sent as raw literals; the per-connection table already removes the repeats, and it keeps
+ * the encoder off the per-bit Huffman path on the write side.
+ */
+final class Hpack {
+	/** The protocol default, and the most either side of our connections uses. */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	private Hpack() {}
+
+	/** Malformed header block; a connection error (COMPRESSION_ERROR) in HTTP/2. */
+	static final class HpackException extends IOException {
+		private static final long serialVersionUID = 1L;
+		HpackException(String message) { super(message); }
+	}
+
+	// RFC 7541 Appendix A; index 1 is STATIC_TABLE[0]
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+		{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+		{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+		{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+		{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+		{ "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+		{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+		{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+		{ "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+		{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+		{ "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+		{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+		{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+		{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+		{ "www-authenticate", "" },
+	};
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+		}
+	}
+
+	// RFC 7541 Appendix B: code of each octet, right-aligned, and its length in bits
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+	private static final int EOS = 256;
+	private static final int EOS_CODE = 0x3fffffff;
+	private static final int EOS_LENGTH = 30;
+
+	// Decoding trie: children of node n at [2n] (bit 0) and [2n + 1] (bit 1); 0 means none, as
+	// the root is never a child. SYMBOLS[n] is the octet a leaf decodes to, -1 for inner nodes.
+	private static final short[] CHILDREN = new short[2 * 2 * (EOS + 1)];
+	private static final short[] SYMBOLS = new short[2 * (EOS + 1)];
+	static {
+		java.util.Arrays.fill(SYMBOLS, (short)-1);
+		int nodes = 1;
+		for (int sym = 0; sym <= EOS; sym++) {
+			int code = sym == EOS ? EOS_CODE : HUFFMAN_CODES[sym];
+			int length = sym == EOS ? EOS_LENGTH : HUFFMAN_LENGTHS[sym];
+			int node = 0;
+			for (int bit = length - 1; bit >= 0; bit--) {
+				int slot = 2 * node + ((code >>> bit) & 1);
+				if (CHILDREN[slot] == 0) CHILDREN[slot] = (short)nodes++;
+				node = CHILDREN[slot];
+			}
+			SYMBOLS[node] = (short)sym;
+		}
+	}
+
+	static int entrySize(String name, String value) {
+		return name.length() + value.length() + 32;
+	}
+
+	/**
+	 * FIFO of header fields bounded by the RFC 7541 entry size (name + value + 32 octets).
+	 * Index 0 is the newest entry. Slots are sized for the largest table the owner allows, so
+	 * adding never allocates.
+	 */
+	static final class DynamicTable {
+		private final String[] names;
+		private final String[] values;
+		private int newest = -1;
+		private int count;
+		private int size;
+		private int maxSize;
+
+		DynamicTable(int maxSize) {
+			int slots = maxSize / 32 + 1;
+			this.names = new String[slots];
+			this.values = new String[slots];
+			this.maxSize = maxSize;
+		}
+
+		int length() { return count; }
+
+		int size() { return size; }
+
+		int maxSize() { return maxSize; }
+
+		String name(int i) { return names[slot(i)]; }
+
+		String value(int i) { return values[slot(i)]; }
+
+		private int slot(int i) { return Math.floorMod(newest - i, names.length); }
+
+		/** Adds a field, evicting the oldest ones to make room; one larger than the table empties it. */
+		void add(String name, String value) {
+			int entry = entrySize(name, value);
+			while (count > 0 && size + entry > maxSize) evictOldest();
+			if (entry > maxSize) return;
+			newest = (newest + 1) % names.length;
+			names[newest] = name;
+			values[newest] = value;
+			count++;
+			size += entry;
+		}
+
+		/** New size limit, never above the one the table was created with. */
+		void setMaxSize(int max) {
+			maxSize = Math.min(max, (names.length - 1) * 32);
+			while (size > maxSize) evictOldest();
+		}
+
+		/** Index of the field, or of a field with this name when {@code value} is null; -1 if absent. */
+		int find(String name, String value) {
+			for (int i = 0; i < count; i++) {
+				int s = slot(i);
+				if (names[s].equals(name) && (value == null || values[s].equals(value))) return i;
+			}
+			return -1;
+		}
+
+		private void evictOldest() {
+			int s = slot(count - 1);
+			size -= entrySize(names[s], values[s]);
+			names[s] = null;
+			values[s] = null;
+			count--;
+		}
+	}
+
+	/** Decodes the header blocks of one connection, in the order they arrive. Single reader. */
+	static final class Decoder {
+		private final DynamicTable table;
+		// The HEADER_TABLE_SIZE we advertised: the most a size update may ask for
+		private final int maxTableSize;
+		private byte[] src;
+		private int pos;
+		private int end;
+
+		Decoder(int maxTableSize) {
+			this.table = new DynamicTable(maxTableSize);
+			this.maxTableSize = maxTableSize;
+		}
+
+		/** The complete header block of one HEADERS frame and its CONTINUATIONs, as name/value pairs. */
+		List<String> decode(byte[] block, int off, int len) throws HpackException {
+			src = block;
+			pos = off;
+			end = off + len;
+			List<String> fields = new ArrayList<>(16);
+			try {
+				while (pos < end) {
+					int b = src[pos] & 0xFF;
+					if ((b & 0x80) != 0) {
+						int index = readInt(7);
+						fields.add(name(index));
+						fields.add(value(index));
+					} else if ((b & 0x40) != 0) {
+						String[] field = readLiteral(6);
+						table.add(field[0], field[1]);
+						fields.add(field[0]);
+						fields.add(field[1]);
+					} else if ((b & 0x20) != 0) {
+						if (!fields.isEmpty()) throw new HpackException("table size update after a header field");
+						int size = readInt(5);
+						if (size > maxTableSize) throw new HpackException("table size update to " + size + " exceeds " + maxTableSize);
+						table.setMaxSize(size);
+					} else {
+						// Literal without indexing (0000) or never indexed (0001); the same to a decoder
+						String[] field = readLiteral(4);
+						fields.add(field[0]);
+						fields.add(field[1]);
+					}
+				}
+			} finally {
+				src = null;
+			}
+			return fields;
+		}
+
+		private String[] readLiteral(int prefixBits) throws HpackException {
+			int index = readInt(prefixBits);
+			String name = index == 0 ? readString() : name(index);
+			return new String[] { name, readString() };
+		}
+
+		private String name(int index) throws HpackException {
+			if (index >= 1 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][0];
+			int dynamic = index - STATIC_TABLE.length - 1;
+			if (index == 0 || dynamic >= table.length()) throw new HpackException("header index " + index + " out of range");
+			return table.name(dynamic);
+		}
+
+		private String value(int index) {
+			if (index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][1];
+			return table.value(index - STATIC_TABLE.length - 1);
+		}
+
+		/** RFC 7541 5.1 integer with an N-bit prefix; the flag bits above the prefix are skipped. */
+		private int readInt(int prefixBits) throws HpackException {
+			int mask = (1 << prefixBits) - 1;
+			int value = src[pos++] & mask;
+			if (value < mask) return value;
+			for (int shift = 0; ; shift += 7) {
+				if (pos >= end) throw new HpackException("truncated integer");
+				if (shift > 21) throw new HpackException("integer overflow");
+				int b = src[pos++] & 0xFF;
+				value += (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+		}
+
+		private String readString() throws HpackException {
+			if (pos >= end) throw new HpackException("truncated string");
+			boolean huffman = (src[pos] & 0x80) != 0;
+			int length = readInt(7);
+			if (length > end - pos) throw new HpackException("string length " + length + " exceeds the block");
+			String s = huffman ? huffmanDecode(src, pos, length) : new String(src, pos, length, StandardCharsets.ISO_8859_1);
+			pos += length;
+			return s;
+		}
+	}
+
+	/**
+	 * Bit-at-a-time walk of the code trie. The padding after the last symbol must be the
+	 * most significant bits of EOS (all ones) and shorter than a byte.
+	 */
+	static String huffmanDecode(byte[] src, int off, int len) throws HpackException {
+		StringBuilder sb = new StringBuilder(len + (len >>> 1));
+		int node = 0;
+		int depth = 0;
+		boolean ones = true;
+		for (int i = off; i < off + len; i++) {
+			int b = src[i] & 0xFF;
+			for (int bit = 7; bit >= 0; bit--) {
+				int v = (b >>> bit) & 1;
+				node = CHILDREN[2 * node + v];
+				if (node == 0) throw new HpackException("invalid Huffman code");
+				depth++;
+				ones &= v == 1;
+				int sym = SYMBOLS[node];
+				if (sym >= 0) {
+					if (sym == EOS) throw new HpackException("EOS inside a Huffman string");
+					sb.append((char)sym);
+					node = 0;
+					depth = 0;
+					ones = true;
+				}
+			}
+		}
+		if (depth > 7 || !ones) throw new HpackException("invalid Huffman padding");
+		return sb.toString();
+	}
+
+	/** Encodes the response header blocks of one connection; callers serialize use and frame order. */
+	static final class Encoder {
+		private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+		// Size updates owed at the start of the next block: the smallest limit seen, then the last
+		private int minPendingSize = -1;
+		private int pendingSize = -1;
+
+		/** Applies the peer's HEADER_TABLE_SIZE; we use at most DEFAULT_TABLE_SIZE of it. */
+		void setMaxTableSize(long peerSetting) {
+			int size = (int)Math.min(peerSetting, DEFAULT_TABLE_SIZE);
+			if (size == table.maxSize() && pendingSize < 0) return;
+			minPendingSize = minPendingSize < 0 ? size : Math.min(minPendingSize, size);
+			pendingSize = size;
+			table.setMaxSize(size);
+		}
+
+		void encode(ByteArrayOutputStream out, List<String> fields) {
+			if (pendingSize >= 0) {
+				if (minPendingSize < pendingSize) writeInt(out, 0x20, 5, minPendingSize);
+				writeInt(out, 0x20, 5, pendingSize);
+				minPendingSize = -1;
+				pendingSize = -1;
+			}
+			for (int i = 0; i + 1 < fields.size(); i += 2) encodeField(out, fields.get(i), fields.get(i + 1));
+		}
+
+		private void encodeField(ByteArrayOutputStream out, String name, String value) {
+			Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+			if (exact != null) {
+				writeInt(out, 0x80, 7, exact);
+				return;
+			}
+			int dynamic = table.find(name, value);
+			if (dynamic >= 0) {
+				writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamic);
+				return;
+			}
+			Integer staticName = STATIC_NAMES.get(name);
+			int nameIndex = staticName != null ? staticName : 0;
+			if (nameIndex == 0) {
+				int dynamicName = table.find(name, null);
+				if (dynamicName >= 0) nameIndex = STATIC_TABLE.length + 1 + dynamicName;
+			}
+			// Per-response values would only push the repeating fields out of the table
+			boolean index = !"content-length".equals(name) && entrySize(name, value) <= table.maxSize() / 2;
+			if (index) {
+				writeInt(out, 0x40, 6, nameIndex);
+			} else {
+				writeInt(out, 0x00, 4, nameIndex);
+			}
+			if (nameIndex == 0) writeString(out, name);
+			writeString(out, value);
+			if (index) table.add(name, value);
+		}
+
+		private static void writeString(ByteArrayOutputStream out, String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+			writeInt(out, 0x00, 7, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+			int mask = (1 << prefixBits) - 1;
+			if (value < mask) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | mask);
+			value -= mask;
+			while (value >= 0x80) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+	}
+}
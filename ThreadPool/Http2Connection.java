@@ -0,0 +1,1072 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of one cleartext HTTP/2 connection (RFC 9113), entered by prior knowledge (the
+ * client preface where a request line would be) or by an {@code Upgrade: h2c} request.
+ *
+ * The worker that saw the preface stays in {@link #readFrames}: it owns the HPACK decoder and
+ * the connection state, and turns every request stream into its own {@link Server.Task} on
+ * the worker deques, so the requests of one connection run on as many workers as are free.
+ * Handlers write an ordinary HTTP/1.1 response into {@link Stream#response()}, which takes
+ * the head apart into a HEADERS frame and sends the body as DATA frames, so every route
+ * serves HTTP/2 without knowing about it.
+ *
+ * Frames from different workers are assembled in one write buffer under {@code writeLock},
+ * which also orders the HPACK encoder's table updates with the frames that carry them. DATA
+ * waits on {@code flowLock} for send window. Received DATA is granted back with WINDOW_UPDATE
+ * only as handlers read it, so a slow upload buffers at most one stream window per stream
+ * and {@link #CONNECTION_WINDOW} per connection.
+ */
+final class Http2Connection {
+	/** Client connection preface; a prior-knowledge client sends it instead of a request. */
+	static final byte[] PREFACE = ResponseWriter.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+	/** The preface's first line as HttpStreams.readLine returns it. */
+	static final String PREFACE_LINE = "PRI * HTTP/2.0";
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/** Protocol default window; streams start with it in both directions. */
+	static final int DEFAULT_WINDOW = 65_535;
+	/** Largest frame payload we accept and send: the protocol default. */
+	static final int MAX_FRAME_SIZE = 16_384;
+	static final int MAX_CONCURRENT_STREAMS = 100;
+	/** Decoded request header list limit; larger requests are answered 431. */
+	static final int MAX_HEADER_LIST_SIZE = 16 * 1024;
+	/** Receive window of the whole connection, shared by its streams' unread request bodies. */
+	static final int CONNECTION_WINDOW = 1 << 20;
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+	// Idle reads wake up this often to notice a drain; a timeout before a frame's first byte consumes nothing
+	private static final int IDLE_POLL_MILLIS = 500;
+	// Hop-by-hop fields of the HTTP/1.1 heads handlers write; not allowed in HTTP/2
+	private static final java.util.Set<String> CONNECTION_FIELDS = java.util.Set.of(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings");
+	private static final byte[] SWITCHING_PROTOCOLS = ResponseWriter.ascii(
+			"HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+	/** Server preface and GOAWAY(last stream 0, REFUSED_STREAM): nothing was processed, retry elsewhere. */
+	static final byte[] REFUSED_CONNECTION = {
+		0, 0, 0, SETTINGS, 0, 0, 0, 0, 0,
+		0, 0, 8, GOAWAY, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, REFUSED_STREAM,
+	};
+
+	/** A connection error: answered with GOAWAY carrying {@code code}, then the connection closes. */
+	static final class Http2Exception extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int code;
+		Http2Exception(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	/** ByteArrayOutputStream whose array can be framed without a copy. */
+	private static final class Bytes extends ByteArrayOutputStream {
+		Bytes(int size) { super(size); }
+		byte[] array() { return buf; }
+	}
+
+	private final Server server;
+	private final Server.Connection conn;
+	private final BufferPool buffers;
+	private final long bodyTimeoutMillis;
+	private final InputStream in;
+	private final OutputStream out;
+	private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final byte[] frameHeader = new byte[9];
+
+	// Read side, touched only by the worker in readFrames
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+	private final Bytes headerBlock = new Bytes(1024);
+	private BufferPool.Buffer readBuffer;
+	private int lastStreamId;
+	private int continuationStream;
+	private boolean continuationEndStream;
+	private boolean goAwaySent;
+
+	// Write side: frames are assembled in writeBuffer and leave in one write per lock hold
+	private final Object writeLock = new Object();
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Bytes encoded = new Bytes(256);
+	private BufferPool.Buffer writeBuffer;
+	private int writeLength;
+	private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+	private volatile boolean closed;
+
+	// Flow control, guarded by flowLock
+	private final Object flowLock = new Object();
+	private long connectionSendWindow = DEFAULT_WINDOW;
+	private int initialSendWindow = DEFAULT_WINDOW;
+	private int connectionRecvWindow = CONNECTION_WINDOW;
+	private int connectionConsumed;
+
+	Http2Connection(Server server, Server.Connection conn, BufferPool buffers, long bodyTimeoutMillis) throws IOException {
+		this.server = server;
+		this.conn = conn;
+		this.buffers = buffers;
+		this.bodyTimeoutMillis = bodyTimeoutMillis;
+		this.in = conn.in();
+		this.out = conn.out();
+	}
+
+	Socket socket() { return conn.socket; }
+
+	/** Serves a prior-knowledge connection whose first line, {@link #PREFACE_LINE}, was already read. */
+	void servePriorKnowledge() throws IOException {
+		serve(PREFACE_LINE.length() + 2, null);
+	}
+
+	/**
+	 * Answers an {@code Upgrade: h2c} request with 101 and serves it as stream 1, which the
+	 * client has already half-closed, followed by whatever the client opens after its preface.
+	 * {@code headers} are the HTTP/1.1 request's, lower-cased.
+	 */
+	void serveUpgrade(String method, String target, Map<String, String> headers) throws IOException {
+		byte[] settings;
+		try {
+			settings = Base64.getUrlDecoder().decode(headers.getOrDefault("http2-settings", "").trim());
+		} catch (IllegalArgumentException ex) {
+			throw new HttpStreams.HttpException(400, "Bad Request", "HTTP2-Settings is not base64url");
+		}
+		if (settings.length % 6 != 0) throw new HttpStreams.HttpException(400, "Bad Request", "HTTP2-Settings length " + settings.length);
+		try {
+			applySettings(settings, 0, settings.length);
+		} catch (Http2Exception ex) {
+			throw new HttpStreams.HttpException(400, "Bad Request", "HTTP2-Settings: " + ex.getMessage());
+		}
+		out.write(SWITCHING_PROTOCOLS);
+		out.flush();
+		Map<String, String> fields = new HashMap<>();
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			if (!CONNECTION_FIELDS.contains(e.getKey())) fields.put(e.getKey(), e.getValue());
+		}
+		serve(0, new Stream(1, method, target, fields, null));
+	}
+
+	/**
+	 * Runs the connection on the calling worker until the peer closes it, a connection error,
+	 * or a drain with no streams left; then waits (up to the drain deadline) for streams still
+	 * running on other workers before the caller closes the socket.
+	 */
+	private void serve(int prefaceRead, Stream upgraded) throws IOException {
+		readBuffer = buffers.acquire(MAX_FRAME_SIZE);
+		writeBuffer = buffers.acquire(2 * (9 + MAX_FRAME_SIZE));
+		try {
+			writePreface();
+			if (upgraded != null) {
+				lastStreamId = 1;
+				upgraded.remoteClosed = true;
+				upgraded.body.end();
+				open(upgraded);
+			}
+			expectPreface(prefaceRead);
+			readFrames();
+			awaitStreams();
+		} catch (Http2Exception ex) {
+			goAway(ex.code, ex.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	private void expectPreface(int alreadyRead) throws IOException {
+		byte[] rest = new byte[PREFACE.length - alreadyRead];
+		readFully(rest, 0, rest.length);
+		for (int i = 0; i < rest.length; i++) {
+			if (rest[i] != PREFACE[alreadyRead + i]) throw new Http2Exception(PROTOCOL_ERROR, "bad connection preface");
+		}
+	}
+
+	/** Our SETTINGS, then the connection window raised from the default to CONNECTION_WINDOW. */
+	private void writePreface() throws IOException {
+		byte[] settings = new byte[3 * 6];
+		putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		putSetting(settings, 6, SETTINGS_MAX_FRAME_SIZE, MAX_FRAME_SIZE);
+		putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+		synchronized (writeLock) {
+			appendFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+			appendFrame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+			flushFrames();
+		}
+	}
+
+	private static void putSetting(byte[] b, int off, int id, int value) {
+		b[off] = (byte)(id >>> 8);
+		b[off + 1] = (byte)id;
+		b[off + 2] = (byte)(value >>> 24);
+		b[off + 3] = (byte)(value >>> 16);
+		b[off + 4] = (byte)(value >>> 8);
+		b[off + 5] = (byte)value;
+	}
+
+	private static byte[] int32(int value) {
+		return new byte[] { (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value };
+	}
+
+	private static int int31(byte[] b, int off) {
+		return ((b[off] & 0x7F) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	private void readFrames() throws IOException {
+		byte[] h = frameHeader;
+		byte[] payload = readBuffer.array;
+		boolean settingsSeen = false;
+		int first;
+		while ((first = nextFrame()) >= 0) {
+			h[0] = (byte)first;
+			readFully(h, 1, 8);
+			int length = ((h[0] & 0xFF) << 16) | ((h[1] & 0xFF) << 8) | (h[2] & 0xFF);
+			int type = h[3] & 0xFF;
+			int flags = h[4] & 0xFF;
+			int streamId = int31(h, 5);
+			if (length > MAX_FRAME_SIZE) throw new Http2Exception(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+			readFully(payload, 0, length);
+			if (!settingsSeen && type != SETTINGS) throw new Http2Exception(PROTOCOL_ERROR, "first frame is not SETTINGS");
+			settingsSeen = true;
+			if (continuationStream != 0 && type != CONTINUATION) throw new Http2Exception(PROTOCOL_ERROR, "header block interrupted");
+			switch (type) {
+				case DATA: onData(flags, streamId, payload, length); break;
+				case HEADERS: onHeaders(flags, streamId, payload, length); break;
+				case CONTINUATION: onContinuation(flags, streamId, payload, length); break;
+				case SETTINGS: onSettings(flags, streamId, payload, length); break;
+				case PING: onPing(flags, streamId, payload, length); break;
+				case WINDOW_UPDATE: onWindowUpdate(streamId, payload, length); break;
+				case RST_STREAM: onReset(streamId, payload, length); break;
+				case PRIORITY:
+					if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+					if (length != 5) resetStream(streamId, FRAME_SIZE_ERROR);
+					break;
+				case PUSH_PROMISE: throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+				case GOAWAY:
+					// The client opens nothing new and closes once its streams are answered
+					if (streamId != 0) throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+					break;
+				default:
+					// Unknown frame types are ignored
+			}
+		}
+	}
+
+	/**
+	 * First byte of the next frame, or -1 when the connection is done: the peer closed it, or
+	 * the server is draining, GOAWAY went out and every stream has finished.
+	 */
+	private int nextFrame() throws IOException {
+		conn.socket.setSoTimeout(IDLE_POLL_MILLIS);
+		while (true) {
+			if (server.isDraining()) {
+				if (!goAwaySent) goAway(NO_ERROR, "server shutting down");
+				if (streams.isEmpty()) return -1;
+			}
+			try {
+				return in.read();
+			} catch (SocketTimeoutException idle) {
+				// nothing consumed; check for a drain and wait again
+			}
+		}
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n;
+			try {
+				n = in.read(b, off, len);
+			} catch (SocketTimeoutException slow) {
+				continue;
+			}
+			if (n < 0) throw new EOFException("connection closed inside a frame");
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void onSettings(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId != 0) throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		if ((flags & FLAG_ACK) != 0) {
+			if (length != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+			return;
+		}
+		if (length % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS length " + length);
+		applySettings(payload, 0, length);
+		writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	private void applySettings(byte[] b, int off, int length) throws Http2Exception {
+		for (int p = off; p < off + length; p += 6) {
+			int id = ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+			long value = ((b[p + 2] & 0xFFL) << 24) | ((b[p + 3] & 0xFF) << 16) | ((b[p + 4] & 0xFF) << 8) | (b[p + 5] & 0xFF);
+			switch (id) {
+				case SETTINGS_HEADER_TABLE_SIZE:
+					synchronized (writeLock) { encoder.setMaxTableSize(value); }
+					break;
+				case SETTINGS_ENABLE_PUSH:
+					if (value > 1) throw new Http2Exception(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+					synchronized (flowLock) {
+						// Applies to every open stream as a delta; windows may go negative
+						int delta = (int)value - initialSendWindow;
+						initialSendWindow = (int)value;
+						for (Stream s : streams.values()) {
+							s.sendWindow += delta;
+							if (s.sendWindow > MAX_WINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, "stream window overflow");
+						}
+						flowLock.notifyAll();
+					}
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) throw new Http2Exception(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+					peerMaxFrameSize = (int)value;
+					break;
+				default:
+					// MAX_CONCURRENT_STREAMS limits pushes, which we never send; MAX_HEADER_LIST_SIZE
+					// is far above any response head here; unknown settings are ignored
+			}
+		}
+	}
+
+	private void onPing(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId != 0) throw new Http2Exception(PROTOCOL_ERROR, "PING on stream " + streamId);
+		if (length != 8) throw new Http2Exception(FRAME_SIZE_ERROR, "PING length " + length);
+		if ((flags & FLAG_ACK) == 0) writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+	}
+
+	private void onWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+		if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE length " + length);
+		int increment = int31(payload, 0);
+		if (streamId == 0) {
+			if (increment == 0) throw new Http2Exception(PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+			synchronized (flowLock) {
+				connectionSendWindow += increment;
+				if (connectionSendWindow > MAX_WINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window overflow");
+				flowLock.notifyAll();
+			}
+			return;
+		}
+		if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+		Stream s = streams.get(streamId);
+		if (s == null) return;
+		int error = 0;
+		synchronized (flowLock) {
+			if (increment == 0) {
+				error = PROTOCOL_ERROR;
+			} else if (s.sendWindow + increment > MAX_WINDOW) {
+				error = FLOW_CONTROL_ERROR;
+			} else {
+				s.sendWindow += increment;
+				flowLock.notifyAll();
+			}
+		}
+		if (error != 0) resetStream(streamId, error);
+	}
+
+	private void onReset(int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+		if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM length " + length);
+		if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+		Stream s = streams.get(streamId);
+		if (s != null) s.abort();
+	}
+
+	private void onHeaders(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+		int off = 0;
+		int end = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (length < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for padding");
+			end -= payload[0] & 0xFF;
+			off = 1;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) off += 5;
+		if (off > end) throw new Http2Exception(PROTOCOL_ERROR, "HEADERS padding exceeds payload");
+		headerBlock.reset();
+		headerBlock.write(payload, off, end - off);
+		boolean endStream = (flags & FLAG_END_STREAM) != 0;
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			onHeaderBlock(streamId, endStream);
+		} else {
+			continuationStream = streamId;
+			continuationEndStream = endStream;
+		}
+	}
+
+	private void onContinuation(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0 || streamId != continuationStream) throw new Http2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION");
+		// Compressed size stays below the decoded limit, plus slack for literals that did not compress
+		if (headerBlock.size() + length > 2 * MAX_HEADER_LIST_SIZE) throw new Http2Exception(PROTOCOL_ERROR, "header block too large");
+		headerBlock.write(payload, 0, length);
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			continuationStream = 0;
+			onHeaderBlock(streamId, continuationEndStream);
+		}
+	}
+
+	/** A complete header block: a new request, or the trailers that end one. */
+	private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+		List<String> fields;
+		try {
+			fields = decoder.decode(headerBlock.array(), 0, headerBlock.size());
+		} catch (Hpack.HpackException ex) {
+			throw new Http2Exception(COMPRESSION_ERROR, ex.getMessage());
+		}
+		Stream existing = streams.get(streamId);
+		if (existing != null || streamId <= lastStreamId) {
+			// Trailers: decoded to keep the HPACK table in step, then dropped
+			if (existing == null) return;
+			if (!endStream || existing.remoteClosed) {
+				resetStream(streamId, existing.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+				return;
+			}
+			existing.remoteClosed = true;
+			existing.body.end();
+			return;
+		}
+		if ((streamId & 1) == 0) throw new Http2Exception(PROTOCOL_ERROR, "even stream id " + streamId + " from a client");
+		lastStreamId = streamId;
+		if (goAwaySent || streams.size() >= MAX_CONCURRENT_STREAMS) {
+			resetStream(streamId, REFUSED_STREAM);
+			return;
+		}
+		String method = null;
+		String path = null;
+		String authority = null;
+		boolean regular = false;
+		boolean malformed = false;
+		int listSize = 0;
+		Map<String, String> headers = new HashMap<>();
+		for (int i = 0; i < fields.size(); i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			listSize += Hpack.entrySize(name, value);
+			if (name.startsWith(":")) {
+				if (regular) malformed = true;
+				switch (name) {
+					case ":method": malformed |= method != null; method = value; break;
+					case ":path": malformed |= path != null; path = value; break;
+					case ":authority": authority = value; break;
+					case ":scheme": break;
+					default: malformed = true;
+				}
+				continue;
+			}
+			regular = true;
+			if (CONNECTION_FIELDS.contains(name) || !name.equals(name.toLowerCase())
+					|| ("te".equals(name) && !"trailers".equals(value))) {
+				malformed = true;
+			}
+			String previous = headers.get(name);
+			headers.put(name, previous == null ? value : previous + ("cookie".equals(name) ? "; " : ", ") + value);
+		}
+		if (malformed || method == null || path == null || path.isEmpty()) {
+			resetStream(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		if (authority != null) headers.putIfAbsent("host", authority);
+		HttpStreams.HttpException error = listSize > MAX_HEADER_LIST_SIZE
+				? new HttpStreams.HttpException(431, "Request Header Fields Too Large", "header list exceeds " + MAX_HEADER_LIST_SIZE + " bytes")
+				: null;
+		Stream s = new Stream(streamId, method, path, headers, error);
+		if (endStream) {
+			s.remoteClosed = true;
+			s.body.end();
+		}
+		open(s);
+	}
+
+	private void open(Stream s) {
+		synchronized (flowLock) { s.sendWindow = initialSendWindow; }
+		streams.put(s.id, s);
+		if (!server.dispatchStream(s)) refuse(s);
+	}
+
+	private void onData(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+		int off = 0;
+		int end = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (length < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "DATA too short for padding");
+			end -= payload[0] & 0xFF;
+			off = 1;
+			if (off > end) throw new Http2Exception(PROTOCOL_ERROR, "DATA padding exceeds payload");
+		}
+		// The whole frame counts against both windows, padding included
+		synchronized (flowLock) {
+			if (length > connectionRecvWindow) throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window exceeded");
+			connectionRecvWindow -= length;
+		}
+		Stream s = streams.get(streamId);
+		if (s == null) {
+			if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+			// A stream we already finished or reset; its bytes are released at once
+			consumed(null, length);
+			return;
+		}
+		if (s.remoteClosed) {
+			consumed(null, length);
+			resetStream(streamId, STREAM_CLOSED);
+			return;
+		}
+		boolean overflow;
+		synchronized (flowLock) {
+			overflow = length > s.recvWindow;
+			if (!overflow) s.recvWindow -= length;
+		}
+		if (overflow) {
+			consumed(null, length);
+			resetStream(streamId, FLOW_CONTROL_ERROR);
+			return;
+		}
+		if (end > off) s.body.append(java.util.Arrays.copyOfRange(payload, off, end));
+		// Padding and the pad length octet are granted back straight away
+		if (length - (end - off) > 0) consumed(s, length - (end - off));
+		if ((flags & FLAG_END_STREAM) != 0) {
+			s.remoteClosed = true;
+			s.body.end();
+		}
+	}
+
+	/**
+	 * Grants {@code n} received bytes back once they have been read (or thrown away), with a
+	 * WINDOW_UPDATE when half a window has built up, so uploads do not cost a frame per read.
+	 * {@code s} is null for bytes of streams that are already gone.
+	 */
+	void consumed(Stream s, int n) throws IOException {
+		int streamIncrement = 0;
+		int connectionIncrement = 0;
+		synchronized (flowLock) {
+			connectionConsumed += n;
+			if (connectionConsumed >= CONNECTION_WINDOW / 2) {
+				connectionIncrement = connectionConsumed;
+				connectionRecvWindow += connectionConsumed;
+				connectionConsumed = 0;
+			}
+			if (s != null && !s.remoteClosed) {
+				s.consumed += n;
+				if (s.consumed >= DEFAULT_WINDOW / 2) {
+					streamIncrement = s.consumed;
+					s.recvWindow += s.consumed;
+					s.consumed = 0;
+				}
+			}
+		}
+		if (streamIncrement == 0 && connectionIncrement == 0) return;
+		synchronized (writeLock) {
+			if (connectionIncrement > 0) appendFrame(WINDOW_UPDATE, 0, 0, int32(connectionIncrement), 0, 4);
+			if (streamIncrement > 0) appendFrame(WINDOW_UPDATE, 0, s.id, int32(streamIncrement), 0, 4);
+			flushFrames();
+		}
+	}
+
+	/** Turns a stream away before a handler saw it; the client may retry it elsewhere. */
+	void refuse(Stream s) {
+		server.http2Refused();
+		try {
+			resetStream(s.id, REFUSED_STREAM);
+		} catch (IOException ignore) {
+			// the connection is gone, and the stream with it
+		}
+	}
+
+	private void resetStream(int streamId, int code) throws IOException {
+		Stream s = streams.get(streamId);
+		if (s != null) s.abort();
+		writeFrame(RST_STREAM, 0, streamId, int32(code), 0, 4);
+	}
+
+	private void goAway(int code, String debug) {
+		goAwaySent = true;
+		byte[] text = debug == null ? new byte[0] : debug.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = new byte[8 + Math.min(text.length, 256)];
+		System.arraycopy(int32(lastStreamId), 0, payload, 0, 4);
+		System.arraycopy(int32(code), 0, payload, 4, 4);
+		System.arraycopy(text, 0, payload, 8, payload.length - 8);
+		try {
+			writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+		} catch (IOException ignore) {
+			// the peer is gone already
+		}
+	}
+
+	/** Streams dispatched before the read side ended may still be writing their responses. */
+	private void awaitStreams() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.drainMillis());
+		synchronized (flowLock) {
+			while (!streams.isEmpty() && !closed) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return;
+				try {
+					flowLock.wait(Math.max(1, left / 1_000_000L));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/** Fails everything still open and returns the buffers; the caller closes the socket. */
+	private void close() {
+		synchronized (flowLock) {
+			closed = true;
+			flowLock.notifyAll();
+		}
+		for (Stream s : streams.values()) s.abort();
+		synchronized (writeLock) {
+			if (writeBuffer != null) writeBuffer.close();
+			writeBuffer = null;
+		}
+		if (readBuffer != null) readBuffer.close();
+		readBuffer = null;
+	}
+
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+		synchronized (writeLock) {
+			appendFrame(type, flags, streamId, payload, off, len);
+			flushFrames();
+		}
+	}
+
+	/** Lays one frame into the write buffer. Caller holds writeLock and ends with flushFrames. */
+	private void appendFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+		if (writeBuffer == null) throw new IOException("HTTP/2 connection closed");
+		byte[] buf = writeBuffer.array;
+		if (writeLength + 9 + len > buf.length) flushFrames();
+		int p = writeLength;
+		buf[p] = (byte)(len >>> 16);
+		buf[p + 1] = (byte)(len >>> 8);
+		buf[p + 2] = (byte)len;
+		buf[p + 3] = (byte)type;
+		buf[p + 4] = (byte)flags;
+		buf[p + 5] = (byte)(streamId >>> 24);
+		buf[p + 6] = (byte)(streamId >>> 16);
+		buf[p + 7] = (byte)(streamId >>> 8);
+		buf[p + 8] = (byte)streamId;
+		System.arraycopy(payload, off, buf, p + 9, len);
+		writeLength = p + 9 + len;
+	}
+
+	private void flushFrames() throws IOException {
+		if (writeLength == 0) return;
+		int len = writeLength;
+		writeLength = 0;
+		try {
+			out.write(writeBuffer.array, 0, len);
+			out.flush();
+		} catch (IOException ex) {
+			synchronized (flowLock) {
+				closed = true;
+				flowLock.notifyAll();
+			}
+			throw ex;
+		}
+	}
+
+	/** HPACK-encodes {@code fields} into HEADERS plus CONTINUATION frames, back to back. Caller holds writeLock. */
+	private void appendHeaders(int streamId, List<String> fields, boolean endStream) throws IOException {
+		encoded.reset();
+		encoder.encode(encoded, fields);
+		int len = encoded.size();
+		int max = Math.min(peerMaxFrameSize, MAX_FRAME_SIZE);
+		int off = 0;
+		do {
+			int n = Math.min(max, len - off);
+			int flags = (off + n == len ? FLAG_END_HEADERS : 0) | (off == 0 && endStream ? FLAG_END_STREAM : 0);
+			appendFrame(off == 0 ? HEADERS : CONTINUATION, flags, streamId, encoded.array(), off, n);
+			off += n;
+		} while (off < len);
+	}
+
+	/**
+	 * Sends response headers (if {@code fields} is not null) and {@code len} body bytes on
+	 * {@code s}, waiting for send window as needed; the last frame carries END_STREAM when
+	 * {@code endStream}. Headers and the first DATA frame leave in one write.
+	 */
+	private void send(Stream s, List<String> fields, byte[] b, int off, int len, boolean endStream) throws IOException {
+		do {
+			int n = len == 0 ? 0 : reserveWindow(s, Math.min(len, Math.min(peerMaxFrameSize, MAX_FRAME_SIZE)));
+			boolean last = n == len;
+			synchronized (writeLock) {
+				if (s.reset) throw new IOException("stream " + s.id + " reset");
+				if (fields != null) appendHeaders(s.id, fields, endStream && len == 0);
+				if (len > 0 || fields == null) appendFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, s.id, b, off, n);
+				flushFrames();
+			}
+			fields = null;
+			off += n;
+			len -= n;
+		} while (len > 0);
+		if (endStream) s.localClosed = true;
+	}
+
+	/** Takes up to {@code want} bytes of send window from the connection and the stream. */
+	private int reserveWindow(Stream s, int want) throws IOException {
+		synchronized (flowLock) {
+			while (true) {
+				if (s.reset || closed) throw new IOException("stream " + s.id + " reset");
+				long available = Math.min(connectionSendWindow, s.sendWindow);
+				if (available > 0) {
+					int n = (int)Math.min(want, available);
+					connectionSendWindow -= n;
+					s.sendWindow -= n;
+					return n;
+				}
+				try {
+					flowLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new java.io.InterruptedIOException("waiting for HTTP/2 send window");
+				}
+			}
+		}
+	}
+
+	/**
+	 * One request stream: the task a worker runs for it, its request body as it arrives, and
+	 * the response stream the handlers write into.
+	 */
+	final class Stream extends Server.Task {
+		final int id;
+		final String method;
+		final String target;
+		final Map<String, String> headers;
+		// Set when the request is answered with an error instead of being routed
+		final HttpStreams.HttpException error;
+		final AccessLog.Exchange exchange = new AccessLog.Exchange(System.nanoTime());
+		final RequestBody body = new RequestBody(this);
+		// Flow control, guarded by flowLock
+		long sendWindow;
+		int recvWindow = DEFAULT_WINDOW;
+		int consumed;
+		// Set by the reader; END_STREAM seen, nothing more may arrive
+		volatile boolean remoteClosed;
+		volatile boolean localClosed;
+		volatile boolean reset;
+
+		Stream(int id, String method, String target, Map<String, String> headers, HttpStreams.HttpException error) {
+			this.id = id;
+			this.method = method;
+			this.target = target;
+			this.headers = headers;
+			this.error = error;
+		}
+
+		Socket socket() { return conn.socket; }
+
+		OutputStream response() { return new ResponseStream(this); }
+
+		@Override void run(Server server) { server.handleHttp2Stream(this); }
+
+		@Override void reject(Server server) { refuse(this); }
+
+		/** RST_STREAM in either direction: wake the handler's reads and writes. */
+		void abort() {
+			reset = true;
+			streams.remove(id, this);
+			body.end();
+			synchronized (flowLock) { flowLock.notifyAll(); }
+		}
+
+		/**
+		 * Called by the worker after the handler returns. An unfinished response is reset; a
+		 * finished one with the client still uploading gets RST_STREAM(NO_ERROR), which tells
+		 * it to stop. Unread body bytes go back to the connection window.
+		 */
+		void finish() {
+			try {
+				if (!reset && !localClosed) {
+					resetStream(id, INTERNAL_ERROR);
+				} else if (!reset && !remoteClosed) {
+					resetStream(id, NO_ERROR);
+				}
+				int unread = body.discard();
+				if (unread > 0) consumed(null, unread);
+			} catch (IOException ignore) {
+				// the connection is closing; nothing left to tell the peer
+			} finally {
+				streams.remove(id, this);
+				synchronized (flowLock) { flowLock.notifyAll(); }
+			}
+		}
+	}
+
+	/** DATA payloads the handler has not read yet; EOF at END_STREAM, an error after a reset. */
+	final class RequestBody extends InputStream {
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+		private int chunkPos;
+		private int buffered;
+		private boolean ended;
+		private final Stream stream;
+
+		RequestBody(Stream stream) { this.stream = stream; }
+
+		private synchronized void append(byte[] data) {
+			chunks.addLast(data);
+			buffered += data.length;
+			notifyAll();
+		}
+
+		private synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		private synchronized int discard() {
+			int n = buffered;
+			chunks.clear();
+			buffered = 0;
+			return n;
+		}
+
+		@Override public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			int n;
+			synchronized (this) {
+				long deadline = bodyTimeoutMillis > 0 ? System.nanoTime() + bodyTimeoutMillis * 1_000_000L : 0;
+				while (chunks.isEmpty()) {
+					if (stream.reset) throw new IOException("stream " + stream.id + " reset");
+					if (ended) return -1;
+					long wait = 0;
+					if (deadline != 0) {
+						wait = (deadline - System.nanoTime()) / 1_000_000L;
+						if (wait <= 0) throw new SocketTimeoutException("request body read timed out");
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new java.io.InterruptedIOException("waiting for request body");
+					}
+				}
+				byte[] chunk = chunks.peekFirst();
+				n = Math.min(len, chunk.length - chunkPos);
+				System.arraycopy(chunk, chunkPos, b, off, n);
+				chunkPos += n;
+				if (chunkPos == chunk.length) {
+					chunks.pollFirst();
+					chunkPos = 0;
+				}
+				buffered -= n;
+			}
+			consumed(stream, n);
+			return n;
+		}
+	}
+
+	/**
+	 * Turns the HTTP/1.1 response a handler writes into frames. The head becomes HEADERS
+	 * (a 1xx head is sent as an interim HEADERS), hop-by-hop fields are dropped, a chunked body
+	 * is unwrapped, and body bytes are collected into DATA frames of up to the frame size.
+	 * flush() sends what is collected; the last byte of a Content-Length body, or close(),
+	 * ends the stream, so a small response is HEADERS and one DATA frame in one write.
+	 */
+	private final class ResponseStream extends OutputStream {
+		private static final int SIZE = 0, CHUNK = 1, CHUNK_END = 2, TRAILERS = 3, DONE = 4;
+		private final Stream stream;
+		private final Bytes head = new Bytes(256);
+		private final BufferPool.Buffer data;
+		private int dataLength;
+		private List<String> pendingHeaders;
+		private boolean headDone;
+		private boolean chunked;
+		// Body bytes still to come when the head gave a Content-Length, else -1
+		private long bodyRemaining = -1;
+		private int chunkState = SIZE;
+		private long chunkRemaining;
+		private boolean chunkExtension;
+		private int trailerLine;
+		private boolean finished;
+
+		ResponseStream(Stream stream) {
+			this.stream = stream;
+			this.data = buffers.acquire(MAX_FRAME_SIZE);
+		}
+
+		@Override public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			if (finished) throw new IOException("response closed");
+			int end = off + len;
+			while (off < end && !headDone) {
+				head.write(b[off++]);
+				int n = head.size();
+				byte[] h = head.array();
+				if (n >= 4 && h[n - 4] == '\r' && h[n - 3] == '\n' && h[n - 2] == '\r' && h[n - 1] == '\n') parseHead();
+			}
+			if (off < end) body(b, off, end - off);
+		}
+
+		private void parseHead() throws IOException {
+			String[] lines = new String(head.array(), 0, head.size() - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+			head.reset();
+			int status;
+			try {
+				status = Integer.parseInt(lines[0].substring(9, 12));
+			} catch (RuntimeException ex) {
+				throw new IOException("unparseable status line: " + lines[0]);
+			}
+			List<String> fields = new ArrayList<>(2 * lines.length);
+			fields.add(":status");
+			fields.add(Integer.toString(status));
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0) continue;
+				String name = lines[i].substring(0, colon).trim().toLowerCase();
+				String value = lines[i].substring(colon + 1).trim();
+				if ("transfer-encoding".equals(name)) chunked = "chunked".equalsIgnoreCase(value);
+				if ("content-length".equals(name)) {
+					try { bodyRemaining = Long.parseLong(value); } catch (NumberFormatException ignore) {}
+				}
+				if (CONNECTION_FIELDS.contains(name)) continue;
+				fields.add(name);
+				fields.add(value);
+			}
+			if (status < 200) {
+				send(stream, fields, data.array, 0, 0, false);
+				return;
+			}
+			pendingHeaders = fields;
+			headDone = true;
+			if (bodyRemaining == 0 && !chunked) sendCollected(true);
+		}
+
+		private void body(byte[] b, int off, int len) throws IOException {
+			if (stream.localClosed) return;
+			if (!chunked) {
+				if (bodyRemaining >= 0) len = (int)Math.min(len, bodyRemaining);
+				collect(b, off, len);
+				if (bodyRemaining >= 0) {
+					bodyRemaining -= len;
+					if (bodyRemaining == 0) sendCollected(true);
+				}
+				return;
+			}
+			int end = off + len;
+			while (off < end) {
+				switch (chunkState) {
+					case SIZE: {
+						int c = b[off++];
+						if (c == '\n') {
+							chunkState = chunkRemaining == 0 ? TRAILERS : CHUNK;
+							chunkExtension = false;
+						} else if (c == ';') {
+							chunkExtension = true;
+						} else if (!chunkExtension && Character.digit(c, 16) >= 0) {
+							chunkRemaining = chunkRemaining * 16 + Character.digit(c, 16);
+						}
+						break;
+					}
+					case CHUNK: {
+						int n = (int)Math.min(end - off, chunkRemaining);
+						collect(b, off, n);
+						off += n;
+						chunkRemaining -= n;
+						if (chunkRemaining == 0) chunkState = CHUNK_END;
+						break;
+					}
+					case CHUNK_END:
+						if (b[off++] == '\n') chunkState = SIZE;
+						break;
+					case TRAILERS: {
+						int c = b[off++];
+						if (c == '\n') {
+							if (trailerLine == 0) chunkState = DONE;
+							trailerLine = 0;
+						} else if (c != '\r') {
+							trailerLine++;
+						}
+						break;
+					}
+					default:
+						off = end;
+				}
+			}
+		}
+
+		private void collect(byte[] b, int off, int len) throws IOException {
+			byte[] buf = data.array;
+			int frame = Math.min(peerMaxFrameSize, MAX_FRAME_SIZE);
+			while (len > 0) {
+				if (dataLength == frame) sendCollected(false);
+				int n = Math.min(len, frame - dataLength);
+				System.arraycopy(b, off, buf, dataLength, n);
+				dataLength += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void sendCollected(boolean endStream) throws IOException {
+			send(stream, pendingHeaders, data.array, 0, dataLength, endStream);
+			pendingHeaders = null;
+			dataLength = 0;
+		}
+
+		@Override public void flush() throws IOException {
+			if (finished || !headDone || stream.localClosed) return;
+			if (pendingHeaders != null || dataLength > 0) sendCollected(false);
+		}
+
+		@Override public void close() throws IOException {
+			if (finished) return;
+			finished = true;
+			try {
+				// A handler that wrote no complete head has failed; finish() resets the stream
+				if (headDone && !stream.reset && !stream.localClosed) sendCollected(true);
+			} finally {
+				data.close();
+			}
+		}
+	}
+}
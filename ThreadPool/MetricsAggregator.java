@@ -0,0 +1,166 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Builds the /metrics body on one daemon thread every metricsIntervalMillis and publishes it
+ * pre-encoded, so a scrape is a volatile read and a write of bytes that already exist: no
+ * sorting, no deque locks, no JSON building on the request path, however often dashboards poll.
+ * The cost is staleness of up to one interval.
+ *
+ * Each build also samples the registered counters into a ring covering the longest window, so
+ * the body carries per-second rates over the last 1, 10 and 60 seconds next to the totals.
+ * Until a window has been running for its full length its rate covers the samples there are.
+ *
+ * A published {@link Snapshot} is never modified: a slow scrape may still be writing one when
+ * the next is built, so each build encodes into fresh arrays rather than recycling the last.
+ */
+final class MetricsAggregator extends Thread {
+	static final int[] WINDOW_SECONDS = { 1, 10, 60 };
+	static final long MIN_INTERVAL_MILLIS = 50;
+	// Enough samples for the longest window at the shortest interval, plus the endpoints
+	private static final int SLOTS = (int)(WINDOW_SECONDS[WINDOW_SECONDS.length - 1] * 1000 / MIN_INTERVAL_MILLIS) + 2;
+
+	/** One published /metrics body. */
+	static final class Snapshot {
+		// As /metrics serves it
+		final byte[] json;
+		// The same JSON without line breaks, for an SSE data: line
+		final byte[] line;
+		final long sequence;
+
+		Snapshot(byte[] json, long sequence) {
+			this.json = json;
+			this.sequence = sequence;
+			int breaks = 0;
+			for (byte b : json) if (b == '\n') breaks++;
+			byte[] l = new byte[json.length - breaks];
+			int pos = 0;
+			for (byte b : json) if (b != '\n') l[pos++] = b;
+			this.line = l;
+		}
+	}
+
+	private final Config.Setting intervalMillis;
+	private final Supplier<String> body;
+	private final List<String> names = new ArrayList<>();
+	private final List<LongSupplier> counters = new ArrayList<>();
+	// Sample ring: times and counter values, oldest at head
+	private final long[] sampleNanos = new long[SLOTS];
+	private long[][] samples;
+	private int head;
+	private int size;
+	private volatile Snapshot snapshot;
+	private volatile boolean running = true;
+	private long sequence;
+	private long buildNanos;
+	private long takenMillis;
+
+	MetricsAggregator(Config.Setting intervalMillis, Supplier<String> body) {
+		super("metrics");
+		setDaemon(true);
+		this.intervalMillis = intervalMillis;
+		this.body = body;
+	}
+
+	/** Adds a monotonic counter to the windowed rates; call before the first {@link #publish}. */
+	MetricsAggregator counter(String name, LongSupplier value) {
+		names.add(name);
+		counters.add(value);
+		return this;
+	}
+
+	/** The latest body; built on the spot only if nothing has been published yet. */
+	Snapshot snapshot() {
+		Snapshot s = snapshot;
+		return s != null ? s : publish();
+	}
+
+	@Override public void run() {
+		while (running) {
+			LockSupport.parkNanos(Math.max(MIN_INTERVAL_MILLIS, intervalMillis.asLong()) * 1_000_000L);
+			if (!running) break;
+			try {
+				publish();
+			} catch (RuntimeException ex) {
+				// A failed build keeps the previous snapshot; the next tick tries again
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	void close() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	/** Samples the counters, builds the body and publishes it. */
+	synchronized Snapshot publish() {
+		long start = System.nanoTime();
+		sample(start);
+		takenMillis = System.currentTimeMillis();
+		sequence++;
+		Snapshot s = new Snapshot(body.get().getBytes(StandardCharsets.UTF_8), sequence);
+		snapshot = s;
+		buildNanos = System.nanoTime() - start;
+		return s;
+	}
+
+	private void sample(long now) {
+		if (samples == null) samples = new long[SLOTS][counters.size()];
+		int slot = (head + size) % SLOTS;
+		if (size == SLOTS) {
+			head = (head + 1) % SLOTS;
+		} else {
+			size++;
+		}
+		sampleNanos[slot] = now;
+		long[] values = samples[slot];
+		for (int i = 0; i < values.length; i++) values[i] = counters.get(i).getAsLong();
+	}
+
+	/**
+	 * {"requests": {"1s": r, "10s": r, "60s": r}, ...} per second, from the newest sample back
+	 * to the newest one at least a window old (or the oldest there is). Called by the body
+	 * supplier during {@link #publish}.
+	 */
+	String ratesJson() {
+		StringBuilder sb = new StringBuilder(64 * names.size());
+		sb.append('{');
+		if (size > 0) {
+			int newest = (head + size - 1) % SLOTS;
+			long now = sampleNanos[newest];
+			for (int c = 0; c < names.size(); c++) {
+				if (c > 0) sb.append(", ");
+				sb.append('"').append(names.get(c)).append("\": {");
+				for (int w = 0; w < WINDOW_SECONDS.length; w++) {
+					int from = sampleAtOrBefore(now - WINDOW_SECONDS[w] * 1_000_000_000L);
+					long dt = now - sampleNanos[from];
+					double rate = dt > 0 ? (samples[newest][c] - samples[from][c]) * 1e9 / dt : 0;
+					if (w > 0) sb.append(", ");
+					sb.append('"').append(WINDOW_SECONDS[w]).append("s\": ").append(Math.round(rate * 10) / 10.0);
+				}
+				sb.append('}');
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	/** Newest sample taken at or before {@code nanos}; the oldest sample if none is that old. */
+	private int sampleAtOrBefore(long nanos) {
+		for (int i = size - 1; i >= 0; i--) {
+			int slot = (head + i) % SLOTS;
+			if (sampleNanos[slot] - nanos <= 0) return slot;
+		}
+		return head;
+	}
+
+	/** {"sequence": n, "takenAtMillis": t, "intervalMs": i, "buildMs": b}; buildMs is the previous build's. */
+	String infoJson() {
+		return "{\"sequence\": " + sequence + ", \"takenAtMillis\": " + takenMillis + ", \"intervalMs\": " + intervalMillis.asLong()
+				+ ", \"buildMs\": " + buildNanos / 1000 / 1000.0 + "}";
+	}
+}
@@ -0,0 +1,25 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter with no other hot data on its cache lines. Plain AtomicLong fields allocated
+ * together in a constructor end up 16 bytes apart, so every worker bumping totalRequests also
+ * invalidates the line holding totalLatencyNanos and the latency write index.
+ *
+ * The value sits in the middle of a 33-element array: array elements are never reordered, so
+ * it has 128 bytes of padding either side, a line plus the neighbour that adjacent-line
+ * prefetchers pull in with it. @Contended would do the same but is off outside the JDK.
+ */
+final class PaddedCounter {
+	private static final int PAD = 16;
+	private final AtomicLongArray cells = new AtomicLongArray(2 * PAD + 1);
+
+	long get() { return cells.get(PAD); }
+
+	void add(long delta) { cells.getAndAdd(PAD, delta); }
+
+	void increment() { cells.getAndIncrement(PAD); }
+
+	void decrement() { cells.getAndDecrement(PAD); }
+
+	long getAndIncrement() { return cells.getAndIncrement(PAD); }
+}
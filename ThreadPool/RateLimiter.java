@@ -0,0 +1,20 @@
+/**
+ * Token bucket shared by the acceptors. It refills at the rate passed to each call, so a live
+ * change of the limit applies from the next connection, and holds at most one second's worth.
+ */
+final class RateLimiter {
+	private double tokens = -1;
+	private long lastNanos;
+
+	synchronized boolean tryAcquire(long perSecond, long nowNanos) {
+		if (tokens < 0) {
+			tokens = perSecond;
+		} else {
+			tokens = Math.min(perSecond, tokens + (nowNanos - lastNanos) * (perSecond / 1e9));
+		}
+		lastNanos = nowNanos;
+		if (tokens < 1) return false;
+		tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * The bounded ring behind {@link AccessLog} and {@link Tracer}: preallocated records reused in
+ * place, any number of producers, one consumer. A producer claims a slot with one CAS on the
+ * tail, fills the record and publishes it with a lazySet; nothing blocks, and a full ring
+ * refuses the claim so the caller can drop and count. The consumer reads published records in
+ * order and hands each slot back once it has copied what it needs.
+ *
+ * Also holds the JSON string escaper both use for their lines.
+ */
+final class RecordRing<T> {
+	private final Object[] slots;
+	// slot i is free for position p when seq == p, published when seq == p + 1
+	private final AtomicLongArray sequence;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0);
+	private long head = 0; // consumer only
+
+	/** {@code capacity} slots, rounded up to a power of two, each filled by {@code factory}. */
+	RecordRing(int capacity, Supplier<T> factory) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.slots = new Object[size];
+		this.sequence = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			slots[i] = factory.get();
+			sequence.set(i, i);
+		}
+	}
+
+	/** A free slot's position for the calling producer, or -1 when the ring is full. */
+	long claim() {
+		long pos = tail.get();
+		while (true) {
+			long dif = sequence.get((int)pos & mask) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) return pos;
+				pos = tail.get();
+			} else if (dif < 0) {
+				return -1;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/** The record at a claimed position, to fill before {@link #publish}. */
+	@SuppressWarnings("unchecked")
+	T slot(long pos) { return (T)slots[(int)pos & mask]; }
+
+	/** Makes the record at {@code pos} visible to the consumer. */
+	void publish(long pos) { sequence.lazySet((int)pos & mask, pos + 1); }
+
+	/** Consumer only: the oldest published record, or null; {@link #release} it once read. */
+	@SuppressWarnings("unchecked")
+	T peek() {
+		int idx = (int)head & mask;
+		return sequence.get(idx) == head + 1 ? (T)slots[idx] : null;
+	}
+
+	/** Consumer only: returns the slot {@link #peek} gave out to the producers. */
+	void release() {
+		sequence.lazySet((int)head & mask, head + slots.length);
+		head++;
+	}
+
+	/** Appends {@code s} as a JSON string: quotes, backslashes and control characters escaped. */
+	static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+			else sb.append(c);
+		}
+		sb.append('"');
+	}
+}
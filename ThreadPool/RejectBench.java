@@ -0,0 +1,203 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accept-side behaviour of the thread-pool server during an overload burst, with turned-away
+ * connections answered on the accept thread (rejectQueue=0, the old path), by the rejector
+ * thread, and by the rejector closing with RST.
+ *
+ *   cd ThreadPool && javac RejectBench.java && java RejectBench [overload] [seconds] [clients]
+ *
+ * Each mode starts an in-process server with 2 workers, 4 queue slots each and one acceptor,
+ * then opens connections for /compute?ms=5 at overload times what the workers can serve
+ * (2 / 5 ms = 400 req/s, so 4000 connections/s by default) from {@code clients} threads.
+ * Reported per mode: connections the acceptor took per second against the offered rate,
+ * connect() latency, time from connect to the rejection, and how rejections ended.
+ */
+public class RejectBench {
+	static final int WORKERS = 2;
+	static final int SERVICE_MS = 5;
+	static final int FIRST_PORT = 18113;
+	private static final byte[] REQUEST = ("GET /compute?ms=" + SERVICE_MS + " HTTP/1.1\r\nHost: bench\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	/** Per-thread samples, merged after the run. */
+	static final class Samples {
+		long[] connectNanos = new long[1024];
+		long[] rejectNanos = new long[1024];
+		int connects;
+		int rejects;
+
+		void connect(long nanos) {
+			if (connects == connectNanos.length) connectNanos = Arrays.copyOf(connectNanos, connects * 2);
+			connectNanos[connects++] = nanos;
+		}
+
+		void reject(long nanos) {
+			if (rejects == rejectNanos.length) rejectNanos = Arrays.copyOf(rejectNanos, rejects * 2);
+			rejectNanos[rejects++] = nanos;
+		}
+	}
+
+	final AtomicLong ok = new AtomicLong();
+	final AtomicLong unavailable = new AtomicLong();
+	final AtomicLong resets = new AtomicLong();
+	final AtomicLong timeouts = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int overload = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		double rate = overload * WORKERS * 1000.0 / SERVICE_MS;
+		System.out.printf("offered %.0f connections/s (%dx of %d workers at %d ms), %ds per mode, %d client threads%n",
+				rate, overload, WORKERS, SERVICE_MS, seconds, clients);
+		String[][] modes = {
+			{ "inline (accept thread)", "--rejectQueue=0" },
+			{ "rejector thread", "--rejectQueue=4096" },
+			{ "rejector + RST close", "--rejectQueue=4096", "--rejectHardClose=1" },
+		};
+		// The first pass warms up the JIT on both sides and is not reported
+		for (int round = 0; round < 2; round++) {
+			for (int m = 0; m < modes.length; m++) {
+				new RejectBench().run(round == 1, modes[m], FIRST_PORT + m, rate, round == 1 ? seconds : 1, clients);
+			}
+		}
+	}
+
+	private void run(boolean report, String[] mode, int port, double rate, int seconds, int clients) throws Exception {
+		Config config = Server.settings();
+		String[] flags = Arrays.copyOfRange(mode, 1, mode.length + 6);
+		flags[mode.length - 1] = "--port=" + port;
+		flags[mode.length] = "--poolSize=" + WORKERS;
+		flags[mode.length + 1] = "--queueCapacity=4";
+		flags[mode.length + 2] = "--acceptors=1";
+		flags[mode.length + 3] = "--drainMillis=0";
+		flags[mode.length + 4] = "--traceSampleRate=0";
+		config.load(flags, Collections.emptyMap());
+		File log = File.createTempFile("reject-bench", ".log");
+		File traces = File.createTempFile("reject-bench", ".jsonl");
+		log.deleteOnExit();
+		traces.deleteOnExit();
+		Server server = new Server(config, new ComputeEngine(1, 1), new BufferPool(4, 4 * 1024 * 1024, false),
+				new AccessLog(log, 64 * 1024, 64L * 1024 * 1024, 1, Clock.shared()),
+				new Tracer(traces, "reject-bench", 0, 1024, 64L * 1024 * 1024));
+		server.startAcceptors(port, 1, new Server.SocketOptions(), null);
+
+		Samples[] samples = new Samples[clients];
+		Thread[] threads = new Thread[clients];
+		long intervalNanos = (long)(clients * 1e9 / rate);
+		long start = System.nanoTime();
+		long end = start + seconds * 1_000_000_000L;
+		long acceptedBefore = server.acceptedConnections();
+		for (int i = 0; i < clients; i++) {
+			Samples s = samples[i] = new Samples();
+			long first = start + i * intervalNanos / clients;
+			threads[i] = new Thread(() -> {
+				// Open loop: attempts are due at fixed times; a thread that falls behind catches up back to back
+				for (long due = first; due < end; due += intervalNanos) {
+					long wait = due - System.nanoTime();
+					if (wait > 0) sleepNanos(wait);
+					attempt(port, s);
+				}
+			}, "bench-client-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long accepted = server.acceptedConnections() - acceptedBefore;
+		String rejector = server.rejectorJson();
+		server.shutdown(0);
+		if (!report) return;
+
+		long[] connect = merge(samples, true);
+		long[] reject = merge(samples, false);
+		System.out.println(mode[0]);
+		System.out.printf("  accepted %8.0f/s of %.0f offered   served %d, 503 read %d, reset %d, timed out %d, other errors %d%n",
+				accepted / elapsed, rate, ok.get(), unavailable.get(), resets.get(), timeouts.get(), errors.get());
+		System.out.printf("  connect  p50 %6.2f ms  p99 %6.2f ms  max %7.2f ms%n", ms(connect, 50), ms(connect, 99), ms(connect, 100));
+		System.out.printf("  rejected p50 %6.2f ms  p99 %6.2f ms  max %7.2f ms   (connect to 503 or reset)%n", ms(reject, 50), ms(reject, 99), ms(reject, 100));
+		System.out.println("  rejector " + rejector);
+	}
+
+	private void attempt(int port, Samples s) {
+		long t0 = System.nanoTime();
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress("localhost", port), 5000);
+			s.connect(System.nanoTime() - t0);
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(REQUEST);
+			out.flush();
+			int status = readStatus(socket.getInputStream());
+			if (status == 200) {
+				ok.incrementAndGet();
+			} else if (status == 503) {
+				unavailable.incrementAndGet();
+				s.reject(System.nanoTime() - t0);
+			} else if (status == -1) {
+				// Closed without a response: the TLS-style close, or an RST that arrived as EOF
+				resets.incrementAndGet();
+				s.reject(System.nanoTime() - t0);
+			} else {
+				errors.incrementAndGet();
+			}
+		} catch (SocketTimeoutException ex) {
+			timeouts.incrementAndGet();
+		} catch (SocketException ex) {
+			resets.incrementAndGet();
+			s.reject(System.nanoTime() - t0);
+		} catch (IOException ex) {
+			errors.incrementAndGet();
+		}
+	}
+
+	/** Status code of the response, reading it to EOF; -1 if the connection closed first. */
+	private static int readStatus(InputStream in) throws IOException {
+		byte[] buf = new byte[512];
+		int len = 0;
+		int n;
+		while ((n = in.read(buf, len, buf.length - len)) != -1) {
+			len += n;
+			if (len == buf.length) len = 12;
+		}
+		if (len < 12 || buf[0] != 'H') return -1;
+		return (buf[9] - '0') * 100 + (buf[10] - '0') * 10 + (buf[11] - '0');
+	}
+
+	private static long[] merge(Samples[] samples, boolean connects) {
+		int total = 0;
+		for (Samples s : samples) total += connects ? s.connects : s.rejects;
+		long[] all = new long[total];
+		int pos = 0;
+		for (Samples s : samples) {
+			int n = connects ? s.connects : s.rejects;
+			System.arraycopy(connects ? s.connectNanos : s.rejectNanos, 0, all, pos, n);
+			pos += n;
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	private static double ms(long[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		int idx = (int)Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+		return sorted[Math.max(0, idx)] / 1e6;
+	}
+
+	private static void sleepNanos(long nanos) {
+		try {
+			Thread.sleep(nanos / 1_000_000, (int)(nanos % 1_000_000));
+		} catch (InterruptedException ignore) {
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the connections the acceptors turn away (503 when every deque is full, 429 over the
+ * accept rate) on its own thread, so during overload an acceptor spends one queue offer per
+ * rejected connection and goes straight back to accept().
+ *
+ * Responses are pre-encoded byte arrays of under 150 bytes. A new connection's send buffer is
+ * empty, so the write completes at once; java.net sockets have no non-blocking mode to ask for
+ * it, and a stall here could only ever hold up this thread. Rejections are taken in batches:
+ * every response in a batch is written before any socket in it is closed.
+ *
+ * With rejectHardClose each socket is closed with SO_LINGER 0, an RST instead of a FIN: no
+ * TIME_WAIT is left behind, but a client can see the reset before it reads the 503. When the
+ * queue is full the acceptor resets the socket itself without writing anything. A capacity of
+ * 0 starts no thread and answers on the caller, as the acceptors did before.
+ */
+final class Rejector extends Thread {
+	static final int MAX_BATCH = 256;
+
+	/** One turned-away socket; {@code response} is null for TLS, which is only closed. */
+	private static final class Rejection {
+		final Socket socket;
+		final byte[] response;
+		Rejection(Socket socket, byte[] response) { this.socket = socket; this.response = response; }
+	}
+
+	private final ArrayBlockingQueue<Rejection> queue;
+	private final int capacity;
+	private final Config.Setting hardClose;
+	private volatile boolean running = true;
+	private final AtomicLong answered = new AtomicLong(0);
+	private final AtomicLong resets = new AtomicLong(0);
+	private final AtomicLong overflow = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	private volatile int maxBatch;
+
+	Rejector(int capacity, Config.Setting hardClose) {
+		super("rejector");
+		setDaemon(true);
+		this.capacity = capacity;
+		this.queue = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null;
+		this.hardClose = hardClose;
+		if (capacity > 0) start();
+	}
+
+	/** Queues {@code socket} for {@code response}; never blocks. Resets it at once if the queue is full. */
+	void reject(Socket socket, byte[] response) {
+		if (queue == null || !running) {
+			answer(socket, response, hardClose.asInt() == 1);
+			return;
+		}
+		if (!queue.offer(new Rejection(socket, response))) {
+			overflow.incrementAndGet();
+			reset(socket);
+			return;
+		}
+		// shutdown() may have landed between the check above and the offer, and the thread may
+		// already be gone: answer whatever is left here rather than leave it queued forever.
+		if (!running) {
+			boolean hard = hardClose.asInt() == 1;
+			Rejection r;
+			while ((r = queue.poll()) != null) answer(r.socket, r.response, hard);
+		}
+	}
+
+	@Override public void run() {
+		List<Rejection> batch = new ArrayList<>(MAX_BATCH);
+		while (running || !queue.isEmpty()) {
+			Rejection first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				continue;
+			}
+			if (first == null) continue;
+			batch.add(first);
+			queue.drainTo(batch, MAX_BATCH - 1);
+			boolean hard = hardClose.asInt() == 1;
+			for (Rejection r : batch) write(r.socket, r.response, hard);
+			for (Rejection r : batch) close(r.socket);
+			batches.incrementAndGet();
+			if (batch.size() > maxBatch) maxBatch = batch.size();
+			batch.clear();
+		}
+	}
+
+	/** Answers what is still queued, then stops; later rejections are answered by the caller. */
+	void shutdown() {
+		running = false;
+		if (queue == null) return;
+		interrupt();
+		try { join(2000); } catch (InterruptedException ignore) {}
+	}
+
+	private void answer(Socket socket, byte[] response, boolean hard) {
+		write(socket, response, hard);
+		close(socket);
+	}
+
+	private void write(Socket socket, byte[] response, boolean hard) {
+		try {
+			if (hard) {
+				socket.setSoLinger(true, 0);
+				resets.incrementAndGet();
+			}
+			if (response == null) return;
+			OutputStream out = socket.getOutputStream();
+			out.write(response);
+			out.flush();
+			answered.incrementAndGet();
+		} catch (IOException ignore) {
+		}
+	}
+
+	private void reset(Socket socket) {
+		try {
+			socket.setSoLinger(true, 0);
+			resets.incrementAndGet();
+		} catch (SocketException ignore) {
+		}
+		close(socket);
+	}
+
+	private static void close(Socket socket) {
+		try { socket.close(); } catch (IOException ignore) {}
+	}
+
+	String toJson() {
+		return "{\"queueCapacity\": " + capacity + ", \"queued\": " + (queue == null ? 0 : queue.size())
+				+ ", \"answered\": " + answered.get() + ", \"resets\": " + resets.get() + ", \"overflow\": " + overflow.get()
+				+ ", \"batches\": " + batches.get() + ", \"maxBatch\": " + maxBatch + "}";
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes per response and bytes allocated per response for ResponseWriter against the
+ * String-building BufferedWriter path respond() used before it.
+ *
+ *   cd ThreadPool && javac ResponseBench.java && java ResponseBench [iterations]
+ *
+ * Responses go to an OutputStream that counts write() calls and discards the bytes: on a
+ * socket stream each of those calls is one send(), so the count is the syscall count without
+ * needing strace. Allocation comes from the per-thread counter of the HotSpot ThreadMXBean.
+ */
+public class ResponseBench {
+	/** Discards bytes; counts write() calls the way a SocketOutputStream turns them into send(). */
+	static final class CountingOutputStream extends OutputStream {
+		long writes;
+		long bytes;
+
+		@Override public void write(int b) { writes++; bytes++; }
+		@Override public void write(byte[] b, int off, int len) { writes++; bytes += len; }
+	}
+
+	interface Shape { void write(OutputStream out) throws IOException; }
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final byte[] IO_FILL = new byte[8 * 1024];
+	static { java.util.Arrays.fill(IO_FILL, (byte)'a'); }
+
+	private static void legacyRespond(OutputStream out, int status, String statusText, String contentType, String body) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		writer.write("HTTP/1.1 " + status + " " + statusText + "\r\n");
+		writer.write("Content-Type: " + contentType + "\r\n");
+		writer.write("Content-Length: " + bytes.length + "\r\n");
+		writer.write("Connection: close\r\n\r\n");
+		writer.write(body);
+		writer.flush();
+	}
+
+	private static void legacyIo(OutputStream out, long bytes) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		String headersOut = "HTTP/1.1 200 OK\r\n" +
+				"Content-Type: application/octet-stream\r\n" +
+				"Content-Length: " + bytes + "\r\n" +
+				"Connection: close\r\n\r\n";
+		writer.write(headersOut);
+		writer.flush();
+		long remaining = bytes;
+		while (remaining > 0) {
+			int n = (int)Math.min(remaining, IO_FILL.length);
+			out.write(IO_FILL, 0, n);
+			remaining -= n;
+		}
+		out.flush();
+	}
+
+	private static void pooledIo(ResponseWriter responses, OutputStream out, long bytes) throws IOException {
+		int first = (int)Math.max(0, Math.min(bytes, IO_FILL.length));
+		responses.writeHead(out, 200, "OK", "application/octet-stream", bytes, IO_FILL, first);
+		long remaining = bytes - first;
+		while (remaining > 0) {
+			int n = (int)Math.min(remaining, IO_FILL.length);
+			out.write(IO_FILL, 0, n);
+			remaining -= n;
+		}
+		out.flush();
+	}
+
+	private static void run(String name, Shape shape, int iterations) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		for (int i = 0; i < iterations; i++) shape.write(out); // warm-up
+		out.writes = 0;
+		out.bytes = 0;
+		long tid = Thread.currentThread().getId();
+		long allocBefore = THREADS.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) shape.write(out);
+		long nanos = System.nanoTime() - start;
+		long alloc = THREADS.getThreadAllocatedBytes(tid) - allocBefore;
+		System.out.printf("  %-8s writes/resp %5.2f   alloc/resp %8.1f B   %8.1f ns/resp   (%d B/resp on the wire)%n",
+				name, out.writes / (double) iterations, alloc / (double) iterations, nanos / (double) iterations, out.bytes / iterations);
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuilder sb = new StringBuilder(n);
+		for (int i = 0; i < n; i++) sb.append(c);
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		ResponseWriter responses = new ResponseWriter(new BufferPool(4, 4 * 1024 * 1024, false), Clock.shared());
+		String hello = "Hello from Thread Pool Server (RR + Stealing)";
+		StringBuilder metrics = new StringBuilder("{\n");
+		for (int i = 0; i < 40; i++) metrics.append("  \"counter").append(i).append("\": ").append(i * 1234567L).append(",\n");
+		metrics.append("  \"end\": 0\n}");
+		String json = metrics.toString();
+		String large = repeat('x', 12 * 1024);
+		String[][] bodies = {
+			{ "hello (" + hello.length() + " chars)", "text/plain; charset=utf-8", hello },
+			{ "metrics JSON (" + json.length() + " chars)", "application/json; charset=utf-8", json },
+			{ "12 KB body", "text/plain; charset=utf-8", large },
+		};
+
+		System.out.println("iterations=" + iterations + " per case");
+		for (String[] b : bodies) {
+			System.out.println(b[0]);
+			run("before", out -> legacyRespond(out, 200, "OK", b[1], b[2]), iterations);
+			run("after", out -> responses.respond(out, 200, "OK", b[1], b[2]), iterations);
+		}
+		for (long bytes : new long[] { 1024, 64 * 1024 }) {
+			System.out.println("/io?bytes=" + bytes);
+			run("before", out -> legacyIo(out, bytes), iterations);
+			run("after", out -> pooledIo(responses, out, bytes), iterations);
+		}
+	}
+}
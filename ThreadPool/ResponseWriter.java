@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP/1.1 responses assembled from pre-encoded pieces.
+ *
+ * Status lines and Content-Type lines are encoded once and cached as byte arrays, the Date
+ * line comes pre-encoded from the {@link Clock}, and Content-Length is formatted straight into
+ * the output buffer. Head and body are laid out
+ * back to back in one pooled array and handed to the socket stream with a single write(), so a
+ * small response is one send() and allocates no Strings or arrays of its own.
+ *
+ * The sockets here are java.io streams without a GatheringByteChannel, so the "gather" is a
+ * copy of the body next to the head rather than a writev(); for the short bodies that go
+ * through respond() that copy is cheaper than a second system call.
+ */
+final class ResponseWriter {
+	private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+	private static final byte[] CLOSE = ascii("Connection: close\r\n\r\n");
+	static final byte[] NO_HEADERS = new byte[0];
+	// Space reserved in front of an encoded body for the head
+	private static final int HEAD_ROOM = 512;
+	private static final int MAX_CACHED_CONTENT_TYPES = 64;
+
+	/** A status code with its encoded line; published whole, so reason and bytes always match. */
+	private static final class StatusLine {
+		final String reason;
+		final byte[] bytes;
+		StatusLine(String reason, byte[] bytes) { this.reason = reason; this.bytes = bytes; }
+	}
+
+	private static final StatusLine[] STATUS_LINES = new StatusLine[600];
+	private static final ConcurrentHashMap<String, byte[]> CONTENT_TYPES = new ConcurrentHashMap<>();
+
+	private final BufferPool buffers;
+	private final Clock clock;
+
+	ResponseWriter(BufferPool buffers, Clock clock) {
+		this.buffers = buffers;
+		this.clock = clock;
+	}
+
+	static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/** "HTTP/1.1 200 OK\r\n", cached per status code. */
+	static byte[] statusLine(int status, String reason) {
+		if (status < 100 || status >= STATUS_LINES.length) return ascii("HTTP/1.1 " + status + " " + reason + "\r\n");
+		StatusLine cached = STATUS_LINES[status];
+		if (cached != null && cached.reason.equals(reason)) return cached.bytes;
+		byte[] bytes = ascii("HTTP/1.1 " + status + " " + reason + "\r\n");
+		if (cached == null) STATUS_LINES[status] = new StatusLine(reason, bytes);
+		return bytes;
+	}
+
+	/** "Content-Type: ...\r\n", cached per content type (server-chosen literals, so few). */
+	static byte[] contentTypeLine(String contentType) {
+		byte[] line = CONTENT_TYPES.get(contentType);
+		if (line == null) {
+			line = ascii("Content-Type: " + contentType + "\r\n");
+			if (CONTENT_TYPES.size() < MAX_CACHED_CONTENT_TYPES) CONTENT_TYPES.putIfAbsent(contentType, line);
+		}
+		return line;
+	}
+
+	/** Status line, Date, Content-Type, Content-Length and a UTF-8 body in one write. */
+	void respond(OutputStream out, int status, String reason, String contentType, String body) throws IOException {
+		byte[] statusLine = statusLine(status, reason);
+		byte[] date = clock.dateHeader();
+		byte[] typeLine = contentTypeLine(contentType);
+		try (BufferPool.Buffer buffer = buffers.acquire(HEAD_ROOM + body.length() * 3)) {
+			byte[] buf = buffer.array;
+			int end = putUtf8(buf, HEAD_ROOM, body);
+			int bodyLen = end - HEAD_ROOM;
+			int headLen = headLength(statusLine, date, typeLine, NO_HEADERS, bodyLen);
+			if (headLen > HEAD_ROOM) throw new IllegalArgumentException("response head exceeds " + HEAD_ROOM + " bytes");
+			int start = HEAD_ROOM - headLen;
+			putHead(buf, start, statusLine, date, typeLine, NO_HEADERS, bodyLen);
+			out.write(buf, start, end - start);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Head for a {@code contentLength}-byte body plus its first {@code firstLen} bytes, in one
+	 * write. The caller streams the remaining bytes and flushes.
+	 */
+	void writeHead(OutputStream out, int status, String reason, String contentType, long contentLength, byte[] first, int firstLen) throws IOException {
+		byte[] statusLine = statusLine(status, reason);
+		byte[] date = clock.dateHeader();
+		byte[] typeLine = contentTypeLine(contentType);
+		contentLength = Math.max(0, contentLength);
+		firstLen = (int)Math.min(firstLen, contentLength);
+		int headLen = headLength(statusLine, date, typeLine, NO_HEADERS, contentLength);
+		try (BufferPool.Buffer buffer = buffers.acquire(headLen + firstLen)) {
+			byte[] buf = buffer.array;
+			int pos = putHead(buf, 0, statusLine, date, typeLine, NO_HEADERS, contentLength);
+			System.arraycopy(first, 0, buf, pos, firstLen);
+			out.write(buf, 0, pos + firstLen);
+		}
+	}
+
+	/** Head of a chunked response, flushed so streaming clients see it at once. */
+	void writeChunkedHead(OutputStream out, int status, String reason, String contentType, byte[] extraHeaders) throws IOException {
+		byte[] statusLine = statusLine(status, reason);
+		byte[] date = clock.dateHeader();
+		byte[] typeLine = contentTypeLine(contentType);
+		try (BufferPool.Buffer buffer = buffers.acquire(statusLine.length + date.length + typeLine.length + extraHeaders.length + CHUNKED.length + CLOSE.length)) {
+			byte[] buf = buffer.array;
+			int pos = put(buf, 0, statusLine);
+			pos = put(buf, pos, date);
+			pos = put(buf, pos, typeLine);
+			pos = put(buf, pos, extraHeaders);
+			pos = put(buf, pos, CHUNKED);
+			pos = put(buf, pos, CLOSE);
+			out.write(buf, 0, pos);
+			out.flush();
+		}
+	}
+
+	private static int headLength(byte[] statusLine, byte[] date, byte[] typeLine, byte[] extraHeaders, long contentLength) {
+		return statusLine.length + date.length + typeLine.length + extraHeaders.length + CONTENT_LENGTH.length + digits(contentLength) + 2 + CLOSE.length;
+	}
+
+	private static int putHead(byte[] buf, int pos, byte[] statusLine, byte[] date, byte[] typeLine, byte[] extraHeaders, long contentLength) {
+		pos = put(buf, pos, statusLine);
+		pos = put(buf, pos, date);
+		pos = put(buf, pos, typeLine);
+		pos = put(buf, pos, extraHeaders);
+		pos = put(buf, pos, CONTENT_LENGTH);
+		pos = putDecimal(buf, pos, contentLength);
+		buf[pos++] = '\r';
+		buf[pos++] = '\n';
+		return put(buf, pos, CLOSE);
+	}
+
+	private static int put(byte[] buf, int pos, byte[] src) {
+		System.arraycopy(src, 0, buf, pos, src.length);
+		return pos + src.length;
+	}
+
+	static int digits(long v) {
+		int n = 1;
+		while (v >= 10) { v /= 10; n++; }
+		return n;
+	}
+
+	/** Non-negative decimal without going through a String. */
+	static int putDecimal(byte[] buf, int pos, long v) {
+		int end = pos + digits(v);
+		for (int i = end - 1; i >= pos; i--) {
+			buf[i] = (byte)('0' + v % 10);
+			v /= 10;
+		}
+		return end;
+	}
+
+	/** UTF-8 encodes {@code s} at {@code pos}; needs 3 bytes of room per char. Returns the end. */
+	static int putUtf8(byte[] buf, int pos, String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte)c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte)(0xC0 | (c >> 6));
+				buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte)(0xF0 | (cp >> 18));
+				buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte)(0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte)(0xE0 | (c >> 12));
+				buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
@@ -1,12 +1,15 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.Channels;
+import java.security.KeyStore;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Base64;
@@ -14,85 +17,790 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 
 public class Server {
 	private final Worker[] workers;
 	private final int numWorkers;
-	private final int queueCapacity;
-	private final AtomicInteger rrIndex = new AtomicInteger(0);
-	private final AtomicLong totalRequests = new AtomicLong(0);
-	private final AtomicLong totalLatencyNanos = new AtomicLong(0);
-	private final AtomicInteger activeConnections = new AtomicInteger(0);
+	// Shard-per-core mode: the group this server is one shard of, or null when it is the only one
+	private final Shards group;
+	private final int shard;
+	// CPUs this shard's acceptors and workers pin themselves to; null leaves them unpinned
+	private final String cpus;
+	private final String threadPrefix;
+	private final String logPrefix;
+	private final AtomicInteger pinnedThreads = new AtomicInteger(0);
+	private final AtomicInteger pinFailures = new AtomicInteger(0);
+	// Written by every worker per request; padded so they do not share cache lines
+	private final PaddedCounter totalRequests = new PaddedCounter();
+	private final PaddedCounter totalLatencyNanos = new PaddedCounter();
+	private final PaddedCounter activeConnections = new PaddedCounter();
 	private final AtomicLong rejectedRequests = new AtomicLong(0);
-	private final long[] lastLatenciesNanos = new long[1024];
-	private final AtomicInteger latencyWriteIndex = new AtomicInteger(0);
+	private final AtomicLong rateLimited = new AtomicLong(0);
+	private final AtomicLong uploads = new AtomicLong(0);
+	private final AtomicLong uploadBytes = new AtomicLong(0);
+	private final AtomicInteger sseStreams = new AtomicInteger(0);
+	private final AtomicInteger http2Connections = new AtomicInteger(0);
+	private final AtomicLong http2Streams = new AtomicLong(0);
+	private final AtomicLong http2RefusedStreams = new AtomicLong(0);
+	private final AtomicInteger streamRr = new AtomicInteger(0);
+	private final long[] lastLatenciesNanos;
+	private final PaddedCounter latencyWriteIndex = new PaddedCounter();
+	// Where a request's time goes: waiting in a deque, running on a worker, blocked in socket writes
+	private final TimingStats queueWait = new TimingStats();
+	private final TimingStats serviceTime = new TimingStats();
+	private final TimingStats writeTime = new TimingStats();
+	private final ComputeEngine compute;
+	private final BufferPool buffers;
+	private final Clock clock = Clock.shared();
+	private final ResponseWriter responses;
+	private final AccessLog accessLog;
+	private final Tracer tracer;
+	// Live settings, read on every use so /admin/config and file edits apply without a restart
+	private final Config config;
+	private final Config.Setting queueCapacity;
+	private final Config.Setting activeWorkers;
+	private final Config.Setting pollTimeoutMillis;
+	private final Config.Setting requestTimeoutMillis;
+	private final Config.Setting maxAcceptsPerSecond;
+	private final Config.Setting streamBufferBytes;
+	private final Config.Setting drainMillis;
+	// Shared by every shard, so maxAcceptsPerSecond stays a process-wide limit
+	private final RateLimiter acceptLimiter;
+	// Answers 503/429 off the accept threads
+	private final Rejector rejector;
+	// Rebuilds the /metrics body in the background; scrapes serve its last snapshot
+	private final MetricsAggregator metrics;
 
-	// WebSocket signaling rooms
-	private final java.util.concurrent.ConcurrentHashMap<String, CopyOnWriteArraySet<Client>> rooms = new java.util.concurrent.ConcurrentHashMap<>();
+	// Graceful shutdown: stop accepting, drain worker deques, close WebSocket sessions
+	private volatile boolean draining = false;
+	private final java.util.List<Acceptor> acceptors = new java.util.concurrent.CopyOnWriteArrayList<>();
+	private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+	private final CountDownLatch shutdownComplete = new CountDownLatch(1);
 
-	private static class Client {
+	// WebSocket signaling rooms; shared by every shard, since peers of one room can land on different shards
+	private final java.util.concurrent.ConcurrentHashMap<String, CopyOnWriteArraySet<Client>> rooms;
+
+	static class Client {
+		// The shard serving the session, which alone closes it on shutdown
+		final Server owner;
 		final Socket socket;
+		final InputStream in;
 		final OutputStream out;
+		// Held for each frame written to this peer, by whichever worker writes it
+		final Object writeLock = new Object();
 		volatile boolean open = true;
-		Client(Socket s) throws IOException { this.socket = s; this.out = s.getOutputStream(); }
+		Client(Server owner, Connection c) throws IOException { this.owner = owner; this.socket = c.socket; this.in = c.in(); this.out = c.out(); }
+	}
+
+	/**
+	 * Work a worker deque holds: an accepted connection, or one request stream of an HTTP/2
+	 * connection that another worker is reading.
+	 */
+	abstract static class Task {
+		// Set by Worker.offer; the worker that runs it measures queue wait from here
+		long enqueuedNanos;
+
+		/** Serves the task on the calling worker. */
+		abstract void run(Server server);
+
+		/** Turns the task away unserved: the pool stopped before it was picked up. */
+		abstract void reject(Server server);
+	}
+
+	/**
+	 * An accepted socket as queued to the workers. TLS connections get their SSLEngine and
+	 * streams on first use, so the handshake runs on the worker rather than the acceptor.
+	 */
+	static final class Connection extends Task {
+		final Socket socket;
+		final SSLContext tls;
+		private final BufferPool buffers;
+		private final int streamBytes;
+		private BufferPool.PooledInputStream in;
+		private OutputStream out;
+		private BufferPool.PooledOutputStream bufferedOut;
+		private TlsChannel channel;
+		// Accept time, request line, status and bytes sent, for the access log
+		final AccessLog.Exchange exchange = new AccessLog.Exchange(System.nanoTime());
+
+		Connection(Socket socket, SSLContext tls, BufferPool buffers, int streamBytes) {
+			this.socket = socket;
+			this.tls = tls;
+			this.buffers = buffers;
+			this.streamBytes = streamBytes;
+		}
+
+		boolean isTls() { return tls != null; }
+
+		@Override void run(Server server) { server.handleHttpOrWebSocket(this); }
+
+		@Override void reject(Server server) { writeRejection(socket, isTls(), SERVICE_UNAVAILABLE); }
+
+		InputStream in() throws IOException { open(); return in; }
+
+		OutputStream out() throws IOException { open(); return out; }
+
+		private void open() throws IOException {
+			if (in != null) return;
+			if (tls == null) {
+				in = buffers.inputStream(socket.getInputStream(), streamBytes);
+				out = exchange.wrap(socket.getOutputStream());
+				return;
+			}
+			SSLEngine engine = tls.createSSLEngine(socket.getInetAddress().getHostAddress(), socket.getPort());
+			engine.setUseClientMode(false);
+			channel = new TlsChannel(TlsChannel.streamTransport(socket), engine, buffers);
+			in = buffers.inputStream(Channels.newInputStream(channel), streamBytes);
+			// Handlers write headers and frames piecemeal; buffer so each flush is one TLS record
+			bufferedOut = buffers.outputStream(Channels.newOutputStream(channel), 16 * 1024);
+			out = exchange.wrap(bufferedOut);
+		}
+
+		/**
+		 * Closes the socket and returns the buffers. The write buffer goes first, so a relay
+		 * writing from another worker finishes (or fails) before the TLS buffers are released.
+		 */
+		void close() {
+			if (bufferedOut != null) bufferedOut.release();
+			if (channel != null) {
+				try { channel.close(); } catch (IOException ignore) {}
+			}
+			closeQuietly(socket);
+			if (in != null) in.release();
+		}
+	}
+
+	/** Socket tuning applied to listeners and accepted connections; 0 keeps the OS default. */
+	static final class SocketOptions {
+		int backlog = 1024;
+		boolean tcpNoDelay = true;
+		int receiveBufferSize = 0;
+		int sendBufferSize = 0;
+
+		/** From the restart-only {@code backlog}, {@code tcpNoDelay}, {@code receiveBufferBytes} and {@code sendBufferBytes}. */
+		static SocketOptions from(Config config) {
+			SocketOptions o = new SocketOptions();
+			o.backlog = config.setting("backlog").asInt();
+			o.tcpNoDelay = config.setting("tcpNoDelay").asInt() == 1;
+			o.receiveBufferSize = config.setting("receiveBufferBytes").asInt();
+			o.sendBufferSize = config.setting("sendBufferBytes").asInt();
+			return o;
+		}
+	}
+
+	/**
+	 * Accept thread feeding its own slice of the active workers round-robin. With SO_REUSEPORT
+	 * every acceptor owns a listener and the kernel spreads connections; otherwise they share one.
+	 * The slice is recomputed per connection, so changing activeWorkers moves it at once.
+	 */
+	private static class Acceptor extends Thread {
+		final Server server;
+		final ServerSocket listener;
+		final SocketOptions options;
+		final SSLContext tls;
+		final int index;
+		final int count;
+		final AtomicLong accepted = new AtomicLong(0);
+		final AtomicLong rejected = new AtomicLong(0);
+		private int rr = 0;
+		// Rate sampling for /metrics, guarded by this
+		private long rateSampleNanos = Clock.shared().nanos();
+		private long rateSampleCount = 0;
+		private double lastRate = 0;
+		// Consecutive accept failures, for the backoff in acceptFailed
+		private int failures = 0;
+		private long lastFailureLogNanos = 0;
+
+		Acceptor(Server server, ServerSocket listener, SocketOptions options, SSLContext tls, int index, int count) {
+			super(server.threadPrefix + (tls != null ? "tls-acceptor-" : "acceptor-") + index);
+			this.server = server;
+			this.listener = listener;
+			this.options = options;
+			this.tls = tls;
+			this.index = index;
+			this.count = count;
+		}
+
+		int firstWorker() { return index * server.activeWorkers() / count; }
+
+		int workerCount() { return Math.max(1, (index + 1) * server.activeWorkers() / count - firstWorker()); }
+
+		@Override public void run() {
+			server.pinCurrentThread();
+			while (!server.draining) {
+				Socket clientSocket;
+				try {
+					clientSocket = listener.accept();
+				} catch (IOException ex) {
+					if (server.draining || listener.isClosed()) break;
+					acceptFailed(ex);
+					continue;
+				}
+				failures = 0;
+				accepted.incrementAndGet();
+				long acceptLimit = server.maxAcceptsPerSecond.asLong();
+				if (acceptLimit > 0 && !server.acceptLimiter.tryAcquire(acceptLimit, server.clock.nanos())) {
+					rejected.incrementAndGet();
+					server.rateLimited.incrementAndGet();
+					server.rejectEvent(getName(), "rate limit");
+					server.rejector.reject(clientSocket, tls != null ? null : TOO_MANY_REQUESTS);
+					continue;
+				}
+				ServerEvents.Accept event = new ServerEvents.Accept();
+				if (event.shouldCommit()) {
+					event.acceptor = getName();
+					event.port = clientSocket.getLocalPort();
+					event.tls = tls != null;
+					event.commit();
+				}
+				configure(clientSocket);
+				Connection conn = new Connection(clientSocket, tls, server.buffers, server.streamBufferBytes.asInt());
+				if (!dispatch(conn)) {
+					rejected.incrementAndGet();
+					server.rejectedRequests.incrementAndGet();
+					server.rejectEvent(getName(), "queues full");
+					server.rejector.reject(clientSocket, conn.isTls() ? null : SERVICE_UNAVAILABLE);
+				}
+			}
+		}
+
+		/**
+		 * Backs off after a failed accept that would likely fail again at once (EMFILE/ENFILE,
+		 * ENOBUFS): 1 ms doubling to 100 ms until an accept succeeds. The stack trace is printed
+		 * for the first failure of a run; later ones are summarised at most once a second.
+		 */
+		private void acceptFailed(IOException ex) {
+			long now = server.clock.nanos();
+			if (failures == 0) {
+				System.err.println("[ThreadPool] " + getName() + ": accept failed, backing off");
+				ex.printStackTrace();
+				lastFailureLogNanos = now;
+			} else if (now - lastFailureLogNanos >= TimeUnit.SECONDS.toNanos(1)) {
+				System.err.println("[ThreadPool] " + getName() + ": accept still failing (" + failures + " in a row): " + ex);
+				lastFailureLogNanos = now;
+			}
+			failures++;
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(100, 1L << Math.min(failures - 1, 7))));
+		}
+
+		private void configure(Socket s) {
+			try {
+				s.setTcpNoDelay(options.tcpNoDelay);
+				if (options.sendBufferSize > 0) s.setSendBufferSize(options.sendBufferSize);
+				// Bounds each read of the request; WebSocket sessions clear it after the upgrade
+				s.setSoTimeout(server.requestTimeoutMillis.asInt());
+			} catch (SocketException ignore) {}
+		}
+
+		/** Round-robin over this acceptor's workers first, then spill to the rest of the active pool. */
+		private boolean dispatch(Connection s) {
+			ServerEvents.Dispatch event = new ServerEvents.Dispatch();
+			event.begin();
+			int active = server.activeWorkers();
+			int firstWorker = index * active / count;
+			int workerCount = Math.max(1, (index + 1) * active / count - firstWorker);
+			int start = rr++ & Integer.MAX_VALUE;
+			int offers = 0;
+			for (int k = 0; k < workerCount; k++) {
+				Worker w = server.workers[firstWorker + (start + k) % workerCount];
+				offers++;
+				if (w.offer(s)) return dispatched(event, w, offers, false);
+			}
+			for (int k = 0; k < active; k++) {
+				int idx = (firstWorker + workerCount + k) % active;
+				if (idx >= firstWorker && idx < firstWorker + workerCount) continue;
+				offers++;
+				if (server.workers[idx].offer(s)) return dispatched(event, server.workers[idx], offers, true);
+			}
+			return false;
+		}
+
+		private boolean dispatched(ServerEvents.Dispatch event, Worker w, int offers, boolean spilled) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.acceptor = getName();
+				event.worker = w.getName();
+				event.queueDepth = w.queueSize();
+				event.offers = offers;
+				event.spilled = spilled;
+				event.commit();
+			}
+			return true;
+		}
+
+		synchronized double sampleRate() {
+			long now = server.clock.nanos();
+			long count = accepted.get();
+			long elapsed = now - rateSampleNanos;
+			if (elapsed >= 100_000_000L) {
+				lastRate = (count - rateSampleCount) * 1e9 / elapsed;
+				rateSampleNanos = now;
+				rateSampleCount = count;
+			}
+			return lastRate;
+		}
 	}
 
 	private static class Worker extends Thread {
 		final Server server;
-		final LinkedBlockingDeque<Socket> deque;
+		final int index;
+		// Unbounded; offer enforces the live queueCapacity through reserved
+		final LinkedBlockingDeque<Task> deque = new LinkedBlockingDeque<>();
+		// Slots held against queueCapacity: taken by CAS before a task goes in, so concurrent
+		// offers cannot overshoot, and given back by whichever method takes it out
+		final AtomicInteger reserved = new AtomicInteger(0);
 		final Random random = new Random();
 		volatile boolean running = true;
-		Worker(Server server, int capacity, String name) {
-			super(name);
+		// Reading an HTTP/2 connection; its deque is left out of stream dispatch
+		volatile boolean pinned;
+		final long startedNanos = System.nanoTime();
+		final AtomicLong handled = new AtomicLong(0);
+		final AtomicLong busyNanos = new AtomicLong(0);
+		final AtomicLong stealAttempts = new AtomicLong(0);
+		final AtomicLong stealSuccesses = new AtomicLong(0);
+		// Connections other workers took from this deque
+		final AtomicLong stolenFrom = new AtomicLong(0);
+		Worker(Server server, int index) {
+			super(server.threadPrefix + "pool-worker-" + index);
 			this.server = server;
-			this.deque = new LinkedBlockingDeque<>(capacity);
+			this.index = index;
+		}
+		public boolean offer(Task c) {
+			int capacity = server.queueCapacity.asInt();
+			for (int n = reserved.get(); ; n = reserved.get()) {
+				if (n >= capacity) return false;
+				if (reserved.compareAndSet(n, n + 1)) break;
+			}
+			c.enqueuedNanos = System.nanoTime();
+			deque.offer(c);
+			return true;
+		}
+		/** Owner's end: the oldest task, waiting up to {@code millis}. */
+		Task take(long millis) throws InterruptedException {
+			return released(deque.pollFirst(millis, TimeUnit.MILLISECONDS));
+		}
+		/** Thief's end: the newest task, or null. */
+		Task stealLast() { return released(deque.pollLast()); }
+		/** Whatever is left, for the shutdown drain. */
+		Task poll() { return released(deque.pollFirst()); }
+		private Task released(Task t) {
+			if (t != null) reserved.decrementAndGet();
+			return t;
 		}
-		public boolean offer(Socket s) { return deque.offer(s); }
 		public int queueSize() { return deque.size(); }
 		@Override public void run() {
+			server.pinCurrentThread();
 			while (running) {
 				try {
-					Socket s = deque.pollFirst(200, TimeUnit.MILLISECONDS);
+					Task s = take(server.pollTimeoutMillis.asLong());
+					if (!running) {
+						// Back in front for the shutdown drain, past queueCapacity if it must be
+						if (s != null) { reserved.incrementAndGet(); deque.offerFirst(s); }
+						break;
+					}
 					if (s == null) {
-						Socket stolen = server.stealWork(this);
+						// Workers above activeWorkers finish what is queued to them but take no more
+						if (index >= server.activeWorkers()) continue;
+						Task stolen = server.stealWork(this);
 						if (stolen == null) continue;
 						s = stolen;
 					}
-					server.handleHttpOrWebSocket(s);
+					long t = System.nanoTime();
+					try {
+						s.run(server);
+					} catch (RuntimeException | Error ex) {
+						// A bug or an OutOfMemoryError in one task: its connection was closed on the
+						// way out; this worker and its deque carry on
+						ex.printStackTrace();
+					}
+					busyNanos.addAndGet(System.nanoTime() - t);
+					handled.incrementAndGet();
 				} catch (InterruptedException ignore) {
 				}
 			}
 		}
+
+		/** Fraction of its lifetime this worker spent running connections. */
+		double busyRatio() {
+			long alive = System.nanoTime() - startedNanos;
+			return alive <= 0 ? 0 : Math.round(busyNanos.get() * 10_000.0 / alive) / 10_000.0;
+		}
+	}
+
+	static final long DEFAULT_DRAIN_MILLIS = 10_000;
+
+	// Request bodies are streamed in fixed-size reads; above the threshold /upload spools to disk
+	static final long MAX_UPLOAD_BYTES = 256L * 1024 * 1024;
+	static final int SPOOL_THRESHOLD_BYTES = 1024 * 1024;
+	static final int UPLOAD_BUFFER_BYTES = 8192;
+	static final File SPOOL_DIR = new File(System.getProperty("java.io.tmpdir"));
+	static final int DEFAULT_CHUNK_BYTES = 16 * 1024;
+	// Largest WebSocket frame read; longer ones close the session with 1009 before any buffer is taken
+	static final int MAX_WS_FRAME_BYTES = 1024 * 1024;
+	private static final byte[] CONTINUE_100 = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	// /io payload; only ever read, so one shared array serves every request
+	private static final byte[] IO_FILL = new byte[8192];
+	static { java.util.Arrays.fill(IO_FILL, (byte)'a'); }
+	private static final byte[] SSE_HEADERS = ResponseWriter.ascii("Cache-Control: no-cache\r\n");
+	private static final byte[] SSE_EVENT_END = ResponseWriter.ascii("\n\n");
+	private static final byte[] SERVICE_UNAVAILABLE = ResponseWriter.ascii(
+			"HTTP/1.1 503 Service Unavailable\r\nContent-Type: text/plain\r\nContent-Length: 12\r\nConnection: close\r\n\r\nServer busy\n");
+	private static final byte[] TOO_MANY_REQUESTS = ResponseWriter.ascii(
+			"HTTP/1.1 429 Too Many Requests\r\nContent-Type: text/plain\r\nContent-Length: 13\r\nRetry-After: 1\r\nConnection: close\r\n\r\nRate limited\n");
+
+	/**
+	 * Every tunable of the thread-pool server. Restart-only ones are read once in main or the
+	 * constructor; live ones are held as {@link Config.Setting} and read where they are used.
+	 */
+	static Config settings() {
+		Config c = new Config("ThreadPool");
+		c.integer("port", 8013, 1, 65535, false, "HTTP/WebSocket listen port");
+		c.integer("tlsPort", 8443, 1, 65535, false, "HTTPS/WSS listen port, used when the keystore exists");
+		c.text("keystore", "../.tls/server.p12", "PKCS#12 keystore for HTTPS/WSS; its password comes from $KEYSTORE_PASSWORD (default changeit)");
+		c.integer("tlsSessionCacheSize", 10_000, 0, 10_000_000, false, "TLS sessions kept for resumption; 0 is unlimited");
+		c.integer("tlsSessionTimeoutSeconds", 3600, 0, 86_400, false, "how long a TLS session or ticket can be resumed; 0 is no limit");
+		c.integer("acceptors", 2, 1, 64, false, "accept threads per listener, capped at poolSize");
+		c.integer("backlog", 1024, 1, 65535, false, "listen backlog per listener; the kernel caps it at net.core.somaxconn");
+		c.integer("tcpNoDelay", 1, 0, 1, false, "1 sets TCP_NODELAY on accepted connections");
+		c.integer("receiveBufferBytes", 0, 0, 64 * 1024 * 1024, false, "SO_RCVBUF set on listeners, inherited by accepted connections; 0 keeps the OS default");
+		c.integer("sendBufferBytes", 0, 0, 64 * 1024 * 1024, false, "SO_SNDBUF on accepted connections; 0 keeps the OS default");
+		c.integer("poolSize", 8, 1, 1024, false, "worker threads started");
+		c.integer("shards", 0, 0, 256, false, "independent pools on the port, each with its own SO_REUSEPORT listener, workers, counters and metrics; poolSize and acceptors are split between them; 0 runs one pool");
+		c.integer("pinShards", 0, 0, 1, false, "1 pins each shard's acceptors and workers to CPUs of one NUMA node (Linux, via taskset)");
+		c.integer("activeWorkers", 0, 0, 1024, true, "workers that receive new connections; 0 means all of poolSize");
+		c.integer("queueCapacity", 1024, 1, 1_000_000, true, "connections queued per worker before 503");
+		c.integer("pollTimeoutMillis", 200, 1, 10_000, true, "idle worker wait on its own deque before trying to steal");
+		c.integer("requestTimeoutMillis", 0, 0, 3_600_000, true, "read timeout for request heads and bodies on new connections; 0 waits forever");
+		c.integer("maxAcceptsPerSecond", 0, 0, 10_000_000, true, "connections accepted per second across acceptors before 429; 0 is unlimited");
+		c.integer("rejectQueue", 4096, 0, 1_000_000, false, "turned-away connections waiting for the rejector thread's 503/429; 0 answers on the accept thread");
+		c.integer("rejectHardClose", 0, 0, 1, true, "1 closes turned-away connections with RST (SO_LINGER 0): no TIME_WAIT, but clients usually see a reset instead of the 503");
+		c.integer("streamBufferBytes", 8192, 512, 64 * 1024, true, "read buffer for new connections");
+		c.integer("drainMillis", DEFAULT_DRAIN_MILLIS, 0, 600_000, true, "graceful shutdown deadline");
+		c.integer("latencyWindow", 1024, 16, 1 << 20, false, "recent requests kept for p95LatencyMs, rounded up to a power of two");
+		c.decimal("traceSampleRate", 0.01, 0, 1, true, "share of requests traced when no traceparent asks for it");
+		c.integer("metricsIntervalMillis", 250, MetricsAggregator.MIN_INTERVAL_MILLIS, 10_000, true, "how often the /metrics snapshot and its rates are rebuilt");
+		c.integer("computeParallelism", Runtime.getRuntime().availableProcessors(), 1, 1024, false, "ForkJoinPool threads for /compute?kind=");
+		c.integer("computeMaxSplits", 64, 1, 4096, false, "upper bound on /compute splits");
+		return c;
 	}
 
-	public Server(int numWorkers, int queueCapacity) {
-		this.numWorkers = numWorkers;
-		this.queueCapacity = queueCapacity;
+	public Server(Config config, ComputeEngine compute, BufferPool buffers, AccessLog accessLog, Tracer tracer) {
+		this(config, compute, buffers, accessLog, tracer, null, 0, config.setting("poolSize").asInt(), null);
+	}
+
+	/**
+	 * One shard of {@code group} with {@code poolSize} workers of its own. The compute engine,
+	 * buffer pool, access log, tracer, rooms and accept limit are the group's; the group closes
+	 * them once every shard has drained.
+	 */
+	Server(Config config, ComputeEngine compute, BufferPool buffers, AccessLog accessLog, Tracer tracer, Shards group, int shard, int poolSize, String cpus) {
+		this.config = config;
+		this.group = group;
+		this.shard = shard;
+		this.cpus = cpus;
+		this.threadPrefix = group == null ? "" : "shard" + shard + "-";
+		this.logPrefix = group == null ? "[ThreadPool] " : "[ThreadPool shard " + shard + "] ";
+		this.rooms = group == null ? new java.util.concurrent.ConcurrentHashMap<>() : group.rooms;
+		this.acceptLimiter = group == null ? new RateLimiter() : group.acceptLimiter;
+		this.numWorkers = poolSize;
+		this.queueCapacity = config.setting("queueCapacity");
+		this.activeWorkers = config.setting("activeWorkers");
+		this.pollTimeoutMillis = config.setting("pollTimeoutMillis");
+		this.requestTimeoutMillis = config.setting("requestTimeoutMillis");
+		this.maxAcceptsPerSecond = config.setting("maxAcceptsPerSecond");
+		this.rejector = new Rejector(config.setting("rejectQueue").asInt(), config.setting("rejectHardClose"));
+		rejector.setName(threadPrefix + rejector.getName());
+		this.streamBufferBytes = config.setting("streamBufferBytes");
+		this.drainMillis = config.setting("drainMillis");
+		int window = config.setting("latencyWindow").asInt();
+		this.lastLatenciesNanos = new long[Integer.bitCount(window) == 1 ? window : Integer.highestOneBit(window) << 1];
+		config.setting("traceSampleRate").onChange(() -> tracer.setSampleRate(config.setting("traceSampleRate").asDouble()));
+		this.compute = compute;
+		this.buffers = buffers;
+		this.responses = new ResponseWriter(buffers, clock);
+		this.accessLog = accessLog;
+		this.tracer = tracer;
 		this.workers = new Worker[numWorkers];
 		for (int i = 0; i < numWorkers; i++) {
-			workers[i] = new Worker(this, queueCapacity, "pool-worker-"+i);
+			workers[i] = new Worker(this, i);
 			workers[i].start();
 		}
+		this.metrics = new MetricsAggregator(config.setting("metricsIntervalMillis"), this::getMetricsJson)
+				.counter("requests", totalRequests::get)
+				.counter("accepted", this::acceptedConnections)
+				.counter("rejected", rejectedRequests::get)
+				.counter("rateLimited", rateLimited::get)
+				.counter("uploadBytes", uploadBytes::get)
+				.counter("http2Streams", http2Streams::get);
+		metrics.setName(threadPrefix + metrics.getName());
+		metrics.publish();
+		metrics.start();
+	}
+
+	/** Workers currently taking new connections, from the live activeWorkers setting. */
+	int activeWorkers() {
+		int n = activeWorkers.asInt();
+		return n <= 0 || n > numWorkers ? numWorkers : n;
+	}
+
+	long drainMillis() { return drainMillis.asLong(); }
+
+	/** Connections taken off the listeners so far, rejected ones included. */
+	long acceptedConnections() {
+		long n = 0;
+		for (Acceptor a : acceptors) n += a.accepted.get();
+		return n;
+	}
+
+	String rejectorJson() { return rejector.toJson(); }
+
+	long requestCount() { return totalRequests.get(); }
+
+	long rejectedCount() { return rejectedRequests.get(); }
+
+	long rateLimitedCount() { return rateLimited.get(); }
+
+	long uploadByteCount() { return uploadBytes.get(); }
+
+	long http2StreamCount() { return http2Streams.get(); }
+
+	/** Called first thing by this shard's acceptors and workers; a no-op when it has no CPU set. */
+	private void pinCurrentThread() {
+		if (cpus == null) return;
+		if (CpuAffinity.pinCurrentThread(cpus)) {
+			pinnedThreads.incrementAndGet();
+		} else {
+			pinFailures.incrementAndGet();
+		}
+	}
+
+	boolean isDraining() { return draining; }
+
+	/**
+	 * Queues an HTTP/2 stream round-robin on the active workers, passing over those pinned to
+	 * reading a connection (the caller's own included). False when every other deque is full.
+	 */
+	boolean dispatchStream(Task stream) {
+		int active = activeWorkers();
+		int start = streamRr.getAndIncrement() & Integer.MAX_VALUE;
+		for (int k = 0; k < active; k++) {
+			Worker w = workers[(start + k) % active];
+			if (!w.pinned && w.offer(stream)) return true;
+		}
+		return false;
 	}
 
-	private Socket stealWork(Worker thief) {
+	void http2Refused() { http2RefusedStreams.incrementAndGet(); }
+
+	/** One steal attempt: scans the other deques from a random start and takes from the tail. */
+	private Task stealWork(Worker thief) {
+		ServerEvents.Steal event = new ServerEvents.Steal();
+		event.begin();
+		thief.stealAttempts.incrementAndGet();
 		int start = Math.abs(thief.random.nextInt()) % numWorkers;
 		for (int k = 0; k < numWorkers; k++) {
 			Worker victim = workers[(start + k) % numWorkers];
 			if (victim == thief) continue;
-			Socket s = victim.deque.pollLast();
-			if (s != null) return s;
+			Task s = victim.stealLast();
+			if (s != null) {
+				thief.stealSuccesses.incrementAndGet();
+				victim.stolenFrom.incrementAndGet();
+				commitSteal(event, thief, victim);
+				return s;
+			}
 		}
+		commitSteal(event, thief, null);
 		return null;
 	}
 
+	private static void commitSteal(ServerEvents.Steal event, Worker thief, Worker victim) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.thief = thief.getName();
+			event.success = victim != null;
+			if (victim != null) {
+				event.victim = victim.getName();
+				event.victimQueueDepth = victim.queueSize();
+			}
+			event.commit();
+		}
+	}
+
+	/** JFR record of a 503; {@code acceptor} is null for connections dropped while draining. */
+	void rejectEvent(String acceptor, String reason) {
+		ServerEvents.Reject event = new ServerEvents.Reject();
+		if (event.shouldCommit()) {
+			event.acceptor = acceptor;
+			event.reason = reason;
+			int queued = 0;
+			for (Worker w : workers) queued += w.queueSize();
+			event.queuedTotal = queued;
+			event.commit();
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		try { s.close(); } catch (IOException ignore) {}
+	}
+
+	private static boolean isLoopback(Socket s) {
+		return s.getInetAddress() != null && s.getInetAddress().isLoopbackAddress();
+	}
+
+	/**
+	 * Binds the listening socket with SO_REUSEPORT where the platform supports it, so a
+	 * replacement process can bind the same port and take traffic before this one exits.
+	 * The receive buffer is set before bind so accepted sockets inherit it.
+	 */
+	static ServerSocket bindListener(int port, SocketOptions options) throws IOException {
+		ServerSocket ss = new ServerSocket();
+		ss.setReuseAddress(true);
+		if (supportsReusePort(ss)) {
+			ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		if (options.receiveBufferSize > 0) ss.setReceiveBufferSize(options.receiveBufferSize);
+		ss.bind(new InetSocketAddress(port), options.backlog);
+		return ss;
+	}
+
+	static boolean supportsReusePort(ServerSocket ss) {
+		return ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+	}
+
+	/** Starts {@code count} acceptors on {@code port}, each owning a slice of the workers. */
+	void startAcceptors(int port, int count, SocketOptions options, SSLContext tls) throws IOException {
+		startAcceptors(bindListener(port, options), port, count, options, tls);
+	}
+
+	/**
+	 * Starts {@code count} acceptors, the first on {@code shared}. With SO_REUSEPORT the others
+	 * bind listeners of their own on {@code port}; without it they all accept from {@code shared}.
+	 */
+	void startAcceptors(ServerSocket shared, int port, int count, SocketOptions options, SSLContext tls) throws IOException {
+		count = Math.max(1, Math.min(count, numWorkers));
+		boolean perAcceptorListener = supportsReusePort(shared);
+		for (int i = 0; i < count; i++) {
+			ServerSocket ss = (i == 0 || !perAcceptorListener) ? shared : bindListener(port, options);
+			Acceptor a = new Acceptor(this, ss, options, tls, i, count);
+			acceptors.add(a);
+			a.start();
+		}
+	}
+
+	/**
+	 * Server-side TLS context from a PKCS#12 keystore. Resumption uses both the stateful
+	 * session cache and (TLS 1.3) stateless session tickets, so returning clients skip the
+	 * full handshake.
+	 */
+	static SSLContext loadTlsContext(String keystorePath, char[] password, int sessionCacheSize, int sessionTimeoutSeconds) throws Exception {
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (FileInputStream in = new FileInputStream(keystorePath)) { ks.load(in, password); }
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, password);
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		SSLSessionContext sessions = ctx.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeoutSeconds);
+		return ctx;
+	}
+
+	void awaitAcceptors() throws InterruptedException {
+		for (Acceptor a : acceptors) a.join();
+	}
+
+	private boolean queuesEmpty() {
+		for (Worker w : workers) if (w.queueSize() > 0) return false;
+		return true;
+	}
+
+	/**
+	 * Stops accepting, lets workers drain their deques until the deadline, and asks every
+	 * WebSocket peer to close (1001 Going Away). Idempotent: later callers wait for the
+	 * first shutdown to finish. A shard touches only its own sessions and leaves the shared
+	 * compute engine, access log and tracer to {@link Shards#shutdown}.
+	 */
+	void shutdown(long drainMillis) {
+		if (!shutdownStarted.compareAndSet(false, true)) {
+			try { shutdownComplete.await(drainMillis + 1000, TimeUnit.MILLISECONDS); } catch (InterruptedException ignore) {}
+			return;
+		}
+		long deadline = clock.nanos() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		System.out.println(logPrefix + "Draining (deadline " + drainMillis + " ms)");
+		draining = true;
+		for (Acceptor a : acceptors) { try { a.listener.close(); } catch (IOException ignore) {} }
+
+		byte[] goingAway = closePayload(1001, "server shutting down");
+		for (CopyOnWriteArraySet<Client> set : rooms.values()) {
+			for (Client c : set) if (c.open && c.owner == this) sendControl(c, 0x8, goingAway);
+		}
+
+		while (clock.nanos() - deadline < 0 && (!queuesEmpty() || activeConnections.get() > 0)) {
+			try { Thread.sleep(20); } catch (InterruptedException ignore) { break; }
+		}
+
+		for (Worker w : workers) { w.running = false; w.interrupt(); }
+		for (Worker w : workers) { try { w.join(1000); } catch (InterruptedException ignore) {} }
+		int dropped = 0;
+		for (Worker w : workers) {
+			Task t;
+			while ((t = w.poll()) != null) {
+				rejectEvent(null, "draining");
+				t.reject(this);
+				dropped++;
+			}
+		}
+		for (CopyOnWriteArraySet<Client> set : rooms.values()) {
+			for (Client c : set) if (c.owner == this) { c.open = false; closeQuietly(c.socket); }
+		}
+		rejector.shutdown();
+		metrics.close();
+		if (group == null) {
+			compute.shutdown();
+			accessLog.close();
+			tracer.close();
+		}
+		System.out.println(logPrefix + "Shutdown complete (active=" + activeConnections.get() + ", dropped=" + dropped + ")");
+		shutdownComplete.countDown();
+	}
+
+	private static byte[] closePayload(int code, String reason) {
+		byte[] r = reason.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = new byte[2 + r.length];
+		payload[0] = (byte)(code >>> 8);
+		payload[1] = (byte)code;
+		System.arraycopy(r, 0, payload, 2, r.length);
+		return payload;
+	}
+
+	/**
+	 * Plaintext 503 on the calling worker; TLS connections are closed instead, a handshake would
+	 * cost more than serving. Acceptors hand their rejections to the {@link Rejector}.
+	 */
+	private static void writeRejection(Socket clientSocket, boolean tls, byte[] response) {
+		if (tls) { closeQuietly(clientSocket); return; }
+		try {
+			OutputStream out = clientSocket.getOutputStream();
+			out.write(response);
+			out.flush();
+		} catch (IOException ignore) {} finally { closeQuietly(clientSocket); }
+	}
+
 	private void recordLatency(long nanos) {
-		totalLatencyNanos.addAndGet(nanos);
-		int idx = latencyWriteIndex.getAndIncrement() & (lastLatenciesNanos.length - 1);
+		totalLatencyNanos.add(nanos);
+		int idx = (int)(latencyWriteIndex.getAndIncrement() & (lastLatenciesNanos.length - 1));
 		lastLatenciesNanos[idx] = nanos;
 	}
 
@@ -113,14 +821,14 @@ public class Server {
 		return params;
 	}
 
-	private void respond(BufferedWriter writer, int status, String statusText, String contentType, String body) throws IOException {
-		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-		writer.write("HTTP/1.1 " + status + " " + statusText + "\r\n");
-		writer.write("Content-Type: " + contentType + "\r\n");
-		writer.write("Content-Length: " + bytes.length + "\r\n");
-		writer.write("Connection: close\r\n\r\n");
-		writer.write(body);
-		writer.flush();
+	private void respond(OutputStream out, int status, String statusText, String contentType, String body) throws IOException {
+		responses.respond(out, status, statusText, contentType, body);
+	}
+
+	/** Writes a response head without Content-Length and returns the chunked body stream. */
+	private HttpStreams.ChunkedOutputStream respondChunked(OutputStream rawOut, int status, String statusText, String contentType, byte[] extraHeaders, int coalesceBytes) throws IOException {
+		responses.writeChunkedHead(rawOut, status, statusText, contentType, extraHeaders);
+		return new HttpStreams.ChunkedOutputStream(rawOut, coalesceBytes);
 	}
 
 	private void busyWork(long ms) {
@@ -131,38 +839,141 @@ public class Server {
 	}
 
 	private void streamBytes(OutputStream out, long bytes) throws IOException {
-		byte[] buf = new byte[8192];
-		for (int i = 0; i < buf.length; i++) buf[i] = 'a';
 		long remaining = bytes;
 		while (remaining > 0) {
-			int toWrite = (int)Math.min(remaining, buf.length);
-			out.write(buf, 0, toWrite);
+			int toWrite = (int)Math.min(remaining, IO_FILL.length);
+			out.write(IO_FILL, 0, toWrite);
 			remaining -= toWrite;
 		}
 	}
 
+	/** The /metrics body; built by the {@link MetricsAggregator} thread only. */
 	private String getMetricsJson() {
 		long totalReq = totalRequests.get();
 		long avgNs = totalReq > 0 ? totalLatencyNanos.get() / totalReq : 0;
-		long[] snapshot = lastLatenciesNanos.clone();
-		java.util.Arrays.sort(snapshot);
-		long p95 = snapshot[(int)(snapshot.length * 0.95) - 1];
+		long p95 = p95(recentLatencies());
 		int sumDepth = 0;
 		int maxDepth = 0;
 		for (Worker w : workers) { int sz = w.queueSize(); sumDepth += sz; if (sz > maxDepth) maxDepth = sz; }
+		StringBuilder ws = new StringBuilder();
+		for (Worker w : workers) {
+			if (ws.length() > 0) ws.append(",\n");
+			ws.append("    {\"name\": \"").append(w.getName())
+					.append("\", \"queueSize\": ").append(w.queueSize())
+					.append(", \"handled\": ").append(w.handled.get())
+					.append(", \"busyRatio\": ").append(w.busyRatio())
+					.append(", \"stealAttempts\": ").append(w.stealAttempts.get())
+					.append(", \"stealSuccesses\": ").append(w.stealSuccesses.get())
+					.append(", \"stolenFrom\": ").append(w.stolenFrom.get()).append('}');
+		}
+		StringBuilder acc = new StringBuilder();
+		for (Acceptor a : acceptors) {
+			if (acc.length() > 0) acc.append(",\n");
+			acc.append("    {\"name\": \"").append(a.getName())
+					.append("\", \"workers\": \"").append(a.firstWorker()).append('-').append(a.firstWorker() + a.workerCount() - 1)
+					.append("\", \"accepted\": ").append(a.accepted.get())
+					.append(", \"rejected\": ").append(a.rejected.get())
+					.append(", \"acceptRatePerSec\": ").append(Math.round(a.sampleRate() * 10) / 10.0).append('}');
+		}
 		return "{\n" +
 				"  \"model\": \"thread-pool (RR + stealing)\",\n" +
+				(group == null ? "" : "  \"shard\": " + shardJson() + ",\n") +
 				"  \"activeConnections\": " + activeConnections.get() + ",\n" +
 				"  \"totalRequests\": " + totalReq + ",\n" +
 				"  \"avgLatencyMs\": " + (avgNs / 1_000_000.0) + ",\n" +
 				"  \"p95LatencyMs\": " + (p95 / 1_000_000.0) + ",\n" +
 				"  \"queueDepthSum\": " + sumDepth + ",\n" +
 				"  \"queueDepthMax\": " + maxDepth + ",\n" +
-				"  \"queueCapacityPerWorker\": " + queueCapacity + ",\n" +
-				"  \"rejectedRequests\": " + rejectedRequests.get() + "\n" +
+				"  \"queueCapacityPerWorker\": " + queueCapacity.asInt() + ",\n" +
+				"  \"activeWorkers\": " + activeWorkers() + ",\n" +
+				"  \"rejectedRequests\": " + rejectedRequests.get() + ",\n" +
+				"  \"rateLimited\": " + rateLimited.get() + ",\n" +
+				"  \"uploads\": " + uploads.get() + ",\n" +
+				"  \"uploadBytes\": " + uploadBytes.get() + ",\n" +
+				"  \"metricStreams\": " + sseStreams.get() + ",\n" +
+				"  \"http2\": {\"connections\": " + http2Connections.get() + ", \"maxConnections\": " + maxHttp2Connections()
+						+ ", \"streams\": " + http2Streams.get() + ", \"refusedStreams\": " + http2RefusedStreams.get() + "},\n" +
+				"  \"acceptors\": [\n" + acc + "\n  ],\n" +
+				"  \"rejector\": " + rejector.toJson() + ",\n" +
+				"  \"queueWaitMs\": " + queueWait.toJson() + ",\n" +
+				"  \"serviceMs\": " + serviceTime.toJson() + ",\n" +
+				"  \"writeMs\": " + writeTime.toJson() + ",\n" +
+				"  \"workers\": [\n" + ws + "\n  ],\n" +
+				sharedJson() +
+				"  \"rates\": " + metrics.ratesJson() + ",\n" +
+				"  \"snapshot\": " + metrics.infoJson() + ",\n" +
+				"  \"config\": " + config.toJson(false) + ",\n" +
+				"  \"draining\": " + draining + "\n" +
 				"}\n";
 	}
 
+	/** The compute, bufferPool, accessLog and tracing lines; these are the same for every shard. */
+	String sharedJson() {
+		return "  \"compute\": {\"parallelism\": " + compute.parallelism() + ", \"maxSplits\": " + compute.maxSplits()
+						+ ", \"requests\": " + compute.requests() + ", \"leafTasks\": " + compute.leafTasks()
+						+ ", \"steals\": " + compute.stealCount() + ", \"activeThreads\": " + compute.activeThreads()
+						+ ", \"queuedTasks\": " + compute.queuedTasks() + "},\n" +
+				"  \"bufferPool\": {\"acquires\": " + buffers.acquires() + ", \"hitRate\": " + buffers.hitRate()
+						+ ", \"allocations\": " + buffers.allocations() + ", \"unpooled\": " + buffers.unpooled()
+						+ ", \"outstanding\": " + buffers.outstanding() + ", \"pooled\": " + buffers.pooled()
+						+ ", \"leaks\": " + buffers.leaks() + "},\n" +
+				"  \"accessLog\": {\"logged\": " + accessLog.logged() + ", \"dropped\": " + accessLog.dropped()
+						+ ", \"written\": " + accessLog.written() + ", \"rotations\": " + accessLog.rotations()
+						+ ", \"writeErrors\": " + accessLog.writeErrors() + "},\n" +
+				"  \"tracing\": {\"sampleRate\": " + tracer.sampleRate() + ", \"sampled\": " + tracer.sampled()
+						+ ", \"exported\": " + tracer.exported() + ", \"dropped\": " + tracer.dropped()
+						+ ", \"exportErrors\": " + tracer.exportErrors() + "},\n";
+	}
+
+	/** A copy of the latency ring, unsorted; slots not yet written are 0. */
+	long[] recentLatencies() {
+		return lastLatenciesNanos.clone();
+	}
+
+	/** 95th percentile of {@code nanos}, which it sorts in place. */
+	static long p95(long[] nanos) {
+		java.util.Arrays.sort(nanos);
+		return nanos[Math.max(0, (int)(nanos.length * 0.95) - 1)];
+	}
+
+	/** Adds this shard's counters and queue depths to {@code t}, for the merged /metrics. */
+	void addTotals(Shards.Totals t) {
+		t.requests += totalRequests.get();
+		t.latencyNanos += totalLatencyNanos.get();
+		t.activeConnections += activeConnections.get();
+		t.activeWorkers += activeWorkers();
+		for (Worker w : workers) {
+			int sz = w.queueSize();
+			t.queueDepthSum += sz;
+			t.queueDepthMax = Math.max(t.queueDepthMax, sz);
+		}
+		t.accepted += acceptedConnections();
+		t.rejected += rejectedRequests.get();
+		t.rateLimited += rateLimited.get();
+		t.uploads += uploads.get();
+		t.uploadBytes += uploadBytes.get();
+		t.metricStreams += sseStreams.get();
+		t.http2Connections += http2Connections.get();
+		t.http2Streams += http2Streams.get();
+		t.http2RefusedStreams += http2RefusedStreams.get();
+	}
+
+	/** One line about this shard: where it runs and what it has served. */
+	String shardJson() {
+		long requests = totalRequests.get();
+		int depth = 0;
+		for (Worker w : workers) depth += w.queueSize();
+		return "{\"index\": " + shard + ", \"of\": " + (group == null ? 1 : group.size())
+				+ ", \"cpus\": " + (cpus == null ? "null" : "\"" + cpus + "\"")
+				+ ", \"pinnedThreads\": " + pinnedThreads.get() + ", \"pinFailures\": " + pinFailures.get()
+				+ ", \"workers\": " + numWorkers + ", \"acceptors\": " + acceptors.size()
+				+ ", \"activeConnections\": " + activeConnections.get() + ", \"totalRequests\": " + requests
+				+ ", \"avgLatencyMs\": " + (requests > 0 ? totalLatencyNanos.get() / requests : 0) / 1_000_000.0
+				+ ", \"p95LatencyMs\": " + p95(recentLatencies()) / 1_000_000.0
+				+ ", \"queueDepthSum\": " + depth + ", \"accepted\": " + acceptedConnections()
+				+ ", \"rejectedRequests\": " + rejectedRequests.get() + ", \"rateLimited\": " + rateLimited.get() + "}";
+	}
+
 	private String getIndexHtml() {
 		return "<!doctype html><html><head><meta charset=\"utf-8\"><title>Thread Pool Demo</title>"
 				+ "<style>body{font-family:sans-serif;margin:2rem}input,button{margin:.25rem}#log{white-space:pre-wrap;border:1px solid #ccc;padding:8px;height:160px;overflow:auto}</style>"
@@ -196,31 +1007,34 @@ public class Server {
 				+ "}\n"
 				+ "function onData(ev){ if(typeof ev.data==='string'){ try{ const j=JSON.parse(ev.data); if(j.t==='file-meta'){ recv={name:j.name,size:j.size,received:0,chunks:[]}; log('meta',recv.name,recv.size); } else { log('recv text',ev.data); } }catch(e){ log('recv text',ev.data);} return } const ab=ev.data; if(!(ab instanceof ArrayBuffer)){ log('unexpected type'); return } const u=new Uint8Array(ab); recv.chunks.push(u); recv.received+=u.length; document.getElementById('prog').textContent=`Recv ${recv.received}/${recv.size}`; if(recv.size>0 && recv.received>=recv.size){ const blob=new Blob(recv.chunks,{type:'application/octet-stream'}); const a=document.createElement('a'); a.href=URL.createObjectURL(blob); a.download=recv.name||'received.bin'; a.textContent=`Download ${a.download}`; document.body.appendChild(a); log('receive complete'); } }\n"
 				+ "async function sendFile(){ const f=document.getElementById('file').files[0]; if(!f||!dc||dc.readyState!=='open'){return} dc.send(JSON.stringify({t:'file-meta',name:f.name,size:f.size})); const stream=f.stream().getReader(); let sent=0; const total=f.size; while(true){ const {done,value}=await stream.read(); if(done) break; dc.send(value); sent+=value.length; document.getElementById('prog').textContent=`Sent ${sent}/${total}`; } log('send complete'); }\n"
-				+ "document.getElementById('connect').onclick=()=>{ const room=document.getElementById('room').value||'default'; ws=new WebSocket(`ws://${location.host}/ws?room=${encodeURIComponent(room)}`); ws.onopen=()=>{ log('ws open'); setupPeer(); ws.send(JSON.stringify({type:'hello',id:myId})); }; ws.onmessage=onMsg; ws.onclose=()=>log('ws close'); };\n"
+				+ "document.getElementById('connect').onclick=()=>{ const room=document.getElementById('room').value||'default'; ws=new WebSocket(`${location.protocol==='https:'?'wss':'ws'}://${location.host}/ws?room=${encodeURIComponent(room)}`); ws.onopen=()=>{ log('ws open'); setupPeer(); ws.send(JSON.stringify({type:'hello',id:myId})); }; ws.onmessage=onMsg; ws.onclose=()=>log('ws close'); };\n"
 				+ "document.getElementById('send').onclick=sendFile;\n"
 				+ "</script>"
 				+ "</body></html>";
 	}
 
-	private void handleHttpOrWebSocket(Socket clientSocket) {
+	private void handleHttpOrWebSocket(Connection conn) {
+		ServerEvents.Request event = new ServerEvents.Request();
+		event.begin();
 		long start = System.nanoTime();
-		activeConnections.incrementAndGet();
+		activeConnections.increment();
+		Socket clientSocket = conn.socket;
+		IOException error = null;
+		Tracer.Sample trace = null;
 		try {
-			InputStream in = clientSocket.getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-			OutputStream rawOut = clientSocket.getOutputStream();
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8));
+			InputStream in = conn.in();
+			OutputStream rawOut = conn.out();
 
-			String requestLine = reader.readLine();
+			String requestLine = HttpStreams.readLine(in, HttpStreams.MAX_LINE_BYTES);
 			if (requestLine == null || requestLine.isEmpty()) return;
-			Map<String, String> headers = new HashMap<>();
-			String line;
-			while ((line = reader.readLine()) != null && !line.isEmpty()) {
-				int idx = line.indexOf(':');
-				if (idx > 0) {
-					headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
-				}
+			if (Http2Connection.PREFACE_LINE.equals(requestLine) && !conn.isTls()) {
+				conn.exchange.method = "PRI";
+				conn.exchange.path = "*";
+				serveHttp2(conn, null, null, null);
+				return;
 			}
+			Map<String, String> headers = HttpStreams.readHeaders(in);
+			trace = tracer.start(headers.get("traceparent"));
 
 			String[] parts = requestLine.split(" ", 3);
 			String method = parts.length > 0 ? parts[0] : "";
@@ -229,58 +1043,373 @@ public class Server {
 			String query = "";
 			int qIdx = target.indexOf('?');
 			if (qIdx >= 0) { path = target.substring(0, qIdx); query = target.substring(qIdx + 1); }
+			conn.exchange.method = method;
+			conn.exchange.path = path;
 			Map<String, String> queryParams = parseQuery(query);
 
+			if (isHttp2Upgrade(conn, headers) && serveHttp2(conn, method, target, headers)) return;
+
 			boolean isWebSocket = "websocket".equalsIgnoreCase(headers.getOrDefault("upgrade", ""));
 			if (isWebSocket && "/ws".equals(path)) {
-				doWebSocketHandshakeAndServe(clientSocket, headers, queryParams);
+				doWebSocketHandshakeAndServe(conn, headers, queryParams);
 				return;
 			}
 
-			if (!"GET".equalsIgnoreCase(method)) {
-				respond(writer, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
-				return;
+			route(clientSocket, in, rawOut, method, path, headers, queryParams);
+		} catch (HttpStreams.HttpException ex) {
+			respondError(conn, ex);
+		} catch (IOException ex) {
+			error = ex;
+		} finally {
+			conn.close();
+			recordRequest(conn.exchange, conn.enqueuedNanos, start, conn.isTls(), error, trace, event);
+			activeConnections.decrement();
+			totalRequests.increment();
+		}
+	}
+
+	/** Latency, time breakdown, access log, trace and JFR record of one served request. */
+	private void recordRequest(AccessLog.Exchange exchange, long enqueuedNanos, long start, boolean tls, IOException error, Tracer.Sample trace, ServerEvents.Request event) {
+		long end = System.nanoTime();
+		recordLatency(end - start);
+		if (enqueuedNanos != 0) queueWait.record(start - enqueuedNanos);
+		writeTime.record(exchange.writeNanos);
+		serviceTime.record(end - start - exchange.writeNanos);
+		accessLog.log(exchange, start, end, error);
+		if (trace != null) tracer.finish(trace, exchange, enqueuedNanos, start, end, tls, error);
+		event.end();
+		if (event.shouldCommit()) {
+			event.worker = Thread.currentThread().getName();
+			event.method = exchange.method;
+			event.route = exchange.path;
+			event.status = exchange.status;
+			event.bytes = exchange.bytes;
+			event.queueWait = enqueuedNanos != 0 ? start - enqueuedNanos : 0;
+			event.writeTime = exchange.writeNanos;
+			event.tls = tls;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Runs one request through the routes. HTTP/1.1 connections and HTTP/2 streams both come
+	 * here; for a stream, {@code in} carries its DATA and {@code rawOut} turns the HTTP/1.1
+	 * response written to it into frames.
+	 */
+	private void route(Socket clientSocket, InputStream in, OutputStream rawOut, String method, String path, Map<String, String> headers, Map<String, String> queryParams) throws IOException {
+		if (path.startsWith("/admin/config")) {
+			handleConfigAdmin(clientSocket, rawOut, method, path, queryParams);
+			return;
+		}
+
+		if ("/admin/shutdown".equals(path)) {
+			handleShutdownAdmin(clientSocket, rawOut, method, queryParams);
+			return;
+		}
+
+		if ("/upload".equals(path)) {
+			if ("POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method)) {
+				handleUpload(in, rawOut, headers);
+			} else {
+				respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
 			}
+			return;
+		}
 
-			switch (path) {
-				case "/":
-					respond(writer, 200, "OK", "text/html; charset=utf-8", getIndexHtml());
-					break;
-				case "/hello":
-					respond(writer, 200, "OK", "text/plain; charset=utf-8", "Hello from thread-pool server\n");
-					break;
-				case "/compute": {
+		if (!"GET".equalsIgnoreCase(method)) {
+			respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+			return;
+		}
+
+		switch (path) {
+			case "/":
+				respond(rawOut, 200, "OK", "text/html; charset=utf-8", getIndexHtml());
+				break;
+			case "/hello":
+				respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "Hello from thread-pool server\n");
+				break;
+			case "/compute": {
+				String kindParam = queryParams.get("kind");
+				if (kindParam == null) {
+					// Busy-wait baseline, kept so all three models run the same /compute?ms=N load
 					long ms = parseLongOrDefault(queryParams.get("ms"), 50);
 					busyWork(ms);
-					respond(writer, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
+					respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "compute:"+ms+"ms\n");
+					break;
+				}
+				ComputeEngine.Kind kind = ComputeEngine.parseKind(kindParam);
+				if (kind == null) {
+					respond(rawOut, 400, "Bad Request", "text/plain; charset=utf-8", "kind must be hash, sort or json\n");
 					break;
 				}
-				case "/io": {
-					long bytes = parseLongOrDefault(queryParams.get("bytes"), 1024 * 1024);
-					String headersOut = "HTTP/1.1 200 OK\r\n" +
-							"Content-Type: application/octet-stream\r\n" +
-							"Content-Length: " + bytes + "\r\n" +
-							"Connection: close\r\n\r\n";
-					writer.write(headersOut);
-					writer.flush();
-					streamBytes(rawOut, bytes);
-					rawOut.flush();
+				int size = (int)Math.min(Integer.MAX_VALUE, parseLongOrDefault(queryParams.get("size"), ComputeEngine.defaultSize(kind)));
+				int splits = (int)Math.min(Integer.MAX_VALUE, parseLongOrDefault(queryParams.get("splits"), 1));
+				ComputeEngine.Result r = compute.run(kind, size, splits);
+				respond(rawOut, 200, "OK", "text/plain; charset=utf-8", "compute:" + kindParam.toLowerCase() + " size=" + r.size
+						+ " splits=" + r.splits + " checksum=" + r.checksum + " elapsedMs=" + (r.elapsedNanos / 1_000_000.0) + "\n");
+				break;
+			}
+			case "/io": {
+				long bytes = parseLongOrDefault(queryParams.get("bytes"), 1024 * 1024);
+				if (Boolean.parseBoolean(queryParams.get("chunked")) || "1".equals(queryParams.get("chunked"))) {
+					long chunk = Math.max(64, Math.min(1 << 20, parseLongOrDefault(queryParams.get("chunk"), DEFAULT_CHUNK_BYTES)));
+					try (HttpStreams.ChunkedOutputStream body = respondChunked(rawOut, 200, "OK", "application/octet-stream", ResponseWriter.NO_HEADERS, (int)chunk)) {
+						streamBytes(body, bytes);
+					}
 					break;
 				}
-				case "/metrics":
-					respond(writer, 200, "OK", "application/json; charset=utf-8", getMetricsJson());
+				// The head and the first block of the body leave in one write
+				int first = (int)Math.max(0, Math.min(bytes, IO_FILL.length));
+				responses.writeHead(rawOut, 200, "OK", "application/octet-stream", bytes, IO_FILL, first);
+				streamBytes(rawOut, bytes - first);
+				rawOut.flush();
+				break;
+			}
+			case "/metrics": {
+				MetricsAggregator.Snapshot snapshot = metricsSnapshot(queryParams.get("shard"));
+				if (snapshot == null) {
+					respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "no such shard\n");
 					break;
-				default:
-					respond(writer, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+				}
+				byte[] json = snapshot.json;
+				responses.writeHead(rawOut, 200, "OK", "application/json; charset=utf-8", json.length, json, json.length);
+				rawOut.flush();
+				break;
 			}
-        } catch (IOException ex) {
-            ex.printStackTrace();
+			case "/metrics/stream":
+				// Each subscriber holds a worker; keep at least half the pool for requests
+				try {
+					if (sseStreams.incrementAndGet() > Math.max(1, numWorkers / 2)) {
+						respond(rawOut, 503, "Service Unavailable", "text/plain; charset=utf-8", "too many metric streams\n");
+					} else {
+						streamMetrics(rawOut, queryParams);
+					}
+				} finally {
+					sseStreams.decrementAndGet();
+				}
+				break;
+			default:
+				respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+		}
+	}
+
+	/** Cleartext {@code Upgrade: h2c} with HTTP2-Settings and no request body to carry over. */
+	private static boolean isHttp2Upgrade(Connection conn, Map<String, String> headers) {
+		if (conn.isTls() || !headers.containsKey("http2-settings")) return false;
+		if (headers.containsKey("transfer-encoding") || !"0".equals(headers.getOrDefault("content-length", "0").trim())) return false;
+		for (String token : headers.getOrDefault("upgrade", "").split(",")) {
+			if ("h2c".equalsIgnoreCase(token.trim())) return true;
+		}
+		return false;
+	}
+
+	/** Each connection's reader holds a worker while its streams run on the others; keep half the pool for them. */
+	private int maxHttp2Connections() { return numWorkers / 2; }
+
+	/**
+	 * Serves an HTTP/2 connection on this worker: prior knowledge when {@code method} is null,
+	 * otherwise the upgrade of the request given. Past maxHttp2Connections an upgrade is
+	 * declined (false, the request is served as HTTP/1.1) and a prior-knowledge connection
+	 * gets GOAWAY(REFUSED_STREAM).
+	 */
+	private boolean serveHttp2(Connection conn, String method, String target, Map<String, String> headers) throws IOException {
+		Worker self = Thread.currentThread() instanceof Worker ? (Worker)Thread.currentThread() : null;
+		try {
+			if (http2Connections.incrementAndGet() > maxHttp2Connections()) {
+				if (method != null) return false;
+				conn.out().write(Http2Connection.REFUSED_CONNECTION);
+				conn.out().flush();
+				return true;
+			}
+			if (self != null) self.pinned = true;
+			Http2Connection h2 = new Http2Connection(this, conn, buffers, requestTimeoutMillis.asLong());
+			if (method == null) {
+				h2.servePriorKnowledge();
+			} else {
+				h2.serveUpgrade(method, target, headers);
+			}
+			return true;
+		} finally {
+			if (self != null) self.pinned = false;
+			http2Connections.decrementAndGet();
+		}
+	}
+
+	/** One HTTP/2 stream on a worker: the HTTP/1.1 routes, framed by the stream's connection. */
+	void handleHttp2Stream(Http2Connection.Stream stream) {
+		ServerEvents.Request event = new ServerEvents.Request();
+		event.begin();
+		long start = System.nanoTime();
+		http2Streams.incrementAndGet();
+		AccessLog.Exchange exchange = stream.exchange;
+		IOException error = null;
+		Tracer.Sample trace = tracer.start(stream.headers.get("traceparent"));
+		try (OutputStream rawOut = exchange.wrap(stream.response())) {
+			String path = stream.target;
+			String query = "";
+			int qIdx = path.indexOf('?');
+			if (qIdx >= 0) { query = path.substring(qIdx + 1); path = path.substring(0, qIdx); }
+			exchange.method = stream.method;
+			exchange.path = path;
+			try {
+				if (stream.error != null) throw stream.error;
+				route(stream.socket(), stream.body, rawOut, stream.method, path, stream.headers, parseQuery(query));
+			} catch (HttpStreams.HttpException ex) {
+				respond(rawOut, ex.status, ex.reason, "text/plain; charset=utf-8", ex.getMessage() + "\n");
+			}
+		} catch (IOException ex) {
+			error = ex;
 		} finally {
-			try { clientSocket.close(); } catch (IOException ignore) {}
-			long elapsed = System.nanoTime() - start;
-			recordLatency(elapsed);
-			activeConnections.decrementAndGet();
-			totalRequests.incrementAndGet();
+			stream.finish();
+			recordRequest(exchange, stream.enqueuedNanos, start, false, error, trace, event);
+			totalRequests.increment();
+		}
+	}
+
+	/**
+	 * POST /admin/shutdown?drainMs=N drains and exits. Loopback only, and POST only, so a page
+	 * in a local browser cannot stop the server with an image or a link.
+	 */
+	private void handleShutdownAdmin(Socket clientSocket, OutputStream rawOut, String method, Map<String, String> queryParams) throws IOException {
+		if (!isLoopback(clientSocket)) {
+			respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+			return;
+		}
+		if (!"POST".equalsIgnoreCase(method)) {
+			respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+			return;
+		}
+		long drainMs = parseLongOrDefault(queryParams.get("drainMs"), drainMillis());
+		respond(rawOut, 202, "Accepted", "text/plain; charset=utf-8", "draining:" + drainMs + "ms\n");
+		Thread t = new Thread(() -> {
+			if (group != null) group.shutdown(drainMs); else shutdown(drainMs);
+			System.exit(0);
+		}, "admin-shutdown");
+		t.start();
+	}
+
+	/**
+	 * GET /admin/config lists every setting; POST /admin/config?key=value&... changes live ones,
+	 * all or nothing; POST /admin/config/reload re-reads the config file. Loopback only.
+	 */
+	private void handleConfigAdmin(Socket clientSocket, OutputStream rawOut, String method, String path, Map<String, String> queryParams) throws IOException {
+		if (!isLoopback(clientSocket)) {
+			respond(rawOut, 403, "Forbidden", "text/plain; charset=utf-8", "Forbidden\n");
+			return;
+		}
+		boolean post = "POST".equalsIgnoreCase(method);
+		java.util.List<String> errors;
+		if ("/admin/config".equals(path) && "GET".equalsIgnoreCase(method)) {
+			errors = java.util.Collections.emptyList();
+		} else if ("/admin/config".equals(path) && post) {
+			errors = config.update(queryParams, Config.Source.ADMIN);
+		} else if ("/admin/config/reload".equals(path) && post) {
+			errors = config.reload();
+		} else if ("/admin/config".equals(path) || "/admin/config/reload".equals(path)) {
+			respond(rawOut, 405, "Method Not Allowed", "text/plain", "Method Not Allowed");
+			return;
+		} else {
+			respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "Not Found\n");
+			return;
+		}
+		if (!errors.isEmpty()) {
+			respond(rawOut, 400, "Bad Request", "text/plain; charset=utf-8", String.join("\n", errors) + "\n");
+			return;
+		}
+		respond(rawOut, 200, "OK", "application/json; charset=utf-8", config.toJson(true) + "\n");
+	}
+
+	/**
+	 * The /metrics body to serve: this server's own, or with shards the merged one unless
+	 * {@code ?shard=} names a single shard. Null for a shard index that does not exist.
+	 */
+	private MetricsAggregator.Snapshot metricsSnapshot(String shardParam) {
+		if (group == null) return metrics.snapshot();
+		if (shardParam == null) return group.snapshot();
+		long index = parseLongOrDefault(shardParam, -1);
+		return index >= 0 && index < group.size() ? group.shard((int)index).metrics.snapshot() : null;
+	}
+
+	/**
+	 * Server-Sent Events: pushes a /metrics snapshot every intervalMs over one chunked response
+	 * until the client goes away, {@code count} events were sent, or the server drains.
+	 */
+	private void streamMetrics(OutputStream rawOut, Map<String, String> queryParams) throws IOException {
+		long interval = Math.max(100, Math.min(60_000, parseLongOrDefault(queryParams.get("intervalMs"), 1000)));
+		long count = parseLongOrDefault(queryParams.get("count"), 0);
+		String shardParam = queryParams.get("shard");
+		if (metricsSnapshot(shardParam) == null) {
+			respond(rawOut, 404, "Not Found", "text/plain; charset=utf-8", "no such shard\n");
+			return;
+		}
+		try (HttpStreams.ChunkedOutputStream body = respondChunked(rawOut, 200, "OK", "text/event-stream; charset=utf-8", SSE_HEADERS, DEFAULT_CHUNK_BYTES)) {
+			body.write(("retry: " + interval + "\n\n").getBytes(StandardCharsets.UTF_8));
+			for (long i = 0; (count <= 0 || i < count) && !draining; i++) {
+				if (i > 0 && !sleepUnlessDraining(interval)) break;
+				body.write(("id: " + i + "\nevent: metrics\ndata: ").getBytes(StandardCharsets.US_ASCII));
+				body.write(metricsSnapshot(shardParam).line);
+				body.write(SSE_EVENT_END);
+				body.flush();
+			}
+		} catch (IOException clientGone) {
+			// the subscriber closed the stream
+		}
+	}
+
+	private boolean sleepUnlessDraining(long millis) {
+		long end = clock.nanos() + millis * 1_000_000L;
+		try {
+			while (!draining) {
+				long left = end - clock.nanos();
+				if (left <= 0) return true;
+				Thread.sleep(Math.min(100, Math.max(1, left / 1_000_000L)));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	private void respondError(Connection conn, HttpStreams.HttpException ex) {
+		try {
+			respond(conn.out(), ex.status, ex.reason, "text/plain; charset=utf-8", ex.getMessage() + "\n");
+		} catch (IOException ignore) {}
+	}
+
+	/**
+	 * Streams the request body through SHA-256 in fixed-size reads. Nothing beyond
+	 * SPOOL_THRESHOLD_BYTES is held on the heap; the rest is spooled to a temp file.
+	 */
+	private void handleUpload(InputStream in, OutputStream rawOut, Map<String, String> headers) throws IOException {
+		InputStream body = HttpStreams.bodyStream(in, headers, MAX_UPLOAD_BYTES);
+		if (body == null) {
+			respond(rawOut, 411, "Length Required", "text/plain; charset=utf-8", "Content-Length or chunked body required\n");
+			return;
+		}
+		if ("100-continue".equalsIgnoreCase(headers.getOrDefault("expect", ""))) {
+			rawOut.write(CONTINUE_100);
+			rawOut.flush();
+		}
+		long start = System.nanoTime();
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (BufferPool.Buffer buffer = buffers.acquire(UPLOAD_BUFFER_BYTES);
+				HttpStreams.SpoolingSink sink = new HttpStreams.SpoolingSink(SPOOL_THRESHOLD_BYTES, SPOOL_DIR)) {
+			byte[] buf = buffer.array;
+			int n;
+			while ((n = body.read(buf)) != -1) {
+				sha256.update(buf, 0, n);
+				sink.write(buf, 0, n);
+			}
+			uploads.incrementAndGet();
+			uploadBytes.addAndGet(sink.size());
+			respond(rawOut, 200, "OK", "application/json; charset=utf-8", "{\"bytes\": " + sink.size()
+					+ ", \"sha256\": \"" + HttpStreams.hex(sha256.digest()) + "\", \"spooled\": " + sink.isSpooled()
+					+ ", \"elapsedMs\": " + ((System.nanoTime() - start) / 1_000_000.0) + "}\n");
 		}
 	}
 
@@ -300,22 +1429,24 @@ public class Server {
 		}
 	}
 
-	private void doWebSocketHandshakeAndServe(Socket clientSocket, Map<String,String> headers, Map<String,String> queryParams) throws IOException {
+	private void doWebSocketHandshakeAndServe(Connection conn, Map<String,String> headers, Map<String,String> queryParams) throws IOException {
 		String key = headers.get("sec-websocket-key");
 		if (key == null) return;
 		String accept = computeWebSocketAccept(key);
-		OutputStream rawOut = clientSocket.getOutputStream();
+		OutputStream rawOut = conn.out();
 		String response = "HTTP/1.1 101 Switching Protocols\r\n" +
 				"Upgrade: websocket\r\n" +
 				"Connection: Upgrade\r\n" +
 				"Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
 		rawOut.write(response.getBytes(StandardCharsets.UTF_8));
 		rawOut.flush();
+		// Sessions idle between messages; requestTimeoutMillis only bounds the HTTP exchange
+		conn.socket.setSoTimeout(0);
 
 		String room = queryParams.getOrDefault("room", "default");
 		Client client = null;
 		try {
-			client = new Client(clientSocket);
+			client = new Client(this, conn);
 			rooms.computeIfAbsent(room, r -> new CopyOnWriteArraySet<>()).add(client);
 			sendText(client, "{\"type\":\"join\",\"room\":\""+room+"\"}");
 			broadcast(room, client, "{\"type\":\"peer-joined\"}");
@@ -325,52 +1456,58 @@ public class Server {
 				client.open = false;
 				CopyOnWriteArraySet<Client> set = rooms.get(room);
 				if (set != null) set.remove(client);
-				try { clientSocket.close(); } catch (IOException ignore) {}
+				conn.close();
 			}
 		}
 	}
 
 	private void readWebSocketLoop(Client client, String room) throws IOException {
-		InputStream in = client.socket.getInputStream();
-		byte[] header = new byte[2];
-		while (client.open) {
-			int r = readFully(in, header, 0, 2);
-			if (r < 2) break;
-			int b0 = header[0] & 0xFF;
-			int b1 = header[1] & 0xFF;
-			boolean fin = (b0 & 0x80) != 0;
-			int opcode = b0 & 0x0F;
-			boolean masked = (b1 & 0x80) != 0;
-			long payloadLen = b1 & 0x7F;
-			if (payloadLen == 126) {
-				byte[] ext = new byte[2];
-				readFully(in, ext, 0, 2);
-				payloadLen = ((ext[0] & 0xFF) << 8) | (ext[1] & 0xFF);
-			} else if (payloadLen == 127) {
-				byte[] ext = new byte[8];
-				readFully(in, ext, 0, 8);
-				payloadLen = 0;
-				for (int i = 0; i < 8; i++) payloadLen = (payloadLen << 8) | (ext[i] & 0xFF);
-			}
-			byte[] mask = null;
-			if (masked) {
-				mask = new byte[4];
-				readFully(in, mask, 0, 4);
-			}
-			byte[] payload = new byte[(int)payloadLen];
-			if (payloadLen > 0) readFully(in, payload, 0, (int)payloadLen);
-			if (masked && payloadLen > 0) {
-				for (int i = 0; i < payload.length; i++) payload[i] = (byte)(payload[i] ^ mask[i % 4]);
-			}
-			if (opcode == 0x8) { // close
-				break;
-			} else if (opcode == 0x1) { // text
-				String text = new String(payload, StandardCharsets.UTF_8);
-				broadcast(room, client, text);
-			} else if (opcode == 0x9) { // ping
-				sendControl(client, 0xA, payload);
-			}
-			if (!fin) {
+		InputStream in = client.in;
+		// header[0..1] fixed header, [2..9] extended length, [10..13] masking key
+		try (BufferPool.Buffer scratch = buffers.acquire(16)) {
+			byte[] header = scratch.array;
+			while (client.open) {
+				int r = readFully(in, header, 0, 2);
+				if (r < 2) break;
+				int b0 = header[0] & 0xFF;
+				int b1 = header[1] & 0xFF;
+				boolean fin = (b0 & 0x80) != 0;
+				int opcode = b0 & 0x0F;
+				boolean masked = (b1 & 0x80) != 0;
+				long payloadLen = b1 & 0x7F;
+				if (payloadLen == 126) {
+					readFully(in, header, 2, 2);
+					payloadLen = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+				} else if (payloadLen == 127) {
+					readFully(in, header, 2, 8);
+					payloadLen = 0;
+					for (int i = 0; i < 8; i++) payloadLen = (payloadLen << 8) | (header[2 + i] & 0xFF);
+				}
+				if (masked) readFully(in, header, 10, 4);
+				// A 64-bit length is the client's to choose: negative or huge must not reach acquire
+				if (payloadLen < 0 || payloadLen > MAX_WS_FRAME_BYTES) {
+					byte[] tooBig = closePayload(1009, "message too big");
+					sendFrame(client, 0x8, tooBig, tooBig.length);
+					break;
+				}
+				int len = (int)payloadLen;
+				try (BufferPool.Buffer frame = buffers.acquire(len)) {
+					byte[] payload = frame.array;
+					if (len > 0) readFully(in, payload, 0, len);
+					if (masked) {
+						for (int i = 0; i < len; i++) payload[i] = (byte)(payload[i] ^ header[10 + (i & 3)]);
+					}
+					if (opcode == 0x8) { // close: echo unless we started the handshake
+						if (!draining) sendFrame(client, 0x8, payload, len);
+						break;
+					} else if (opcode == 0x1) { // text: relayed as-is, no decode/re-encode per peer
+						broadcast(room, client, payload, len);
+					} else if (opcode == 0x9) { // ping
+						sendFrame(client, 0xA, payload, len);
+					}
+				}
+				if (!fin) {
+				}
 			}
 		}
 	}
@@ -386,76 +1523,136 @@ public class Server {
 	}
 
 	private void broadcast(String room, Client sender, String message) {
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+		broadcast(room, sender, payload, payload.length);
+	}
+
+	/** Encodes the text frame once into a pooled buffer and writes it to every other peer. */
+	private void broadcast(String room, Client sender, byte[] payload, int len) {
 		CopyOnWriteArraySet<Client> set = rooms.get(room);
 		if (set == null) return;
-		for (Client c : set) {
-			if (c != sender && c.open) {
-				sendText(c, message);
+		ServerEvents.FrameRelay event = new ServerEvents.FrameRelay();
+		event.begin();
+		int recipients = 0;
+		try (BufferPool.Buffer frame = buffers.acquire(len + 10)) {
+			int frameLen = encodeFrame(frame.array, 0x1, payload, len);
+			for (Client c : set) {
+				if (c != sender && c.open) {
+					writeFrame(c, frame.array, frameLen);
+					recipients++;
+				}
 			}
 		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.room = room;
+			event.payloadBytes = len;
+			event.recipients = recipients;
+			event.commit();
+		}
 	}
 
-	private synchronized void sendText(Client client, String text) {
-		try {
-			byte[] payload = text.getBytes(StandardCharsets.UTF_8);
-			OutputStream out = client.out;
-			int b0 = 0x80 | 0x1; // FIN + text
-			out.write(b0);
-			if (payload.length <= 125) {
-				out.write(payload.length);
-			} else if (payload.length <= 0xFFFF) {
-				out.write(126);
-				out.write((payload.length >>> 8) & 0xFF);
-				out.write(payload.length & 0xFF);
-			} else {
-				out.write(127);
-				long len = payload.length;
-				for (int i = 7; i >= 0; i--) out.write((int)(len >>> (8 * i)) & 0xFF);
-			}
-			out.write(payload);
-			out.flush();
-		} catch (IOException ignore) {}
+	/** Unmasked, unfragmented server frame: FIN + opcode, length, payload. Returns the frame size. */
+	private static int encodeFrame(byte[] frame, int opcode, byte[] payload, int len) {
+		int pos = 0;
+		frame[pos++] = (byte)(0x80 | opcode);
+		if (len <= 125) {
+			frame[pos++] = (byte)len;
+		} else if (len <= 0xFFFF) {
+			frame[pos++] = (byte)126;
+			frame[pos++] = (byte)(len >>> 8);
+			frame[pos++] = (byte)len;
+		} else {
+			frame[pos++] = (byte)127;
+			for (int i = 7; i >= 0; i--) frame[pos++] = (byte)((long)len >>> (8 * i));
+		}
+		System.arraycopy(payload, 0, frame, pos, len);
+		return pos + len;
 	}
 
-	private synchronized void sendControl(Client client, int opcode, byte[] payload) {
-		try {
-			OutputStream out = client.out;
-			out.write(0x80 | opcode);
-			int len = payload == null ? 0 : payload.length;
-			out.write(len);
-			if (len > 0) out.write(payload);
-			out.flush();
-		} catch (IOException ignore) {}
+	/**
+	 * Writes one whole frame to {@code client}. Locks the recipient only: relays from any shard's
+	 * workers to the same peer do not interleave, and a slow peer holds up only writes to itself.
+	 */
+	private static void writeFrame(Client client, byte[] frame, int len) {
+		synchronized (client.writeLock) {
+			try {
+				client.out.write(frame, 0, len);
+				client.out.flush();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	private void sendFrame(Client client, int opcode, byte[] payload, int len) {
+		try (BufferPool.Buffer frame = buffers.acquire(len + 10)) {
+			writeFrame(client, frame.array, encodeFrame(frame.array, opcode, payload, len));
+		}
+	}
+
+	private void sendText(Client client, String text) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		sendFrame(client, 0x1, payload, payload.length);
+	}
+
+	private void sendControl(Client client, int opcode, byte[] payload) {
+		sendFrame(client, opcode, payload, payload == null ? 0 : payload.length);
 	}
 
     public static void main(String[] args) {
-		int port = 8013;
-		int poolSize = 8;
-		int queueCapacity = 1024;
-		Server server = new Server(poolSize, queueCapacity);
+		Config config = settings();
+		try {
+			config.load(args, System.getenv());
+		} catch (IllegalArgumentException ex) {
+			System.err.println("[ThreadPool] invalid configuration:\n" + ex.getMessage());
+			System.exit(2);
+		}
+		config.watch(2000);
+		int port = config.setting("port").asInt();
+		int acceptorCount = config.setting("acceptors").asInt();
+		int computeParallelism = config.setting("computeParallelism").asInt();
+		int computeMaxSplits = config.setting("computeMaxSplits").asInt();
+		int tlsPort = config.setting("tlsPort").asInt();
+		String keystorePath = config.setting("keystore").asText();
+		// Same variable and default as scripts/gen_keystore.sh; kept out of Config so /admin/config never shows it
+		String passwordEnv = System.getenv("KEYSTORE_PASSWORD");
+		char[] keystorePassword = (passwordEnv != null ? passwordEnv : "changeit").toCharArray();
+		int tlsSessionCacheSize = config.setting("tlsSessionCacheSize").asInt();
+		int tlsSessionTimeoutSeconds = config.setting("tlsSessionTimeoutSeconds").asInt();
+		SocketOptions socketOptions = SocketOptions.from(config);
+		// Workers keep a few buffers per size class; the shared free lists hold up to 4 MiB per class
+		BufferPool buffers = new BufferPool(4, 4 * 1024 * 1024, false);
+		// 64K-entry ring, 64 MiB per file, 5 rotated files
+		AccessLog accessLog = new AccessLog(new java.io.File("../.run_logs/ThreadPool_access.log"), 64 * 1024, 64L * 1024 * 1024, 5, Clock.shared());
+		// traceSampleRate of requests (1% by default), plus any whose traceparent is flagged sampled
+		Tracer tracer = new Tracer(new java.io.File("../.run_logs/ThreadPool_traces.jsonl"), "thread-pool", config.setting("traceSampleRate").asDouble(), 4096, 64L * 1024 * 1024);
+		ComputeEngine compute = new ComputeEngine(computeParallelism, computeMaxSplits);
+		// With shards, each gets its share of poolSize and acceptors and binds its own listeners
+		Shards shards = config.setting("shards").asInt() > 0 ? new Shards(config, compute, buffers, accessLog, tracer) : null;
+		Server server = shards == null ? new Server(config, compute, buffers, accessLog, tracer) : null;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			long drain = config.setting("drainMillis").asLong();
+			if (shards != null) shards.shutdown(drain); else server.shutdown(drain);
+		}, "shutdown-hook"));
 
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
-			System.out.println("[ThreadPool] Server is listening on port " + port);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-				int start = Math.abs(server.rrIndex.getAndIncrement()) % server.numWorkers;
-				boolean accepted = false;
-				for (int k = 0; k < server.numWorkers; k++) {
-					if (server.workers[(start + k) % server.numWorkers].offer(clientSocket)) { accepted = true; break; }
-				}
-				if (!accepted) {
-					server.rejectedRequests.incrementAndGet();
-					try {
-						OutputStream out = clientSocket.getOutputStream();
-						String resp = "HTTP/1.1 503 Service Unavailable\r\nContent-Type: text/plain\r\nContent-Length: 12\r\nConnection: close\r\n\r\nServer busy";
-						out.write(resp.getBytes(StandardCharsets.UTF_8));
-						out.flush();
-					} catch (IOException ignore) {} finally { try { clientSocket.close(); } catch (IOException ignore) {} }
+			if (shards != null) shards.startAcceptors(port, acceptorCount, socketOptions, null); else server.startAcceptors(port, acceptorCount, socketOptions, null);
+			System.out.println("[ThreadPool] Server is listening on port " + port + " (" + acceptorCount + " acceptors"
+					+ (shards != null ? " across " + shards.size() + " shards" : "") + ")");
+			if (new java.io.File(keystorePath).isFile()) {
+				try {
+					SSLContext tls = loadTlsContext(keystorePath, keystorePassword, tlsSessionCacheSize, tlsSessionTimeoutSeconds);
+					if (shards != null) shards.startAcceptors(tlsPort, acceptorCount, socketOptions, tls); else server.startAcceptors(tlsPort, acceptorCount, socketOptions, tls);
+					System.out.println("[ThreadPool] HTTPS/WSS listening on port " + tlsPort);
+				} catch (Exception ex) {
+					System.out.println("[ThreadPool] TLS disabled: " + ex);
 				}
-            }
+			} else {
+				System.out.println("[ThreadPool] TLS disabled: no keystore at " + keystorePath + " (run scripts/gen_keystore.sh)");
+			}
+			if (shards != null) shards.awaitAcceptors(); else server.awaitAcceptors();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } catch (InterruptedException ignore) {
         }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR events for the thread-pool server's connection lifecycle and scheduling decisions, so a
+ * recording lines accepts, dispatches, steals and rejections up against GC, safepoints and
+ * lock stalls on the same timeline. Enable them with {@code threadmaster.jfc}.
+ *
+ * Callers follow the usual pattern: build the event, and fill and commit it only when
+ * {@code shouldCommit()} says the event is enabled and over its threshold. With no recording
+ * running that is one check and the event object is scalar-replaced away.
+ */
+final class ServerEvents {
+	private ServerEvents() {}
+
+	@Name("threadmaster.Accept")
+	@Label("Connection Accepted")
+	@Description("An acceptor took a connection off the listen queue")
+	@Category({ "Thread Master", "Thread Pool" })
+	@StackTrace(false)
+	static final class Accept extends Event {
+		@Label("Acceptor") String acceptor;
+		@Label("Local Port") int port;
+		@Label("TLS") boolean tls;
+	}
+
+	@Name("threadmaster.Dispatch")
+	@Label("Dispatch To Worker")
+	@Description("An acceptor placed a connection in a worker deque; duration covers the offers tried")
+	@Category({ "Thread Master", "Thread Pool" })
+	@StackTrace(false)
+	static final class Dispatch extends Event {
+		@Label("Acceptor") String acceptor;
+		@Label("Worker") String worker;
+		@Label("Queue Depth") @Description("Depth of the chosen deque after the offer") int queueDepth;
+		@Label("Offers") @Description("Deques tried, the successful one included") int offers;
+		@Label("Spilled") @Description("No worker in the acceptor's own slice had room") boolean spilled;
+	}
+
+	@Name("threadmaster.Steal")
+	@Label("Steal Attempt")
+	@Description("An idle worker scanned the other deques for work")
+	@Category({ "Thread Master", "Thread Pool" })
+	@StackTrace(false)
+	static final class Steal extends Event {
+		@Label("Thief") String thief;
+		@Label("Victim") @Description("Worker the connection was taken from; null if none had work") String victim;
+		@Label("Victim Queue Depth") @Description("Depth of the victim's deque after the steal") int victimQueueDepth;
+		@Label("Success") boolean success;
+	}
+
+	@Name("threadmaster.Reject")
+	@Label("Connection Rejected")
+	@Description("A connection was answered with 503 instead of being served")
+	@Category({ "Thread Master", "Thread Pool" })
+	@StackTrace(false)
+	static final class Reject extends Event {
+		@Label("Acceptor") String acceptor;
+		@Label("Reason") String reason;
+		@Label("Queued Connections") @Description("Sum of all worker deque depths") int queuedTotal;
+	}
+
+	@Name("threadmaster.Request")
+	@Label("Request")
+	@Description("One connection, or one HTTP/2 stream, served by a worker from pickup to close")
+	@Category({ "Thread Master", "Thread Pool" })
+	@StackTrace(false)
+	static final class Request extends Event {
+		@Label("Worker") String worker;
+		@Label("Method") String method;
+		@Label("Route") String route;
+		@Label("Status") int status;
+		@Label("Bytes Sent") @DataAmount(DataAmount.BYTES) long bytes;
+		@Label("Queue Wait") @Timespan(Timespan.NANOSECONDS) long queueWait;
+		@Label("Write Time") @Description("Time blocked in socket writes") @Timespan(Timespan.NANOSECONDS) long writeTime;
+		@Label("TLS") boolean tls;
+	}
+
+	@Name("threadmaster.FrameRelay")
+	@Label("WebSocket Frame Relay")
+	@Description("A text frame encoded once and written to the other peers in a room")
+	@Category({ "Thread Master", "WebSocket" })
+	@StackTrace(false)
+	static final class FrameRelay extends Event {
+		@Label("Room") String room;
+		@Label("Payload") @DataAmount(DataAmount.BYTES) int payloadBytes;
+		@Label("Recipients") int recipients;
+	}
+}
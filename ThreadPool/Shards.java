@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+
+/**
+ * Shard-per-core mode: several independent {@link Server}s on one port. Each shard has its own
+ * SO_REUSEPORT listener(s), acceptors, workers, deques, rejector, padded counters, latency ring
+ * and metrics thread, so a request never touches another shard's cache lines, and stealing
+ * stays among the shard's own workers. The kernel spreads new connections across the
+ * listeners. Without SO_REUSEPORT every shard accepts from one shared listener instead.
+ *
+ * With pinShards the shard's acceptors and workers pin themselves to a CPU set from
+ * {@link CpuAffinity#plan}, one NUMA node per shard where there are enough shards.
+ *
+ * Left shared: the compute engine, buffer pool, access log and tracer (each already built for
+ * concurrent use), the accept rate limit, and the WebSocket rooms, since two peers of a room
+ * can be accepted by different shards. /metrics merges every shard into one body on its own
+ * thread; /metrics?shard=N serves shard N's own snapshot.
+ */
+final class Shards {
+	/** Sums over the shards for the merged /metrics, filled by {@link Server#addTotals}. */
+	static final class Totals {
+		long requests;
+		long latencyNanos;
+		long activeConnections;
+		long activeWorkers;
+		long queueDepthSum;
+		long queueDepthMax;
+		long accepted;
+		long rejected;
+		long rateLimited;
+		long uploads;
+		long uploadBytes;
+		long metricStreams;
+		long http2Connections;
+		long http2Streams;
+		long http2RefusedStreams;
+	}
+
+	final ConcurrentHashMap<String, CopyOnWriteArraySet<Server.Client>> rooms = new ConcurrentHashMap<>();
+	final RateLimiter acceptLimiter = new RateLimiter();
+	private final Config config;
+	private final Server[] shards;
+	private final ComputeEngine compute;
+	private final AccessLog accessLog;
+	private final Tracer tracer;
+	private final MetricsAggregator metrics;
+	private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+	private final CountDownLatch shutdownComplete = new CountDownLatch(1);
+	private volatile boolean draining = false;
+
+	/** Starts config's {@code shards} shards (at most one per worker) with poolSize split between them. */
+	Shards(Config config, ComputeEngine compute, BufferPool buffers, AccessLog accessLog, Tracer tracer) {
+		this.config = config;
+		this.compute = compute;
+		this.accessLog = accessLog;
+		this.tracer = tracer;
+		int poolSize = config.setting("poolSize").asInt();
+		int count = Math.min(config.setting("shards").asInt(), poolSize);
+		String[] cpus = new String[count];
+		if (config.setting("pinShards").asInt() == 1) {
+			if (CpuAffinity.supported()) {
+				cpus = CpuAffinity.plan(count);
+			} else {
+				System.out.println("[ThreadPool] pinShards ignored: needs Linux with /proc/thread-self and taskset");
+			}
+		}
+		this.shards = new Server[count];
+		for (int i = 0; i < count; i++) {
+			int workers = (i + 1) * poolSize / count - i * poolSize / count;
+			shards[i] = new Server(config, compute, buffers, accessLog, tracer, this, i, workers, cpus[i]);
+			System.out.println("[ThreadPool] shard " + i + ": " + workers + " workers"
+					+ (cpus[i] == null ? ", unpinned" : " on CPUs " + cpus[i] + nodeSuffix(cpus[i])));
+		}
+		this.metrics = new MetricsAggregator(config.setting("metricsIntervalMillis"), this::mergedJson)
+				.counter("requests", sum(Server::requestCount))
+				.counter("accepted", sum(Server::acceptedConnections))
+				.counter("rejected", sum(Server::rejectedCount))
+				.counter("rateLimited", sum(Server::rateLimitedCount))
+				.counter("uploadBytes", sum(Server::uploadByteCount))
+				.counter("http2Streams", sum(Server::http2StreamCount));
+		metrics.setName("shards-metrics");
+		metrics.publish();
+		metrics.start();
+	}
+
+	private static String nodeSuffix(String cpus) {
+		int node = CpuAffinity.nodeOf(cpus);
+		return node < 0 ? "" : " (node " + node + ")";
+	}
+
+	private java.util.function.LongSupplier sum(ToLongFunction<Server> counter) {
+		return () -> {
+			long n = 0;
+			for (Server s : shards) n += counter.applyAsLong(s);
+			return n;
+		};
+	}
+
+	int size() { return shards.length; }
+
+	Server shard(int index) { return shards[index]; }
+
+	/** The merged /metrics body, at most one metricsIntervalMillis old. */
+	MetricsAggregator.Snapshot snapshot() { return metrics.snapshot(); }
+
+	/**
+	 * Binds a listener per shard on {@code port} and splits {@code count} acceptors between the
+	 * shards, at least one each. Without SO_REUSEPORT the first listener is shared by all.
+	 */
+	void startAcceptors(int port, int count, Server.SocketOptions options, javax.net.ssl.SSLContext tls) throws IOException {
+		ServerSocket first = Server.bindListener(port, options);
+		boolean reusePort = Server.supportsReusePort(first);
+		for (int i = 0; i < shards.length; i++) {
+			ServerSocket listener = (i == 0 || !reusePort) ? first : Server.bindListener(port, options);
+			int acceptors = Math.max(1, (i + 1) * count / shards.length - i * count / shards.length);
+			shards[i].startAcceptors(listener, port, acceptors, options, tls);
+		}
+	}
+
+	void awaitAcceptors() throws InterruptedException {
+		for (Server s : shards) s.awaitAcceptors();
+	}
+
+	/**
+	 * Drains every shard at once, each to the same deadline, then closes what they share.
+	 * Idempotent like {@link Server#shutdown}.
+	 */
+	void shutdown(long drainMillis) {
+		if (!shutdownStarted.compareAndSet(false, true)) {
+			try { shutdownComplete.await(drainMillis + 3000, TimeUnit.MILLISECONDS); } catch (InterruptedException ignore) {}
+			return;
+		}
+		draining = true;
+		Thread[] drains = new Thread[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			Server s = shards[i];
+			drains[i] = new Thread(() -> s.shutdown(drainMillis), "shard" + i + "-drain");
+			drains[i].start();
+		}
+		for (Thread t : drains) {
+			try { t.join(); } catch (InterruptedException ignore) {}
+		}
+		metrics.close();
+		compute.shutdown();
+		accessLog.close();
+		tracer.close();
+		System.out.println("[ThreadPool] All " + shards.length + " shards stopped");
+		shutdownComplete.countDown();
+	}
+
+	/** The merged /metrics body; built by this group's {@link MetricsAggregator} thread only. */
+	private String mergedJson() {
+		Totals t = new Totals();
+		StringBuilder per = new StringBuilder();
+		long[][] rings = new long[shards.length][];
+		int ringSlots = 0;
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].addTotals(t);
+			rings[i] = shards[i].recentLatencies();
+			ringSlots += rings[i].length;
+			if (per.length() > 0) per.append(",\n");
+			per.append("    ").append(shards[i].shardJson());
+		}
+		long[] latencies = new long[ringSlots];
+		int pos = 0;
+		for (long[] ring : rings) {
+			System.arraycopy(ring, 0, latencies, pos, ring.length);
+			pos += ring.length;
+		}
+		long avgNs = t.requests > 0 ? t.latencyNanos / t.requests : 0;
+		return "{\n" +
+				"  \"model\": \"thread-pool (RR + stealing)\",\n" +
+				"  \"shards\": " + shards.length + ",\n" +
+				"  \"activeConnections\": " + t.activeConnections + ",\n" +
+				"  \"totalRequests\": " + t.requests + ",\n" +
+				"  \"avgLatencyMs\": " + (avgNs / 1_000_000.0) + ",\n" +
+				"  \"p95LatencyMs\": " + (Server.p95(latencies) / 1_000_000.0) + ",\n" +
+				"  \"queueDepthSum\": " + t.queueDepthSum + ",\n" +
+				"  \"queueDepthMax\": " + t.queueDepthMax + ",\n" +
+				"  \"queueCapacityPerWorker\": " + config.setting("queueCapacity").asInt() + ",\n" +
+				"  \"activeWorkers\": " + t.activeWorkers + ",\n" +
+				"  \"acceptedConnections\": " + t.accepted + ",\n" +
+				"  \"rejectedRequests\": " + t.rejected + ",\n" +
+				"  \"rateLimited\": " + t.rateLimited + ",\n" +
+				"  \"uploads\": " + t.uploads + ",\n" +
+				"  \"uploadBytes\": " + t.uploadBytes + ",\n" +
+				"  \"metricStreams\": " + t.metricStreams + ",\n" +
+				"  \"http2\": {\"connections\": " + t.http2Connections + ", \"streams\": " + t.http2Streams
+						+ ", \"refusedStreams\": " + t.http2RefusedStreams + "},\n" +
+				"  \"perShard\": [\n" + per + "\n  ],\n" +
+				shards[0].sharedJson() +
+				"  \"rates\": " + metrics.ratesJson() + ",\n" +
+				"  \"snapshot\": " + metrics.infoJson() + ",\n" +
+				"  \"config\": " + config.toJson(false) + ",\n" +
+				"  \"draining\": " + draining + "\n" +
+				"}\n";
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, total and maximum of one kind of duration, plus the last {@link #WINDOW} samples for
+ * the p95. Recording is a few uncontended atomics; percentiles are only computed when the
+ * metrics snapshot is rebuilt.
+ */
+final class TimingStats {
+	static final int WINDOW = 1024;
+
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong totalNanos = new AtomicLong(0);
+	private final AtomicLong maxNanos = new AtomicLong(0);
+	private final long[] recent = new long[WINDOW];
+	private final AtomicInteger writeIndex = new AtomicInteger(0);
+
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {}
+		recent[writeIndex.getAndIncrement() & (WINDOW - 1)] = nanos;
+	}
+
+	/** {"count": n, "avg": ms, "p95": ms, "max": ms}; p95 over the recent window only. */
+	String toJson() {
+		long n = count.get();
+		int filled = (int)Math.min(n, WINDOW);
+		long p95 = 0;
+		if (filled > 0) {
+			long[] snapshot = Arrays.copyOf(recent, filled);
+			Arrays.sort(snapshot);
+			p95 = snapshot[Math.max(0, (int)Math.ceil(filled * 0.95) - 1)];
+		}
+		return "{\"count\": " + n
+				+ ", \"avg\": " + millis(n > 0 ? totalNanos.get() / n : 0)
+				+ ", \"p95\": " + millis(p95)
+				+ ", \"max\": " + millis(maxNanos.get()) + "}";
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000 / 1000.0;
+	}
+}
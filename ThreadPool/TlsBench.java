@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Handshake rate and bulk throughput of the HTTPS listener against plaintext /io.
+ *
+ *   cd ThreadPool && javac TlsBench.java && java TlsBench [host] [httpPort] [httpsPort] [threads] [seconds]
+ *
+ * "full" gives every connection a fresh client context (no session to resume), "resumed"
+ * shares one context so the client offers its cached session / ticket.
+ */
+public class TlsBench {
+	private final String host;
+	private final int threads;
+	private final long durationNanos;
+
+	TlsBench(String host, int threads, int seconds) {
+		this.host = host;
+		this.threads = threads;
+		this.durationNanos = seconds * 1_000_000_000L;
+	}
+
+	/** Test client only: trusts the self-signed server certificate. */
+	static SSLContext trustAllContext() throws Exception {
+		TrustManager[] trustAll = { new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+			public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+		} };
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(null, trustAll, null);
+		return ctx;
+	}
+
+	interface Task { void run() throws Exception; }
+
+	/** Runs the task in a closed loop on every thread and returns operations per second. */
+	private double closedLoop(Task task) throws InterruptedException {
+		AtomicLong ops = new AtomicLong();
+		AtomicLong errors = new AtomicLong();
+		long end = System.nanoTime() + durationNanos;
+		Thread[] ts = new Thread[threads];
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(() -> {
+				while (System.nanoTime() - end < 0) {
+					try { task.run(); ops.incrementAndGet(); } catch (Exception ex) { errors.incrementAndGet(); }
+				}
+			});
+			ts[i].start();
+		}
+		for (Thread t : ts) t.join();
+		double secs = (System.nanoTime() - start) / 1e9;
+		if (errors.get() > 0) System.out.println("  errors: " + errors.get());
+		return ops.get() / secs;
+	}
+
+	private void handshake(SSLContext ctx, int port) throws IOException {
+		SSLSocketFactory f = ctx.getSocketFactory();
+		try (SSLSocket s = (SSLSocket) f.createSocket(host, port)) {
+			s.startHandshake();
+		}
+	}
+
+	/** GET /io and drain the body; returns bytes read. */
+	private static long fetch(Socket s, String host, long bytes) throws IOException {
+		OutputStream out = s.getOutputStream();
+		out.write(("GET /io?bytes=" + bytes + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		InputStream in = s.getInputStream();
+		byte[] buf = new byte[64 * 1024];
+		long total = 0;
+		int n;
+		while ((n = in.read(buf)) != -1) total += n;
+		return total;
+	}
+
+	private double throughputMBps(Task openAndFetch, AtomicLong counter) throws InterruptedException {
+		long before = counter.get();
+		long start = System.nanoTime();
+		closedLoop(openAndFetch);
+		double secs = (System.nanoTime() - start) / 1e9;
+		return (counter.get() - before) / secs / (1024 * 1024);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int httpPort = args.length > 1 ? Integer.parseInt(args[1]) : 8013;
+		int httpsPort = args.length > 2 ? Integer.parseInt(args[2]) : 8443;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+		long bulkBytes = 16L * 1024 * 1024;
+		TlsBench bench = new TlsBench(host, threads, seconds);
+
+		System.out.println("threads=" + threads + " duration=" + seconds + "s per phase");
+		double full = bench.closedLoop(() -> bench.handshake(trustAllContext(), httpsPort));
+		System.out.printf("handshakes/s full     : %.1f%n", full);
+		SSLContext shared = trustAllContext();
+		bench.handshake(shared, httpsPort); // prime the client session cache
+		double resumed = bench.closedLoop(() -> bench.handshake(shared, httpsPort));
+		System.out.printf("handshakes/s resumed  : %.1f (%.2fx)%n", resumed, resumed / full);
+
+		AtomicLong plainBytes = new AtomicLong();
+		double plain = bench.throughputMBps(() -> {
+			try (Socket s = new Socket(host, httpPort)) { plainBytes.addAndGet(fetch(s, host, bulkBytes)); }
+		}, plainBytes);
+		System.out.printf("bulk /io plaintext    : %.1f MB/s%n", plain);
+		AtomicLong tlsBytes = new AtomicLong();
+		double tls = bench.throughputMBps(() -> {
+			try (SSLSocket s = (SSLSocket) shared.getSocketFactory().createSocket(host, httpsPort)) { tlsBytes.addAndGet(fetch(s, host, bulkBytes)); }
+		}, tlsBytes);
+		System.out.printf("bulk /io https        : %.1f MB/s (%.2fx of plaintext)%n", tls, tls / plain);
+	}
+}
@@ -0,0 +1,270 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over any ByteChannel, driven by an SSLEngine.
+ *
+ * Every method only makes the progress the transport allows: with a non-blocking transport
+ * read/write return 0 when the transport would block (retry when the selector fires), with a
+ * blocking transport they behave like a plain socket. The handshake runs lazily on the first
+ * read or write, so it happens on the worker thread rather than the acceptor.
+ *
+ * The three record buffers are borrowed from the BufferPool and handed back on close().
+ *
+ * One thread may read while others write, as a WSS session does: its reader answers
+ * post-handshake messages while relays from other workers write frames. The outbound side
+ * (netOut, wrap, flush) is guarded by one lock; the inbound side belongs to the reader.
+ */
+final class TlsChannel implements ByteChannel {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final ByteChannel transport;
+	private final SSLEngine engine;
+	private final BufferPool pool;
+	private final BufferPool.Buffer[] leases = new BufferPool.Buffer[3];
+	private ByteBuffer netIn;   // write mode: ciphertext read from the transport
+	private ByteBuffer appIn;   // read mode: plaintext not yet handed to the caller
+	private ByteBuffer netOut;  // read mode: ciphertext not yet written to the transport
+	private final Object outbound = new Object();
+	private volatile boolean handshaken = false;
+	private boolean inboundClosed = false;
+	private volatile boolean open = true;
+
+	private static final int NET_IN = 0;
+	private static final int APP_IN = 1;
+	private static final int NET_OUT = 2;
+
+	TlsChannel(ByteChannel transport, SSLEngine engine, BufferPool pool) {
+		this.transport = transport;
+		this.engine = engine;
+		this.pool = pool;
+		int packet = engine.getSession().getPacketBufferSize();
+		this.netIn = lease(NET_IN, packet);
+		this.appIn = lease(APP_IN, engine.getSession().getApplicationBufferSize());
+		this.appIn.flip();
+		this.netOut = lease(NET_OUT, packet);
+		this.netOut.flip();
+	}
+
+	/** Borrows a buffer for {@code slot}; the caller releases the previous lease, if any. */
+	private ByteBuffer lease(int slot, int size) {
+		leases[slot] = pool.acquire(size);
+		return ByteBuffer.wrap(leases[slot].array);
+	}
+
+	/**
+	 * Blocking transport over a plain socket's streams, for the thread-per-task servers.
+	 * Reads and writes go straight through the heap buffers' backing arrays, one syscall each.
+	 */
+	static ByteChannel streamTransport(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		return new ByteChannel() {
+			@Override public int read(ByteBuffer dst) throws IOException {
+				int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+				if (n > 0) dst.position(dst.position() + n);
+				return n;
+			}
+			@Override public int write(ByteBuffer src) throws IOException {
+				int n = src.remaining();
+				out.write(src.array(), src.arrayOffset() + src.position(), n);
+				src.position(src.limit());
+				return n;
+			}
+			@Override public boolean isOpen() { return !socket.isClosed(); }
+			@Override public void close() throws IOException { socket.close(); }
+		};
+	}
+
+	SSLEngine engine() { return engine; }
+
+	/**
+	 * Advances the handshake as far as the transport allows.
+	 * Returns true once application data can flow, false if the transport would block.
+	 */
+	boolean handshake() throws IOException {
+		while (true) {
+			if (!flush()) return false;
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			switch (hs) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					handshaken = true;
+					return true;
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					synchronized (outbound) { wrap(EMPTY); }
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN: {
+					int r = unwrap();
+					if (r < 0) throw new EOFException("connection closed during TLS handshake");
+					if (r == 0) return false;
+					break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) throw new IOException("channel closed");
+		if (!handshaken && !handshake()) return 0;
+		while (!appIn.hasRemaining()) {
+			if (inboundClosed) return -1;
+			int r = unwrap();
+			if (r < 0) {
+				if (!appIn.hasRemaining()) return -1;
+				break;
+			}
+			if (r == 0) return 0;
+			// Post-handshake messages (TLS 1.3 tickets, key updates) may need a reply
+			if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING && !handshake()) return 0;
+		}
+		int n = Math.min(dst.remaining(), appIn.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		return n;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) throw new IOException("channel closed");
+		if (!handshaken && !handshake()) return 0;
+		synchronized (outbound) {
+			int consumed = 0;
+			while (src.hasRemaining()) {
+				if (!flush()) break;
+				SSLEngineResult r = wrap(src);
+				if (r.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("TLS engine closed");
+				consumed += r.bytesConsumed();
+			}
+			flush();
+			return consumed;
+		}
+	}
+
+	/** Writes any ciphertext still buffered; false if the transport would block. */
+	boolean flush() throws IOException {
+		synchronized (outbound) {
+			while (netOut.hasRemaining()) {
+				if (transport.write(netOut) == 0) return false;
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public boolean isOpen() { return open; }
+
+	/** Sends close_notify (best effort) and closes the transport. */
+	@Override
+	public void close() throws IOException {
+		if (!open) return;
+		open = false;
+		try {
+			synchronized (outbound) {
+				engine.closeOutbound();
+				while (!engine.isOutboundDone()) {
+					wrap(EMPTY);
+					if (!flush()) break;
+				}
+				flush();
+			}
+		} catch (IOException ignore) {
+		} finally {
+			try {
+				transport.close();
+			} finally {
+				for (int i = 0; i < leases.length; i++) {
+					if (leases[i] != null) { leases[i].close(); leases[i] = null; }
+				}
+			}
+		}
+	}
+
+	/** Returns 1 after the engine made progress, 0 if the transport would block, -1 on EOF. */
+	private int unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			appIn.compact();
+			SSLEngineResult r;
+			try {
+				r = engine.unwrap(netIn, appIn);
+			} finally {
+				appIn.flip();
+				netIn.compact();
+			}
+			switch (r.getStatus()) {
+				case OK:
+					if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) runTasks();
+					return 1;
+				case CLOSED:
+					inboundClosed = true;
+					return -1;
+				case BUFFER_OVERFLOW:
+					appIn = grow(APP_IN, appIn, engine.getSession().getApplicationBufferSize(), true);
+					break;
+				case BUFFER_UNDERFLOW: {
+					if (!netIn.hasRemaining()) netIn = grow(NET_IN, netIn, engine.getSession().getPacketBufferSize(), false);
+					int n = transport.read(netIn);
+					if (n < 0) {
+						inboundClosed = true;
+						try { engine.closeInbound(); } catch (SSLException ignore) {}
+						return -1;
+					}
+					if (n == 0) return 0;
+					break;
+				}
+			}
+		}
+	}
+
+	/** Caller holds {@code outbound}. */
+	private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+		while (true) {
+			netOut.compact();
+			SSLEngineResult r;
+			try {
+				r = engine.wrap(src, netOut);
+			} finally {
+				netOut.flip();
+			}
+			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = grow(NET_OUT, netOut, engine.getSession().getPacketBufferSize(), true);
+				continue;
+			}
+			if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) runTasks();
+			return r;
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) task.run();
+	}
+
+	/** Grows a buffer while keeping its contents; readMode says whether it is flipped for reading. */
+	private ByteBuffer grow(int slot, ByteBuffer buf, int atLeast, boolean readMode) {
+		BufferPool.Buffer old = leases[slot];
+		ByteBuffer bigger = lease(slot, Math.max(buf.capacity() * 2, buf.capacity() + atLeast));
+		if (!readMode) buf.flip();
+		bigger.put(buf);
+		if (readMode) bigger.flip();
+		old.close();
+		return bigger;
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-request cost of the tracing hooks in handleHttpOrWebSocket: the sampling decision for
+ * every request, and decision plus hand-off to the export ring for sampled ones.
+ *
+ *   cd ThreadPool && javac TraceBench.java && java TraceBench [iterations]
+ *
+ * "baseline" does the same header lookup with no tracer call, so the other rows show what
+ * tracing adds. Spans are exported to a temp file that is deleted on exit.
+ */
+public class TraceBench {
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	static volatile Object sink;
+	private static final AccessLog.Exchange EXCHANGE = new AccessLog.Exchange(System.nanoTime());
+	static { EXCHANGE.method = "GET"; EXCHANGE.path = "/hello"; EXCHANGE.status = 200; }
+
+	interface Op { void run(); }
+
+	private static void run(boolean report, String name, Op op, int iterations) {
+		long tid = Thread.currentThread().getId();
+		long allocBefore = THREADS.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) op.run();
+		long nanos = System.nanoTime() - start;
+		long alloc = THREADS.getThreadAllocatedBytes(tid) - allocBefore;
+		if (report) System.out.printf("  %-34s %7.1f ns/req   %7.1f B/req%n", name, nanos / (double) iterations, alloc / (double) iterations);
+	}
+
+	private static Tracer tracer(double rate, File file) {
+		return new Tracer(file, "trace-bench", rate, 64 * 1024, 64L * 1024 * 1024);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		File file = File.createTempFile("trace-bench", ".jsonl");
+		file.deleteOnExit();
+		Map<String, String> plain = new HashMap<>();
+		plain.put("host", "localhost:8013");
+		plain.put("user-agent", "bench");
+		Map<String, String> unsampledParent = new HashMap<>(plain);
+		unsampledParent.put("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00");
+		Map<String, String> sampledParent = new HashMap<>(plain);
+		sampledParent.put("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+
+		Tracer off = tracer(0, file);
+		Tracer onePercent = tracer(0.01, file);
+		Tracer all = tracer(1, file);
+
+		// One unmeasured pass over every case first, so each is timed against the same JIT profile
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			if (report) System.out.println("iterations=" + iterations);
+			run(report, "baseline (header lookup only)", () -> sink = plain.get("traceparent"), iterations);
+			run(report, "rate 0, no traceparent", () -> hook(off, plain), iterations);
+			run(report, "rate 0.01, no traceparent", () -> hook(onePercent, plain), iterations);
+			run(report, "traceparent flagged unsampled", () -> hook(onePercent, unsampledParent), iterations);
+			run(report, "traceparent flagged sampled", () -> hook(onePercent, sampledParent), iterations / 20);
+			run(report, "rate 1 (every request sampled)", () -> hook(all, plain), iterations / 20);
+		}
+		System.out.println("sampled=" + (onePercent.sampled() + all.sampled()) + " dropped=" + (onePercent.dropped() + all.dropped())
+				+ " (drops only mean the exporter fell behind the bench loop)");
+		off.close();
+		onePercent.close();
+		all.close();
+	}
+
+	/** What handleHttpOrWebSocket does per request: decide, and hand sampled ones off at the end. */
+	private static void hook(Tracer tracer, Map<String, String> headers) {
+		Tracer.Sample trace = tracer.start(headers.get("traceparent"));
+		if (trace != null) {
+			long now = System.nanoTime();
+			tracer.finish(trace, EXCHANGE, 0, now, now, false, null);
+		}
+		sink = trace;
+	}
+}
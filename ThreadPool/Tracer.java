@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampled request tracing exported as OTLP-JSON, one ExportTraceServiceRequest per line (the
+ * layout of the OpenTelemetry collector's file exporter, so the file can be replayed into a
+ * real collector).
+ *
+ * A sampled request becomes a SERVER span with four children covering accept, queue, parse
+ * (TLS handshake and request head included) and handler, with the time spent blocked in
+ * socket writes attached to the handler span. Sampling follows an incoming W3C
+ * {@code traceparent} when there is one and otherwise keeps {@code sampleRate} of requests.
+ *
+ * An unsampled request costs one header lookup and one random draw. A sampled one reuses a
+ * per-thread {@link Sample} while it runs, then copies it into a preallocated slot of a
+ * bounded lock-free {@link RecordRing}, as {@link AccessLog} does; ids, names and JSON are
+ * produced by the export thread. A full ring drops the trace and counts it.
+ */
+final class Tracer {
+	static final long EXPORT_INTERVAL_MILLIS = 1000;
+	private static final int MAX_SPANS_PER_BATCH = 512;
+
+	/** Timestamps and ids of the sampled request running on this thread. */
+	static final class Sample {
+		long traceIdHigh;
+		long traceIdLow;
+		long parentSpanId;
+		long parsedNanos;
+	}
+
+	private static final class Record {
+		long traceIdHigh;
+		long traceIdLow;
+		long parentSpanId;
+		long acceptedNanos;
+		long enqueuedNanos;
+		long startNanos;
+		long parsedNanos;
+		long endNanos;
+		long writeNanos;
+		long bytes;
+		int status;
+		boolean tls;
+		String method;
+		String path;
+		String worker;
+		Throwable error;
+	}
+
+	private volatile double sampleRate;
+	private final File file;
+	private final long maxFileBytes;
+	private final String serviceName;
+	private final long epochOffsetNanos;
+	private final ThreadLocal<Sample> samples = ThreadLocal.withInitial(Sample::new);
+	private final RecordRing<Record> ring;
+	private final AtomicLong sampled = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong exported = new AtomicLong(0);
+	private final AtomicLong exportErrors = new AtomicLong(0);
+	private final SplittableRandom ids = new SplittableRandom(); // export thread only
+	private final Thread exporter;
+	private volatile boolean running = true;
+
+	/**
+	 * @param sampleRate share of requests without a traceparent that are traced, 0 to 1
+	 * @param capacity ring slots (finished traces awaiting export), rounded up to a power of two
+	 * @param maxFileBytes past this the file is renamed to {@code name.1}, replacing the previous one
+	 */
+	Tracer(File file, String serviceName, double sampleRate, int capacity, long maxFileBytes) {
+		this.file = file;
+		this.maxFileBytes = maxFileBytes;
+		this.serviceName = serviceName;
+		this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+		this.epochOffsetNanos = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+		this.ring = new RecordRing<>(capacity, Record::new);
+		this.exporter = new Thread(this::exportLoop, "trace-export");
+		exporter.setDaemon(true);
+		exporter.start();
+	}
+
+	double sampleRate() { return sampleRate; }
+
+	void setSampleRate(double rate) { sampleRate = Math.max(0, Math.min(1, rate)); }
+	long sampled() { return sampled.get(); }
+	long dropped() { return dropped.get(); }
+	long exported() { return exported.get(); }
+	long exportErrors() { return exportErrors.get(); }
+
+	/**
+	 * Sampling decision for a request whose head was just parsed; null when it is not traced.
+	 * The returned Sample belongs to the calling thread until {@link #finish}.
+	 */
+	Sample start(String traceparent) {
+		if (traceparent == null || !hasTraceparentShape(traceparent)) return startUnparented();
+		if ((hex(traceparent, 53, 55) & 1) == 0) return null; // the caller decided not to sample
+		if (!allHex(traceparent, 3, 35) || !allHex(traceparent, 36, 52)) return startUnparented();
+		long high = hex(traceparent, 3, 19);
+		long low = hex(traceparent, 19, 35);
+		long parent = hex(traceparent, 36, 52);
+		if ((high | low) == 0 || parent == 0) return startUnparented();
+		Sample s = samples.get();
+		s.traceIdHigh = high;
+		s.traceIdLow = low;
+		s.parentSpanId = parent;
+		s.parsedNanos = System.nanoTime();
+		sampled.incrementAndGet();
+		return s;
+	}
+
+	private Sample startUnparented() {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		if (sampleRate <= 0 || r.nextDouble() >= sampleRate) return null;
+		Sample s = samples.get();
+		s.traceIdHigh = r.nextLong();
+		s.traceIdLow = r.nextLong() | 1;
+		s.parentSpanId = 0;
+		s.parsedNanos = System.nanoTime();
+		sampled.incrementAndGet();
+		return s;
+	}
+
+	/**
+	 * {@code 00-<32 hex trace id>-<16 hex parent id>-<2 hex flags>}: dashes, version and flags
+	 * checked here; the ids only once the flags say the request is sampled.
+	 */
+	private static boolean hasTraceparentShape(String s) {
+		return s.length() >= 55 && s.charAt(2) == '-' && s.charAt(35) == '-' && s.charAt(52) == '-'
+				&& allHex(s, 0, 2) && allHex(s, 53, 55);
+	}
+
+	private static boolean allHex(String s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (Character.digit(s.charAt(i), 16) < 0) return false;
+		}
+		return true;
+	}
+
+	private static long hex(String s, int from, int to) {
+		long v = 0;
+		for (int i = from; i < to; i++) v = (v << 4) | Character.digit(s.charAt(i), 16);
+		return v;
+	}
+
+	/** Hands a finished sampled request to the exporter; never blocks. */
+	void finish(Sample s, AccessLog.Exchange x, long enqueuedNanos, long startNanos, long endNanos, boolean tls, Throwable error) {
+		long pos = ring.claim();
+		if (pos < 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+		Record r = ring.slot(pos);
+		r.traceIdHigh = s.traceIdHigh;
+		r.traceIdLow = s.traceIdLow;
+		r.parentSpanId = s.parentSpanId;
+		r.acceptedNanos = x.acceptedNanos;
+		r.enqueuedNanos = enqueuedNanos != 0 ? enqueuedNanos : x.acceptedNanos;
+		r.startNanos = startNanos;
+		r.parsedNanos = s.parsedNanos;
+		r.endNanos = endNanos;
+		r.writeNanos = x.writeNanos;
+		r.bytes = x.bytes;
+		r.status = x.status;
+		r.tls = tls;
+		r.method = x.method;
+		r.path = x.path;
+		r.worker = Thread.currentThread().getName();
+		r.error = error;
+		ring.publish(pos);
+	}
+
+	/** Exports what is already finished and stops the exporter. */
+	void close() {
+		running = false;
+		LockSupport.unpark(exporter);
+		try { exporter.join(2000); } catch (InterruptedException ignore) {}
+	}
+
+	private void exportLoop() {
+		StringBuilder spans = new StringBuilder(64 * 1024);
+		while (true) {
+			boolean stopping = !running;
+			int n = 0;
+			while (n < MAX_SPANS_PER_BATCH && take(spans)) n++;
+			if (n > 0) {
+				write(spans, n);
+				spans.setLength(0);
+				continue;
+			}
+			if (stopping) break;
+			LockSupport.parkNanos(EXPORT_INTERVAL_MILLIS * 1_000_000L);
+		}
+	}
+
+	private boolean take(StringBuilder spans) {
+		Record r = ring.peek();
+		if (r == null) return false;
+		appendSpans(spans, r);
+		r.method = null;
+		r.path = null;
+		r.worker = null;
+		r.error = null;
+		ring.release();
+		return true;
+	}
+
+	private void appendSpans(StringBuilder sb, Record r) {
+		String traceId = hex16(r.traceIdHigh) + hex16(r.traceIdLow);
+		String root = hex16(ids.nextLong() | 1);
+		if (sb.length() > 0) sb.append(',');
+		span(sb, traceId, root, r.parentSpanId == 0 ? null : hex16(r.parentSpanId), r.method + " " + r.path, 2, r.acceptedNanos, r.endNanos);
+		sb.append(",\"attributes\":[");
+		attr(sb, "http.request.method", r.method, null);
+		sb.append(',');
+		attr(sb, "url.path", r.path, null);
+		sb.append(',');
+		attr(sb, "http.response.status_code", Integer.toString(r.status), "intValue");
+		sb.append(',');
+		attr(sb, "http.response.size", Long.toString(r.bytes), "intValue");
+		sb.append(',');
+		attr(sb, "network.tls", Boolean.toString(r.tls), "boolValue");
+		sb.append(',');
+		attr(sb, "thread.name", r.worker, null);
+		sb.append("],\"status\":{");
+		if (r.error != null) {
+			sb.append("\"code\":2,\"message\":");
+			RecordRing.quote(sb, r.error.toString());
+		} else if (r.status >= 500) {
+			sb.append("\"code\":2");
+		}
+		sb.append("}}");
+
+		child(sb, traceId, root, "accept", r.acceptedNanos, r.enqueuedNanos);
+		child(sb, traceId, root, "queue", r.enqueuedNanos, r.startNanos);
+		child(sb, traceId, root, "parse", r.startNanos, r.parsedNanos);
+		sb.append(',');
+		span(sb, traceId, hex16(ids.nextLong() | 1), root, "handler", 1, r.parsedNanos, r.endNanos);
+		sb.append(",\"attributes\":[");
+		attr(sb, "socket.write.duration_ns", Long.toString(r.writeNanos), "intValue");
+		sb.append("]}");
+	}
+
+	private void child(StringBuilder sb, String traceId, String parent, String name, long start, long end) {
+		sb.append(',');
+		span(sb, traceId, hex16(ids.nextLong() | 1), parent, name, 1, start, Math.max(start, end));
+		sb.append('}');
+	}
+
+	/** Opens a span object; the caller appends attributes/status and the closing brace. */
+	private void span(StringBuilder sb, String traceId, String spanId, String parentId, String name, int kind, long startNanos, long endNanos) {
+		sb.append("{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(spanId).append('"');
+		if (parentId != null) sb.append(",\"parentSpanId\":\"").append(parentId).append('"');
+		sb.append(",\"name\":");
+		RecordRing.quote(sb, name);
+		sb.append(",\"kind\":").append(kind);
+		sb.append(",\"startTimeUnixNano\":\"").append(startNanos + epochOffsetNanos).append('"');
+		sb.append(",\"endTimeUnixNano\":\"").append(endNanos + epochOffsetNanos).append('"');
+	}
+
+	/** One attribute; {@code type} is null for a string, else "intValue" (sent quoted, as OTLP-JSON does) or "boolValue". */
+	private static void attr(StringBuilder sb, String key, String value, String type) {
+		sb.append("{\"key\":\"").append(key).append("\",\"value\":{");
+		if (type == null) { sb.append("\"stringValue\":"); RecordRing.quote(sb, value); }
+		else if (type.equals("intValue")) sb.append("\"intValue\":\"").append(value).append('"');
+		else sb.append('"').append(type).append("\":").append(value);
+		sb.append("}}");
+	}
+
+	private static String hex16(long v) {
+		String h = Long.toHexString(v);
+		return h.length() == 16 ? h : "0000000000000000".substring(h.length()) + h;
+	}
+
+	private void write(StringBuilder spans, int traces) {
+		StringBuilder line = new StringBuilder(spans.length() + 256);
+		line.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+		attr(line, "service.name", serviceName, null);
+		line.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"Server\"},\"spans\":[").append(spans).append("]}]}]}\n");
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null) dir.mkdirs();
+			if (file.length() > maxFileBytes) file.renameTo(new File(file.getPath() + ".1"));
+			try (FileOutputStream out = new FileOutputStream(file, true)) {
+				out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			exported.addAndGet(traces);
+		} catch (IOException ex) {
+			if (exportErrors.getAndIncrement() == 0) System.err.println("[Tracer] export to " + file + " failed: " + ex);
+		}
+	}
+}
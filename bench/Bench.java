@@ -0,0 +1,527 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the same workload profiles against the single-threaded, multithreaded and thread-pool
+ * servers and writes a comparison report as JSON and Markdown.
+ *
+ *   bash scripts/run_bench.sh [--duration=10] [--warmup=3] [--concurrency=32]
+ *                             [--models=single,single-nio,multi,pool,pool-sharded] [--profiles=plain,cpu,io,mixed]
+ *                             [--idleWebSockets=4] [--attach] [--out=.run_logs/bench]
+ *
+ * By default each model is compiled and started on its own (one JVM at a time, on its usual
+ * port, from its own directory, so server.properties and THREADMASTER_* variables apply) and
+ * stopped with SIGTERM afterwards. single-nio is the single-threaded server started with
+ * --eventLoop=1, pool-sharded the thread-pool server with one pinned shard per core. With
+ * --attach the servers already running on 8011-8013 (e.g. from scripts/run_servers.sh) are used
+ * instead; single and single-nio, like pool and pool-sharded, then measure the same process.
+ *
+ * Load is closed-loop: each of the concurrency client threads opens a connection, sends one
+ * request, reads the response to EOF and starts the next. Latency percentiles cover successful
+ * (2xx) responses; 503 and 429 count as rejections, anything else as errors. During each run
+ * /metrics and /proc/PID/status are sampled once a second for server-side rejections, peak
+ * resident memory and thread count.
+ */
+public class Bench {
+    static final class Model {
+        final String name;
+        final String dir;
+        final int port;
+        final boolean webSockets;
+        // Extra server flags, for variants of one server
+        final String[] args;
+
+        Model(String name, String dir, int port, boolean webSockets, String... args) {
+            this.name = name;
+            this.dir = dir;
+            this.port = port;
+            this.webSockets = webSockets;
+            this.args = args;
+        }
+    }
+
+    static final class Profile {
+        final String name;
+        final String description;
+        final String[] paths;
+        final int[] weights;
+        final boolean idleWebSockets;
+
+        Profile(String name, String description, boolean idleWebSockets, Object... pathWeights) {
+            this.name = name;
+            this.description = description;
+            this.idleWebSockets = idleWebSockets;
+            this.paths = new String[pathWeights.length / 2];
+            this.weights = new int[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = (String) pathWeights[2 * i];
+                weights[i] = (Integer) pathWeights[2 * i + 1];
+            }
+        }
+
+        String pick() {
+            int total = 0;
+            for (int w : weights) total += w;
+            int r = ThreadLocalRandom.current().nextInt(total);
+            for (int i = 0; i < paths.length; i++) {
+                r -= weights[i];
+                if (r < 0) return paths[i];
+            }
+            return paths[paths.length - 1];
+        }
+
+        String mix() {
+            StringBuilder sb = new StringBuilder();
+            int total = 0;
+            for (int w : weights) total += w;
+            for (int i = 0; i < paths.length; i++) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(paths[i]);
+                if (paths.length > 1) sb.append(" ").append(Math.round(weights[i] * 100.0 / total)).append('%');
+            }
+            return sb.toString();
+        }
+    }
+
+    static final Model[] MODELS = {
+        new Model("single", "SingleThreaded", 8011, false),
+        new Model("single-nio", "SingleThreaded", 8011, false, "--eventLoop=1"),
+        new Model("multi", "Multithreaded", 8012, true),
+        new Model("pool", "ThreadPool", 8013, true),
+        new Model("pool-sharded", "ThreadPool", 8013, true,
+                "--shards=" + Runtime.getRuntime().availableProcessors(), "--pinShards=1"),
+    };
+
+    static final Profile[] PROFILES = {
+        new Profile("plain", "small static response", false, "/hello", 1),
+        new Profile("cpu", "20 ms of CPU per request", false, "/compute?ms=20", 1),
+        new Profile("io", "1 MiB response body", false, "/io?bytes=1048576", 1),
+        new Profile("mixed", "mixed requests while idle WebSocket sessions stay open", true,
+                "/hello", 70, "/compute?ms=10", 20, "/io?bytes=65536", 10),
+    };
+
+    static final class Result {
+        String model;
+        String profile;
+        double seconds;
+        long ok;
+        long errors;
+        long rejected;
+        long serverRejected = -1;
+        long bytes;
+        Histogram latency = new Histogram();
+        int idleWebSockets;
+        String note = "";
+        long rssPeakKb = -1;
+        int threadsPeak = -1;
+        double serverP95Ms = -1;
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10_000;
+
+    private int duration = 10;
+    private int warmup = 3;
+    private int concurrency = 32;
+    private int idleWebSockets = 4;
+    private boolean attach = false;
+    private File root = new File(".");
+    private File out;
+    private List<Model> models = new ArrayList<>(Arrays.asList(MODELS));
+    private List<Profile> profiles = new ArrayList<>(Arrays.asList(PROFILES));
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        bench.parseArgs(args);
+        bench.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            String key = a.startsWith("--") ? (eq > 0 ? a.substring(2, eq) : a.substring(2)) : a;
+            String value = eq > 0 ? a.substring(eq + 1) : "";
+            switch (key) {
+                case "duration": duration = Integer.parseInt(value); break;
+                case "warmup": warmup = Integer.parseInt(value); break;
+                case "concurrency": concurrency = Integer.parseInt(value); break;
+                case "idleWebSockets": idleWebSockets = Integer.parseInt(value); break;
+                case "attach": attach = true; break;
+                case "root": root = new File(value); break;
+                case "out": out = new File(value); break;
+                case "models": models = select(MODELS, value, m -> m.name); break;
+                case "profiles": profiles = select(PROFILES, value, p -> p.name); break;
+                default: throw new IllegalArgumentException("unknown option " + a);
+            }
+        }
+        if (out == null) out = new File(root, ".run_logs/bench");
+    }
+
+    private static <T> List<T> select(T[] all, String names, java.util.function.Function<T, String> name) {
+        List<T> picked = new ArrayList<>();
+        for (String n : names.split(",")) {
+            T found = null;
+            for (T t : all) if (name.apply(t).equals(n.trim())) found = t;
+            if (found == null) throw new IllegalArgumentException("unknown name " + n);
+            picked.add(found);
+        }
+        return picked;
+    }
+
+    private void run() throws Exception {
+        out.mkdirs();
+        List<Result> results = new ArrayList<>();
+        for (Model model : models) {
+            ServerProcess server = attach ? ServerProcess.attach(root, model) : ServerProcess.start(root, model, out);
+            try {
+                for (Profile profile : profiles) {
+                    System.out.printf("%-6s %-6s warmup %ds, measure %ds, %d clients%n", model.name, profile.name, warmup, duration, concurrency);
+                    if (warmup > 0) drive(model, profile, warmup, null);
+                    Result r = drive(model, profile, duration, server);
+                    results.add(r);
+                    System.out.printf("       %.0f req/s  p50 %.2f ms  p99 %.2f ms  errors %d  rejected %d%n",
+                            r.ok / r.seconds, ms(r.latency.percentileMicros(50)), ms(r.latency.percentileMicros(99)), r.errors, r.rejected);
+                }
+            } finally {
+                server.stop();
+            }
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path json = new File(out, "bench-" + stamp + ".json").toPath();
+        Path md = new File(out, "bench-" + stamp + ".md").toPath();
+        Files.write(json, toJson(results).getBytes(StandardCharsets.UTF_8));
+        Files.write(md, toMarkdown(results).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report: " + json + "\n        " + md);
+    }
+
+    /** One measured (or, with {@code server} null, warmup) run of a profile against a model. */
+    private Result drive(Model model, Profile profile, int seconds, ServerProcess server) throws Exception {
+        Result r = new Result();
+        r.model = model.name;
+        r.profile = profile.name;
+        List<Socket> sessions = new ArrayList<>();
+        if (profile.idleWebSockets && idleWebSockets > 0) {
+            if (model.webSockets) {
+                for (int i = 0; i < idleWebSockets; i++) {
+                    Socket s = openWebSocket(model.port);
+                    if (s != null) sessions.add(s);
+                }
+            } else {
+                r.note = "no WebSocket endpoint";
+            }
+        }
+        r.idleWebSockets = sessions.size();
+
+        Map<String, Long> before = server != null ? server.metrics() : null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Histogram[] latencies = new Histogram[concurrency];
+        AtomicLong ok = new AtomicLong(), errors = new AtomicLong(), rejected = new AtomicLong(), bytes = new AtomicLong();
+        Thread[] clients = new Thread[concurrency];
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Histogram h = latencies[i] = new Histogram();
+            clients[i] = new Thread(() -> {
+                byte[] scratch = new byte[64 * 1024];
+                while (System.nanoTime() - deadline < 0) {
+                    long t = System.nanoTime();
+                    int status;
+                    try {
+                        long[] read = new long[1];
+                        status = request(model.port, profile.pick(), scratch, read);
+                        bytes.addAndGet(read[0]);
+                    } catch (IOException ex) {
+                        status = -1;
+                    }
+                    if (status >= 200 && status < 300) {
+                        h.record((System.nanoTime() - t) / 1000);
+                        ok.incrementAndGet();
+                    } else if (status == 503 || status == 429) {
+                        rejected.incrementAndGet();
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, "bench-client-" + i);
+            clients[i].start();
+        }
+        while (server != null && System.nanoTime() - deadline < 0) {
+            server.sample(r);
+            Thread.sleep(Math.max(1, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+        }
+        for (Thread t : clients) t.join();
+        r.seconds = (System.nanoTime() - start) / 1e9;
+        if (server != null) {
+            server.sample(r);
+            Map<String, Long> after = server.metrics();
+            r.serverRejected = rejectionsIn(after) - rejectionsIn(before);
+        }
+        for (Socket s : sessions) { try { s.close(); } catch (IOException ignore) {} }
+        for (Histogram h : latencies) r.latency.merge(h);
+        r.ok = ok.get();
+        r.errors = errors.get();
+        r.rejected = rejected.get();
+        r.bytes = bytes.get();
+        return r;
+    }
+
+    private static long rejectionsIn(Map<String, Long> m) {
+        if (m == null) return 0;
+        long n = 0;
+        for (String k : new String[] {"rejectedRequests", "rejectedConnections", "rateLimited"}) n += m.getOrDefault(k, 0L);
+        return n;
+    }
+
+    /** Sends one GET with Connection: close and reads to EOF; returns the status code. */
+    static int request(int port, String path, byte[] scratch, long[] bytesRead) throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress("127.0.0.1", port), CONNECT_TIMEOUT_MS);
+            s.setSoTimeout(READ_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            OutputStream o = s.getOutputStream();
+            o.write(("GET " + path + " HTTP/1.1\r\nHost: localhost:" + port + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            o.flush();
+            InputStream in = s.getInputStream();
+            int status = -1;
+            long total = 0;
+            int n;
+            while ((n = in.read(scratch, (int) Math.min(total, 12), scratch.length - (int) Math.min(total, 12))) > 0) {
+                if (status < 0 && total + n >= 12) {
+                    status = (scratch[9] - '0') * 100 + (scratch[10] - '0') * 10 + (scratch[11] - '0');
+                }
+                total += n;
+            }
+            bytesRead[0] = total;
+            return status;
+        }
+    }
+
+    /** Opens a WebSocket session in room "bench" and leaves it idle; null if the upgrade fails. */
+    private static Socket openWebSocket(int port) {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress("127.0.0.1", port), CONNECT_TIMEOUT_MS);
+            s.setSoTimeout(READ_TIMEOUT_MS);
+            byte[] key = new byte[16];
+            ThreadLocalRandom.current().nextBytes(key);
+            String req = "GET /ws?room=bench HTTP/1.1\r\nHost: localhost:" + port + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key) + "\r\nSec-WebSocket-Version: 13\r\n\r\n";
+            s.getOutputStream().write(req.getBytes(StandardCharsets.US_ASCII));
+            InputStream in = s.getInputStream();
+            StringBuilder head = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && !head.toString().endsWith("\r\n\r\n")) head.append((char) c);
+            if (!head.toString().startsWith("HTTP/1.1 101")) { s.close(); return null; }
+            return s;
+        } catch (IOException ex) {
+            try { s.close(); } catch (IOException ignore) {}
+            return null;
+        }
+    }
+
+    private static double ms(long micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+
+    private String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"host\": {\"cpus\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(", \"os\": \"").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch"))
+                .append("\", \"java\": \"").append(System.getProperty("java.version")).append("\"},\n");
+        sb.append("  \"settings\": {\"durationSeconds\": ").append(duration).append(", \"warmupSeconds\": ").append(warmup)
+                .append(", \"concurrency\": ").append(concurrency).append(", \"idleWebSockets\": ").append(idleWebSockets)
+                .append(", \"mode\": \"").append(attach ? "attach" : "spawn").append("\"},\n");
+        sb.append("  \"profiles\": [");
+        for (int i = 0; i < profiles.size(); i++) {
+            Profile p = profiles.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {\"name\": \"").append(p.name).append("\", \"description\": \"")
+                    .append(p.description).append("\", \"requests\": \"").append(p.mix()).append("\"}");
+        }
+        sb.append("\n  ],\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            Histogram h = r.latency;
+            sb.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"model\": \"").append(r.model).append("\", \"profile\": \"").append(r.profile)
+                    .append("\", \"seconds\": ").append(Math.round(r.seconds * 100) / 100.0)
+                    .append(", \"ok\": ").append(r.ok)
+                    .append(", \"throughputPerSec\": ").append(Math.round(r.ok / r.seconds * 10) / 10.0)
+                    .append(", \"megabytesPerSec\": ").append(Math.round(r.bytes / r.seconds / 1e4) / 100.0)
+                    .append(", \"latencyMs\": {\"mean\": ").append(ms((long) h.meanMicros()))
+                    .append(", \"p50\": ").append(ms(h.percentileMicros(50)))
+                    .append(", \"p99\": ").append(ms(h.percentileMicros(99)))
+                    .append(", \"p999\": ").append(ms(h.percentileMicros(99.9)))
+                    .append(", \"max\": ").append(ms(h.maxMicros())).append('}')
+                    .append(", \"errors\": ").append(r.errors)
+                    .append(", \"rejected\": ").append(r.rejected)
+                    .append(", \"serverRejected\": ").append(r.serverRejected < 0 ? "null" : Long.toString(r.serverRejected))
+                    .append(", \"serverP95Ms\": ").append(r.serverP95Ms < 0 ? "null" : Double.toString(r.serverP95Ms))
+                    .append(", \"rssMbPeak\": ").append(r.rssPeakKb < 0 ? "null" : Double.toString(Math.round(r.rssPeakKb / 102.4) / 10.0))
+                    .append(", \"threadsPeak\": ").append(r.threadsPeak < 0 ? "null" : Integer.toString(r.threadsPeak))
+                    .append(", \"idleWebSockets\": ").append(r.idleWebSockets)
+                    .append(", \"note\": \"").append(r.note).append("\"}");
+        }
+        return sb.append("\n  ]\n}\n").toString();
+    }
+
+    private String toMarkdown(List<Result> results) {
+        StringBuilder sb = new StringBuilder("# Server model comparison\n\n");
+        sb.append(String.format("%d CPUs, %s %s, Java %s. %d closed-loop clients, %d s measured after %d s warmup, servers %s.%n%n",
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.name"), System.getProperty("os.arch"),
+                System.getProperty("java.version"), concurrency, duration, warmup, attach ? "already running" : "started one at a time"));
+        sb.append("Latency covers 2xx responses. Rejected = 503/429 seen by the client (server-side count in brackets). RSS and threads are peaks sampled once a second.\n");
+        for (Profile p : profiles) {
+            sb.append("\n## ").append(p.name).append(" - ").append(p.description).append("\n\n").append("Requests: ").append(p.mix());
+            if (p.idleWebSockets) sb.append("; ").append(idleWebSockets).append(" idle WebSocket sessions");
+            sb.append("\n\n| model | req/s | p50 ms | p99 ms | p99.9 ms | max ms | errors | rejected | RSS MB | threads | notes |\n");
+            sb.append("|---|---:|---:|---:|---:|---:|---:|---:|---:|---:|---|\n");
+            for (Result r : results) {
+                if (!r.profile.equals(p.name)) continue;
+                Histogram h = r.latency;
+                sb.append(String.format("| %s | %.0f | %.2f | %.2f | %.2f | %.2f | %d | %d%s | %s | %s | %s |%n",
+                        r.model, r.ok / r.seconds, ms(h.percentileMicros(50)), ms(h.percentileMicros(99)), ms(h.percentileMicros(99.9)),
+                        ms(h.maxMicros()), r.errors, r.rejected, r.serverRejected < 0 ? "" : " (" + r.serverRejected + ")",
+                        r.rssPeakKb < 0 ? "-" : String.format("%.1f", r.rssPeakKb / 1024.0),
+                        r.threadsPeak < 0 ? "-" : Integer.toString(r.threadsPeak), r.note));
+            }
+        }
+        return sb.toString();
+    }
+
+    /** A server under test: spawned and owned by the bench, or already running. */
+    static final class ServerProcess {
+        private static final Pattern NUMBER = Pattern.compile("^  \"(\\w+)\": (-?[0-9.]+),?$", Pattern.MULTILINE);
+
+        final Model model;
+        final Process process;
+        final long pid;
+
+        private ServerProcess(Model model, Process process, long pid) {
+            this.model = model;
+            this.process = process;
+            this.pid = pid;
+        }
+
+        static ServerProcess start(File root, Model model, File logDir) throws Exception {
+            if (listening(model.port)) {
+                throw new IllegalStateException("port " + model.port + " is in use; stop the running servers or pass --attach");
+            }
+            File dir = new File(root, model.dir);
+            Path classes = Files.createTempDirectory("bench-" + model.dir);
+            List<String> javacArgs = new ArrayList<>(Arrays.asList("-nowarn", "-Xlint:none", "-d", classes.toString()));
+            File[] sources = dir.listFiles((d, n) -> n.endsWith(".java"));
+            if (sources == null) throw new IllegalStateException("no sources in " + dir);
+            for (File f : sources) javacArgs.add(f.getPath());
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            if (javac.run(null, null, null, javacArgs.toArray(new String[0])) != 0) throw new IllegalStateException("compiling " + dir + " failed");
+            String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classes.toString(), "Server"));
+            command.addAll(Arrays.asList(model.args));
+            Process p = new ProcessBuilder(command)
+                    .directory(dir)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(logDir, model.dir + ".log"))
+                    .start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (!listening(model.port)) {
+                if (!p.isAlive()) throw new IllegalStateException(model.dir + " exited with " + p.exitValue() + "; see " + new File(logDir, model.dir + ".log"));
+                if (System.nanoTime() - deadline > 0) { p.destroyForcibly(); throw new IllegalStateException(model.dir + " did not open port " + model.port); }
+                Thread.sleep(100);
+            }
+            return new ServerProcess(model, p, p.pid());
+        }
+
+        /** Uses a running server; the pid comes from scripts/run_servers.sh's pid file if present. */
+        static ServerProcess attach(File root, Model model) throws IOException {
+            if (!listening(model.port)) throw new IllegalStateException("nothing listening on " + model.port + " for " + model.dir);
+            long pid = -1;
+            File pidFile = new File(root, ".run_logs/" + model.dir + ".pid");
+            if (pidFile.isFile()) {
+                try { pid = Long.parseLong(new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.US_ASCII).trim()); } catch (NumberFormatException ignore) {}
+            }
+            return new ServerProcess(model, null, pid);
+        }
+
+        void stop() throws InterruptedException {
+            if (process == null) return;
+            process.destroy(); // SIGTERM: the server drains and exits
+            if (!process.waitFor(20, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (listening(model.port) && System.nanoTime() - deadline < 0) Thread.sleep(100);
+        }
+
+        /** Top-level numeric fields of /metrics; null if it could not be read. */
+        Map<String, Long> metrics() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            String body = get("/metrics");
+            if (body == null) return null;
+            Matcher matcher = NUMBER.matcher(body);
+            while (matcher.find()) m.put(matcher.group(1), (long) Double.parseDouble(matcher.group(2)));
+            return m;
+        }
+
+        void sample(Result r) {
+            String body = get("/metrics");
+            if (body != null) {
+                Matcher matcher = Pattern.compile("\"p95LatencyMs\": ([0-9.E-]+)").matcher(body);
+                if (matcher.find()) r.serverP95Ms = Double.parseDouble(matcher.group(1));
+            }
+            if (pid <= 0) return;
+            try {
+                for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+                    if (line.startsWith("VmRSS:")) r.rssPeakKb = Math.max(r.rssPeakKb, Long.parseLong(line.replaceAll("[^0-9]", "")));
+                    else if (line.startsWith("Threads:")) r.threadsPeak = Math.max(r.threadsPeak, Integer.parseInt(line.replaceAll("[^0-9]", "")));
+                }
+            } catch (IOException | NumberFormatException notLinux) {
+                // /proc is Linux-only; the report shows these columns as unknown elsewhere
+            }
+        }
+
+        private String get(String path) {
+            byte[] scratch = new byte[256 * 1024];
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", model.port), CONNECT_TIMEOUT_MS);
+                s.setSoTimeout(READ_TIMEOUT_MS);
+                s.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                InputStream in = s.getInputStream();
+                int total = 0, n;
+                while (total < scratch.length && (n = in.read(scratch, total, scratch.length - total)) > 0) total += n;
+                String resp = new String(scratch, 0, total, StandardCharsets.UTF_8);
+                int body = resp.indexOf("\r\n\r\n");
+                return resp.startsWith("HTTP/1.1 200") && body > 0 ? resp.substring(body + 4) : null;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        static boolean listening(int port) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 500);
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Latency histogram in microseconds with bounded relative error: values are grouped by power of
+ * two and each group is split into 64 linear sub-buckets, so a reported percentile is within
+ * about 1.6% of the true value at any magnitude. Not thread-safe; each client thread records
+ * into its own and the results are merged.
+ */
+final class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int HALF = SUB / 2;
+
+    private final long[] counts = new long[SUB + (64 - SUB_BITS) * HALF];
+    private long total;
+    private long sum;
+    private long max;
+
+    void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts[index(micros)]++;
+        total++;
+        sum += micros;
+        if (micros > max) max = micros;
+    }
+
+    void merge(Histogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() { return total; }
+    long maxMicros() { return max; }
+    double meanMicros() { return total == 0 ? 0 : sum / (double) total; }
+
+    /** Value at or below which {@code percent} of the recorded values fall. */
+    long percentileMicros(double percent) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, value(i));
+        }
+        return max;
+    }
+
+    private static int index(long v) {
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        if (msb < SUB_BITS) return (int) v;
+        int shift = msb - SUB_BITS + 1;
+        return SUB + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    /** Middle of bucket {@code i}. */
+    private static long value(int i) {
+        if (i < SUB) return i;
+        int j = i - SUB;
+        int shift = j / HALF + 1;
+        long lower = (long) (j % HALF + HALF) << shift;
+        return lower + ((1L << shift) - 1) / 2;
+    }
+}
@@ -0,0 +1,20 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+# Self-signed PKCS#12 keystore for the HTTPS/WSS listener (test use only).
+
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+TLS_DIR="$ROOT_DIR/.tls"
+KEYSTORE="$TLS_DIR/server.p12"
+PASSWORD="${KEYSTORE_PASSWORD:-changeit}"
+
+mkdir -p "$TLS_DIR"
+if [[ -f "$KEYSTORE" && "${1:-}" != "--force" ]]; then
+  echo "Keystore exists: $KEYSTORE (use --force to regenerate)"
+  exit 0
+fi
+rm -f "$KEYSTORE"
+keytool -genkeypair -alias threadmaster -keyalg EC -groupname secp256r1 \
+  -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" -validity 365 \
+  -storetype PKCS12 -keystore "$KEYSTORE" -storepass "$PASSWORD" -keypass "$PASSWORD" >/dev/null 2>&1
+echo "Generated $KEYSTORE"
@@ -0,0 +1,65 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+# Zero-downtime restart: each replacement binds the same port (SO_REUSEPORT) and
+# starts taking traffic before the old process is asked to drain and exit.
+
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+cd "$ROOT_DIR"
+
+LOG_DIR="$ROOT_DIR/.run_logs"
+# Each replacement gets its own class directory: the draining JVM still loads classes lazily
+# (Http2Connection on the first h2 connection, say) and must not find the new build's
+CLASSES_DIR="$LOG_DIR/classes"
+mkdir -p "$LOG_DIR" "$CLASSES_DIR"
+
+restart_server() {
+  local dir=$1
+  local port=$2
+  local pid_file="$LOG_DIR/${dir}.pid"
+  local classes_file="$LOG_DIR/${dir}.classes"
+  local old_pid="" old_classes=""
+  [[ -f "$pid_file" ]] && old_pid=$(cat "$pid_file" || true)
+  [[ -f "$classes_file" ]] && old_classes=$(cat "$classes_file" || true)
+
+  local classes="$CLASSES_DIR/${dir}-$(date +%Y%m%d-%H%M%S)-$$"
+  mkdir -p "$classes"
+  (cd "$dir" && javac -d "$classes" *.java)
+  local log="$LOG_DIR/${dir}_$port.log"
+  # The draining process keeps writing to the renamed file
+  [[ -f "$log" ]] && mv "$log" "$log.prev"
+  (cd "$dir" && { nohup java -cp "$classes" Server > "$log" 2>&1 & echo $! > "$pid_file.new"; })
+  local new_pid
+  new_pid=$(cat "$pid_file.new")
+
+  # Wait until the replacement is listening before draining the old process
+  for _ in $(seq 1 100); do
+    grep -q "listening on port" "$log" 2>/dev/null && break
+    kill -0 "$new_pid" 2>/dev/null || break
+    sleep 0.1
+  done
+  if ! grep -q "listening on port" "$log" 2>/dev/null; then
+    kill "$new_pid" 2>/dev/null || true
+    echo "Replacement for $dir did not start listening (see $log); keeping PID ${old_pid:-none}"
+    rm -f "$pid_file.new"
+    rm -rf "$classes"
+    return 1
+  fi
+  mv "$pid_file.new" "$pid_file"
+  echo "$classes" > "$classes_file"
+  # Older builds are no longer loaded by anything; the draining process still uses old_classes
+  for d in "$CLASSES_DIR/${dir}"-*; do
+    [[ "$d" == "$classes" || "$d" == "$old_classes" ]] || rm -rf "$d"
+  done
+
+  if [[ -n "$old_pid" ]] && kill -0 "$old_pid" 2>/dev/null; then
+    kill "$old_pid" 2>/dev/null || true
+    echo "Restarted $dir on port $port: $old_pid (draining) -> $new_pid"
+  else
+    echo "Started $dir on port $port: $new_pid"
+  fi
+}
+
+restart_server SingleThreaded 8011
+restart_server Multithreaded 8012
+restart_server ThreadPool 8013
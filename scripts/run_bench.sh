@@ -0,0 +1,12 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+# Compares the three server models under identical load; see bench/Bench.java for options.
+# Reports go to .run_logs/bench/bench-<timestamp>.{json,md}.
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+CLASSES="$(mktemp -d)"
+trap 'rm -rf "$CLASSES"' EXIT
+
+javac -d "$CLASSES" "$ROOT_DIR"/bench/*.java
+cd "$ROOT_DIR"
+java -cp "$CLASSES" Bench "$@"
@@ -14,12 +14,15 @@ start_server() {
   (
     cd "$dir" && \
     javac Server.java && \
-    nohup java Server > "$LOG_DIR/${dir}_$port.log" 2>&1 & \
-    echo $! > "$LOG_DIR/${dir}.pid"
+    { nohup java Server > "$LOG_DIR/${dir}_$port.log" 2>&1 & \
+      echo $! > "$LOG_DIR/${dir}.pid"; }
   )
   echo "Started $dir on port $port (logs: $LOG_DIR/${dir}_$port.log)"
 }
 
+# Self-signed keystore for the thread-pool HTTPS/WSS listener (8443)
+bash "$ROOT_DIR/scripts/gen_keystore.sh" >/dev/null
+
 start_server SingleThreaded 8011
 start_server Multithreaded 8012
 start_server ThreadPool 8013
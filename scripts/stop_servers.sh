@@ -3,18 +3,39 @@ set -euo pipefail
 
 ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
 LOG_DIR="$ROOT_DIR/.run_logs"
+# Seconds to wait for a graceful drain (SIGTERM) before falling back to SIGKILL
+DRAIN_SECONDS="${DRAIN_SECONDS:-15}"
 
-# Kill tracked PIDs
+wait_for_exit() {
+  local pid=$1
+  local waited=0
+  while kill -0 "$pid" 2>/dev/null; do
+    if (( waited >= DRAIN_SECONDS * 10 )); then
+      echo "PID $pid did not drain in ${DRAIN_SECONDS}s; killing"
+      kill -9 "$pid" 2>/dev/null || true
+      return
+    fi
+    sleep 0.1
+    waited=$((waited + 1))
+  done
+}
+
+# Ask tracked PIDs to drain (SIGTERM runs the servers' shutdown hooks)
+pids=()
 if compgen -G "$LOG_DIR/*.pid" > /dev/null; then
   for f in "$LOG_DIR"/*.pid; do
     if [[ -f "$f" ]]; then
       pid=$(cat "$f" || true)
       if [[ -n "${pid:-}" ]]; then
-        kill "$pid" 2>/dev/null || true
+        kill "$pid" 2>/dev/null && pids+=("$pid") || true
       fi
+      rm -f "$f"
     fi
   done
 fi
+for pid in "${pids[@]+"${pids[@]}"}"; do
+  wait_for_exit "$pid"
+done
 
 # Fallback: kill any lingering java Server processes
 pkill -f 'java Server' 2>/dev/null || true
@@ -25,5 +46,3 @@ for p in 8011 8012 8013; do
 done
 
 echo "Stopped servers and freed ports."
-
-